@@ -0,0 +1,118 @@
+import org.datavec.api.writable.Writable;
+import org.datavec.common.RecordConverter;
+import org.datavec.image.loader.ImageLoader;
+import org.jcodec.common.model.ColorSpace;
+import org.jcodec.common.model.Picture8Bit;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-frame steps between a decoded frame and the feature arrays: the YUV to BufferedImage conversion of AWTUtil,
+ * the resize of ImageLoader, RecordConverter.toRecord and the VideoPreProcessor of the sequential data, next to
+ * FrameConverter, which does all of them in one pass, also for the GREY and YUV input modes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ConversionBenchmark {
+
+    private static final int srcWidth = 320;
+    private static final int srcHeight = 240;
+    private static final int height = 168;
+    private static final int width = 168;
+    private static final int nrFrames = 10;
+    private static final int miniBatchSize = 16;
+
+    private Picture8Bit yuv;
+    private Picture8Bit rgb;
+    private BufferedImage image;
+    private ImageLoader imageLoader;
+    private INDArray tensor;
+    private DataLoader.VideoPreProcessor preProcessor;
+    private INDArray batchFeatures;
+    private DataSet batch;
+    private FrameConverter converter;
+    private FrameConverter greyConverter;
+    private FrameConverter yuvConverter;
+    private float[] features;
+
+    @Setup
+    public void setup() {
+        yuv = SyntheticInputs.yuvFrame(srcWidth, srcHeight, 0);
+        rgb = Picture8Bit.create(srcWidth, srcHeight, ColorSpace.RGB);
+        image = AWTUtil.toBufferedImage8Bit(yuv);
+        imageLoader = new ImageLoader(height, width);
+        tensor = imageLoader.toRaveledTensor(image);
+        preProcessor = new DataLoader.VideoPreProcessor();
+        batchFeatures = SyntheticInputs.uniform(1, miniBatchSize, 3 * height * width, nrFrames).muli(255);
+        converter = new FrameConverter(height, width, PixelScaling.UNIT);
+        greyConverter = new FrameConverter(height, width, PixelScaling.UNIT, InputMode.GREY);
+        yuvConverter = new FrameConverter(height, width, PixelScaling.UNIT, InputMode.YUV);
+        features = new float[converter.getFrameSize()];
+    }
+
+    /**
+     * The preprocessor scales the features in place, so each invocation gets fresh ones
+     */
+    @Setup(Level.Invocation)
+    public void resetBatch() {
+        batch = new DataSet(batchFeatures.dup(), null);
+    }
+
+    @Benchmark
+    public BufferedImage toBufferedImage() {
+        return AWTUtil.toBufferedImage8Bit(yuv);
+    }
+
+    @Benchmark
+    public Picture8Bit fromBufferedImage() {
+        AWTUtil.fromBufferedImage8Bit(image, rgb);
+        return rgb;
+    }
+
+    @Benchmark
+    public INDArray resize() {
+        return imageLoader.toRaveledTensor(image);
+    }
+
+    @Benchmark
+    public List<Writable> toRecord() {
+        return RecordConverter.toRecord(tensor);
+    }
+
+    @Benchmark
+    public DataSet preProcess() {
+        preProcessor.preProcess(batch);
+        return batch;
+    }
+
+    @Benchmark
+    public float[] frameConverter() {
+        converter.convert(yuv, features, 0, 1);
+        return features;
+    }
+
+    @Benchmark
+    public float[] frameConverterGrey() {
+        greyConverter.convert(yuv, features, 0, 1);
+        return features;
+    }
+
+    @Benchmark
+    public float[] frameConverterYuv() {
+        yuvConverter.convert(yuv, features, 0, 1);
+        return features;
+    }
+}
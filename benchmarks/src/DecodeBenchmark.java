@@ -0,0 +1,79 @@
+import org.datavec.api.conf.Configuration;
+import org.datavec.api.writable.Writable;
+import org.jcodec.common.io.ByteBufferSeekableByteChannel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of a 10 frame window of a synthetic clip, as done for each example of the sequential data: the record
+ * reader path (SequentialFramesRecordReader.loadData, through BufferedImages, ImageLoader and RecordConverter) and the
+ * direct path (ClipDecoder.decodeWindows into the feature buffer). The clip is held in memory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DecodeBenchmark {
+
+    @Param({"320x240"})
+    public String clipSize;
+
+    @Param({"0", "50"})
+    public int startFrame;
+
+    private static final int nrFrames = 10;
+    private static final int height = 168;
+    private static final int width = 168;
+
+    private byte[] clip;
+    private KeyframeIndex index;
+    private SequentialFramesRecordReader reader;
+    private FrameConverter converter;
+    private float[] features;
+
+    @Setup
+    public void setup() throws IOException {
+        String[] size = clipSize.split("x");
+        clip = SyntheticInputs.clip(Integer.parseInt(size[0]), Integer.parseInt(size[1]), 100);
+        index = KeyframeIndex.build(new ByteBufferSeekableByteChannel(ByteBuffer.wrap(clip)));
+
+        Configuration conf = new Configuration();
+        conf.set(SequentialFramesRecordReader.RAVEL, "true");
+        conf.set(SequentialFramesRecordReader.START_FRAME, String.valueOf(startFrame));
+        conf.set(SequentialFramesRecordReader.TOTAL_FRAMES, String.valueOf(nrFrames));
+        conf.set(SequentialFramesRecordReader.ROWS, String.valueOf(height));
+        conf.set(SequentialFramesRecordReader.COLUMNS, String.valueOf(width));
+        reader = new SequentialFramesRecordReader();
+        reader.setConf(conf);
+
+        converter = new FrameConverter(height, width, PixelScaling.UNIT);
+        features = new float[converter.getFrameSize() * nrFrames];
+    }
+
+    @Benchmark
+    public List<List<Writable>> loadData() throws IOException {
+        return reader.sequenceRecord(URI.create("synthetic_clip.mp4"),
+                new DataInputStream(new ByteArrayInputStream(clip)));
+    }
+
+    @Benchmark
+    public float[] decodeWindow() throws Exception {
+        ClipDecoder.decodeRange(new ByteBufferSeekableByteChannel(ByteBuffer.wrap(clip)), index, startFrame,
+                startFrame + nrFrames, new ClipDecoder.WindowWriter(new int[][] {{startFrame, nrFrames}}, converter,
+                        new float[][] {features}, new int[1]));
+        return features;
+    }
+}
@@ -0,0 +1,63 @@
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A forward pass of a single minibatch through the models of NetworkModels at 168x168. Models 1 and 2 get single
+ * frames, model 3 gets sequences of 10 frames.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ForwardBenchmark {
+
+    @Param({"1", "2", "3"})
+    public int model;
+
+    @Param({"16"})
+    public int miniBatchSize;
+
+    private static final int height = 168;
+    private static final int width = 168;
+    private static final int channels = 3;
+    private static final int nrFrames = 10;
+    private static final int nrOfCategories = 11;
+
+    private MultiLayerNetwork network;
+    private INDArray input;
+
+    @Setup
+    public void setup() {
+        MultiLayerConfiguration conf;
+        if(model == 1) {
+            conf = NetworkModels.getModel1(height, width, channels, nrOfCategories);
+        } else if(model == 2) {
+            conf = NetworkModels.getModel2(height, width, channels, nrOfCategories);
+        } else {
+            conf = NetworkModels.getModel3(height, width, channels, nrOfCategories);
+        }
+        network = new MultiLayerNetwork(conf);
+        network.init();
+
+        if(model == 3) {
+            input = SyntheticInputs.uniform(2, miniBatchSize, channels * height * width, nrFrames);
+        } else {
+            input = SyntheticInputs.uniform(2, miniBatchSize, channels * height * width).muli(255);
+        }
+    }
+
+    @Benchmark
+    public INDArray forward() {
+        return network.output(input, false);
+    }
+}
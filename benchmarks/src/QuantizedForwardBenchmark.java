@@ -0,0 +1,72 @@
+import org.deeplearning4j.datasets.iterator.impl.ListDataSetIterator;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A forward pass of a single minibatch through models 1 and 3 at 168x168, with the float network and with its int8
+ * QuantizedNetwork (calibrated on the benchmark input).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class QuantizedForwardBenchmark {
+
+    @Param({"1", "3"})
+    public int model;
+
+    @Param({"16"})
+    public int miniBatchSize;
+
+    private static final int height = 168;
+    private static final int width = 168;
+    private static final int channels = 3;
+    private static final int nrFrames = 10;
+    private static final int nrOfCategories = 11;
+
+    private MultiLayerNetwork network;
+    private QuantizedNetwork quantized;
+    private INDArray input;
+
+    @Setup
+    public void setup() {
+        MultiLayerConfiguration conf;
+        INDArray labels;
+        if(model == 1) {
+            conf = NetworkModels.getModel1(height, width, channels, nrOfCategories);
+            input = SyntheticInputs.uniform(2, miniBatchSize, channels * height * width).muli(255);
+            labels = Nd4j.zeros(miniBatchSize, nrOfCategories);
+        } else {
+            conf = NetworkModels.getModel3(height, width, channels, nrOfCategories);
+            input = SyntheticInputs.uniform(2, miniBatchSize, channels * height * width, nrFrames);
+            labels = Nd4j.zeros(new int[] {miniBatchSize, nrOfCategories, nrFrames});
+        }
+        network = new MultiLayerNetwork(conf);
+        network.init();
+        quantized = QuantizedNetwork.quantize(network,
+                new ListDataSetIterator(Collections.singletonList(new DataSet(input, labels))), miniBatchSize, true);
+    }
+
+    @Benchmark
+    public INDArray fp32() {
+        return network.output(input, false);
+    }
+
+    @Benchmark
+    public INDArray int8() {
+        return quantized.output(input);
+    }
+}
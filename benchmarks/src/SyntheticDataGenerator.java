@@ -0,0 +1,185 @@
+import org.jcodec.api.SequenceEncoder8Bit;
+import org.jcodec.common.model.ColorSpace;
+import org.jcodec.common.model.Picture8Bit;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+
+/**
+ * Writes synthetic labeled datasets in the layouts read by DataLoader, so that the training and evaluation pipelines
+ * can be run and timed without the video data:
+ *
+ * - sequential data: numbered clips "sportclip_%d.mp4", encoded as H.264 with JCodec, each with a label file
+ *   "sportclip_%d.txt" holding the category once per frame
+ * - non-sequential data: BMP frames in one subfolder per label of LabelMap
+ *
+ * The clips are dealt out to the categories in turn. Each category has its own colors, stripe direction and motion,
+ * so the networks have something to learn, and the frames get seeded noise, so the same arguments always give the
+ * same data.
+ *
+ * Usage: SyntheticDataGenerator seq|nonseq dir count [width height frames gop categories seed]
+ * where count is the number of clips (seq) or frames per category (nonseq).
+ */
+public class SyntheticDataGenerator {
+
+    public static final String FILE_NAME_STANDARD = "sportclip_%d";
+
+    private final int width;
+    private final int height;
+    private final int nrOfFrames;
+    private final int gop;
+    private final int nrOfCategories;
+    private final long seed;
+
+    /**
+     * @param width The width of the frames
+     * @param height The height of the frames
+     * @param nrOfFrames The number of frames of each clip
+     * @param gop The number of frames between two keyframes of the clips
+     * @param nrOfCategories The number of categories
+     * @param seed The seed of the noise
+     */
+    public SyntheticDataGenerator(int width, int height, int nrOfFrames, int gop, int nrOfCategories, long seed) {
+        this.width = width;
+        this.height = height;
+        this.nrOfFrames = nrOfFrames;
+        this.gop = gop;
+        this.nrOfCategories = nrOfCategories;
+        this.seed = seed;
+    }
+
+    /**
+     * Writes the clips and label files of sequential data. Existing files are overwritten.
+     * @param dir The data folder
+     * @param startIdx The number of the first clip
+     * @param nrOfClips The number of clips
+     * @throws IOException
+     */
+    public void writeSequentialData(File dir, int startIdx, int nrOfClips) throws IOException {
+        if(!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        for(int i = startIdx; i < startIdx + nrOfClips; i++) {
+            int category = i % nrOfCategories;
+            String name = String.format(FILE_NAME_STANDARD, i);
+            writeClip(new File(dir, name + ".mp4"), category, i);
+            writeLabels(new File(dir, name + ".txt"), category);
+        }
+    }
+
+    /**
+     * Writes the frames of non-sequential data, named frame_%d.bmp, into one subfolder per category
+     * @param dir The data folder
+     * @param framesPerCategory The number of frames of each category
+     * @throws IOException
+     */
+    public void writeNonSequentialData(File dir, int framesPerCategory) throws IOException {
+        for(int category = 0; category < nrOfCategories; category++) {
+            File labelDir = new File(dir, LabelMap.labels.get(category));
+            if(!labelDir.isDirectory() && !labelDir.mkdirs()) {
+                throw new IOException("Could not create " + labelDir);
+            }
+            for(int i = 0; i < framesPerCategory; i++) {
+                /*Frames of different clips of the category, as if sampled from the sequential data*/
+                Picture8Bit p = frame(category, i, i % nrOfFrames);
+                File f = new File(labelDir, "frame_" + i + ".bmp");
+                if(!ImageIO.write(AWTUtil.toBufferedImage8Bit(p), "bmp", f)) {
+                    throw new IOException("No BMP writer for " + f);
+                }
+            }
+        }
+    }
+
+    /**
+     * Encodes a clip
+     * @param f The mp4 file
+     * @param category The category of the clip
+     * @param clip The number of the clip, which seeds the noise
+     * @throws IOException
+     */
+    public void writeClip(File f, int category, int clip) throws IOException {
+        SequenceEncoder8Bit encoder = SequenceEncoder8Bit.createSequenceEncoder8Bit(f, 25);
+        encoder.getEncoder().setKeyInterval(gop);
+        for(int i = 0; i < nrOfFrames; i++) {
+            encoder.encodeNativeFrame(frame(category, clip, i));
+        }
+        encoder.finish();
+    }
+
+    /**
+     * Writes a label file with the category once per frame
+     * @param f The txt file
+     * @param category The category
+     * @throws IOException
+     */
+    public void writeLabels(File f, int category) throws IOException {
+        PrintWriter out = new PrintWriter(f);
+        try {
+            for(int i = 0; i < nrOfFrames; i++) {
+                out.println(category);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @param category The category of the clip
+     * @param clip The number of the clip
+     * @param index The number of the frame in the clip
+     * @return An RGB frame
+     */
+    public Picture8Bit frame(int category, int clip, int index) {
+        Picture8Bit p = Picture8Bit.create(width, height, ColorSpace.RGB);
+        byte[] data = p.getPlaneData(0);
+        Random rand = new Random(seed * 1000003 + clip * 1009 + index);
+        /*Colors, stripe direction and speed of the category, shifted per clip*/
+        int r = (category * 97) & 255;
+        int g = (category * 53 + 80) & 255;
+        int b = (category * 151 + 160) & 255;
+        int dx = category % 3;
+        int dy = (category / 3) % 3 + 1;
+        int speed = category % 4 + 1;
+        int phase = clip * 7 + index * speed;
+        for(int y = 0; y < height; y++) {
+            for(int x = 0; x < width; x++) {
+                int stripe = ((x * dx + y * dy + phase) >> 3) & 1;
+                int shade = stripe == 0 ? 0 : 64;
+                int noise = rand.nextInt(24) - 12;
+                int i = (y * width + x) * 3;
+                /*JCodec stores [0..255] as [-128, 127]*/
+                data[i] = (byte) (clamp(r + shade + noise) - 128);
+                data[i + 1] = (byte) (clamp(g + shade + noise) - 128);
+                data[i + 2] = (byte) (clamp(b - shade + noise) - 128);
+            }
+        }
+        return p;
+    }
+
+    private static int clamp(int v) {
+        return v < 0 ? 0 : (v > 255 ? 255 : v);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 3) {
+            System.out.println("Usage: SyntheticDataGenerator seq|nonseq dir count [width height frames gop categories seed]");
+            return;
+        }
+        int width = args.length > 3 ? Integer.parseInt(args[3]) : 320;
+        int height = args.length > 4 ? Integer.parseInt(args[4]) : 240;
+        int frames = args.length > 5 ? Integer.parseInt(args[5]) : 100;
+        int gop = args.length > 6 ? Integer.parseInt(args[6]) : 25;
+        int categories = args.length > 7 ? Integer.parseInt(args[7]) : LabelMap.labels.size();
+        long seed = args.length > 8 ? Long.parseLong(args[8]) : 0;
+        SyntheticDataGenerator generator = new SyntheticDataGenerator(width, height, frames, gop, categories, seed);
+        int count = Integer.parseInt(args[2]);
+        if(args[0].equals("seq")) {
+            generator.writeSequentialData(new File(args[1]), 0, count);
+        } else {
+            generator.writeNonSequentialData(new File(args[1]), count);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+import org.jcodec.common.model.ColorSpace;
+import org.jcodec.common.model.Picture8Bit;
+import org.jcodec.scale.ColorUtil;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Deterministic synthetic inputs for the benchmarks, so that they run without the video data. The frames are the
+ * striped, noisy frames of SyntheticDataGenerator, which give the encoder and the resampling roughly the work of a
+ * real clip.
+ */
+public class SyntheticInputs {
+
+    /**
+     * @param width The width of the frame
+     * @param height The height of the frame
+     * @param index The number of the frame, which moves the stripes
+     * @return An RGB frame
+     */
+    public static Picture8Bit rgbFrame(int width, int height, int index) {
+        return new SyntheticDataGenerator(width, height, index + 1, 25, 1, 0).frame(0, 0, index);
+    }
+
+    /**
+     * @param width The width of the frame
+     * @param height The height of the frame
+     * @param index The number of the frame
+     * @return The frame of rgbFrame in YUV420J, the color space of the decoded clips
+     */
+    public static Picture8Bit yuvFrame(int width, int height, int index) {
+        Picture8Bit rgb = rgbFrame(width, height, index);
+        Picture8Bit yuv = Picture8Bit.create(width, height, ColorSpace.YUV420J);
+        ColorUtil.getTransform8Bit(ColorSpace.RGB, ColorSpace.YUV420J).transform(rgb, yuv);
+        return yuv;
+    }
+
+    /**
+     * Encodes a clip of synthetic frames as H.264 in mp4
+     * @param width The width of the clip
+     * @param height The height of the clip
+     * @param nrOfFrames The number of frames
+     * @return The mp4 file content
+     * @throws IOException
+     */
+    public static byte[] clip(int width, int height, int nrOfFrames) throws IOException {
+        File f = File.createTempFile("synthetic_clip", ".mp4");
+        try {
+            new SyntheticDataGenerator(width, height, nrOfFrames, 25, 1, 0).writeClip(f, 0, 0);
+            return Files.readAllBytes(f.toPath());
+        } finally {
+            f.delete();
+        }
+    }
+
+    /**
+     * @param seed The seed of the values
+     * @param shape The shape of the array
+     * @return An array of uniform values in [0,1)
+     */
+    public static INDArray uniform(long seed, int... shape) {
+        Nd4j.getRandom().setSeed(seed);
+        return Nd4j.rand(shape);
+    }
+}
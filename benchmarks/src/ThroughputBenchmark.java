@@ -0,0 +1,239 @@
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * End-to-end throughput of the training and evaluation pipelines on synthetic data (see SyntheticDataGenerator), so
+ * that frames/sec can be compared across changes on any machine. For each model, one epoch is trained to warm up,
+ * then one training epoch and one evaluation pass are timed, each with the stage metrics of PipelineMetrics. Models 1
+ * and 2 read the BMP frames of the non-sequential data, model 3 decodes the clips of the sequential data and is
+ * evaluated on held-out clips.
+ *
+ * The report is a JSON object with the environment, the configuration and, per model, the examples, frames,
+ * seconds, rates and stage metrics of the training and the evaluation.
+ *
+ * Usage: ThroughputBenchmark [dataDir [report [models]]], e.g. ThroughputBenchmark synthetic_data report.json 1,3
+ * The data is generated in dataDir if it is not there.
+ */
+public class ThroughputBenchmark {
+
+    private static final int video_height = 168;
+    private static final int video_width = 168;
+    private static final int channels = 3;
+    private static final int minibatchsize = 16;
+    private static final int nrOfCategories = 11;
+
+    /*Synthetic data: training clips of the sequential data (followed by as many held-out testing clips), frames per
+    category of the non-sequential data, size, length and keyframe interval of the clips*/
+    private static final int nrOfClips = 88;
+    private static final int framesPerCategory = 32;
+    private static final int clipWidth = 320;
+    private static final int clipHeight = 240;
+    private static final int clipFrames = 30;
+    private static final int gop = 25;
+    private static final long seed = 0;
+
+    /*Non-sequential data parameters: percentage of the frames used for training, the rest is evaluated*/
+    private static final String[] allowedExtensions = {"bmp"};
+    private static final int trainingPercentage = 80;
+
+    /*Sequential data parameters*/
+    private static final int startFrame = 0;
+    private static final int nrOfFramesPerVideo = 10;
+    private static final int decodeWorkers = Runtime.getRuntime().availableProcessors();
+    private static final int prefetchDepth = 2;
+
+    public static void main(String[] args) throws Exception {
+        File dataDir = new File(args.length > 0 ? args[0] : "synthetic_data");
+        File reportFile = new File(args.length > 1 ? args[1] : "throughput_report.json");
+        String[] models = (args.length > 2 ? args[2] : "1,2,3").split(",");
+
+        File seqDir = new File(dataDir, "sequential");
+        File nonSeqDir = new File(dataDir, "nonsequential");
+        generateData(seqDir, nonSeqDir);
+
+        Map<String, Object> report = new LinkedHashMap<String, Object>();
+        report.put("environment", getEnvironment());
+        report.put("configuration", getConfiguration());
+        Map<String, Object> results = new LinkedHashMap<String, Object>();
+        report.put("models", results);
+
+        PipelineMetrics.startCollecting();
+        for(String m : models) {
+            int model = Integer.parseInt(m.trim());
+            System.out.println("Model " + model);
+            results.put("model" + model, run(model, seqDir, nonSeqDir));
+        }
+        PipelineMetrics.stopReporting();
+
+        PrintWriter out = new PrintWriter(reportFile);
+        try {
+            out.println(toJson(report));
+        } finally {
+            out.close();
+        }
+        System.out.println("Report written to " + reportFile);
+    }
+
+    /**
+     * Generates the data that is not there yet
+     */
+    private static void generateData(File seqDir, File nonSeqDir) throws IOException {
+        SyntheticDataGenerator generator = new SyntheticDataGenerator(clipWidth, clipHeight, clipFrames, gop,
+                nrOfCategories, seed);
+        String last = String.format(SyntheticDataGenerator.FILE_NAME_STANDARD, nrOfClips - 1);
+        if(!new File(seqDir, last + ".txt").exists()) {
+            System.out.println("Generating " + nrOfClips + " training clips in " + seqDir);
+            generator.writeSequentialData(seqDir, 0, nrOfClips);
+        }
+        /*Held-out clips for the evaluation, so that the accuracy is not measured on the training clips*/
+        last = String.format(SyntheticDataGenerator.FILE_NAME_STANDARD, 2 * nrOfClips - 1);
+        if(!new File(seqDir, last + ".txt").exists()) {
+            System.out.println("Generating " + nrOfClips + " testing clips in " + seqDir);
+            generator.writeSequentialData(seqDir, nrOfClips, nrOfClips);
+        }
+        File lastFrame = new File(new File(nonSeqDir, LabelMap.labels.get(nrOfCategories - 1)),
+                "frame_" + (framesPerCategory - 1) + ".bmp");
+        if(!lastFrame.exists()) {
+            System.out.println("Generating " + framesPerCategory + " frames per category in " + nonSeqDir);
+            generator.writeNonSequentialData(nonSeqDir, framesPerCategory);
+        }
+    }
+
+    /**
+     * Trains a model for a warm-up epoch, then times a training epoch and an evaluation pass
+     * @return The results of the training and the evaluation
+     */
+    private static Map<String, Object> run(int model, File seqDir, File nonSeqDir) throws Exception {
+        MultiLayerConfiguration conf;
+        if(model == 1) {
+            conf = NetworkModels.getModel1(video_height, video_width, channels, nrOfCategories);
+        } else if(model == 2) {
+            conf = NetworkModels.getModel2(video_height, video_width, channels, nrOfCategories);
+        } else {
+            conf = NetworkModels.getModel3(video_height, video_width, channels, nrOfCategories);
+        }
+        MultiLayerNetwork network = new MultiLayerNetwork(conf);
+        network.init();
+
+        boolean seqData = model == 3;
+        DataSetIterator trainingData, testingData;
+        if(seqData) {
+            trainingData = DataLoader.getDirectSequentialData(seqDir.getPath(),
+                    SyntheticDataGenerator.FILE_NAME_STANDARD, 0, nrOfClips, minibatchsize, startFrame,
+                    nrOfFramesPerVideo, video_height, video_width, nrOfCategories, decodeWorkers, prefetchDepth,
+                    PixelScaling.UNIT);
+            testingData = DataLoader.getDirectSequentialData(seqDir.getPath(),
+                    SyntheticDataGenerator.FILE_NAME_STANDARD, nrOfClips, nrOfClips, minibatchsize, startFrame,
+                    nrOfFramesPerVideo, video_height, video_width, nrOfCategories, decodeWorkers, prefetchDepth,
+                    PixelScaling.UNIT);
+        } else {
+            DataSetIterator[] data = DataLoader.getNonSequentialData(nonSeqDir.getPath(), allowedExtensions,
+                    video_height, video_width, channels, minibatchsize, trainingPercentage, nrOfCategories);
+            trainingData = data[0];
+            testingData = data[1];
+        }
+        int framesPerExample = seqData ? nrOfFramesPerVideo : 1;
+
+        /*Warm-up epoch*/
+        NetworkTrainer.train(network, trainingData, 1);
+
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        PipelineMetrics.takeReport();
+        long start = System.nanoTime();
+        NetworkTrainer.train(network, trainingData, 1);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Map<String, Double> metrics = PipelineMetrics.takeReport();
+        long examples = Math.round(get(metrics, PipelineMetrics.EXAMPLES + ".per_s") * metrics.get("period_s"));
+        result.put("training", getPhase(examples, examples * framesPerExample, seconds, metrics));
+
+        testingData.reset();
+        start = System.nanoTime();
+        ConfusionMatrix matrix = new ConfusionMatrix(nrOfCategories);
+        NetworkEvaluator.evaluate(network, testingData, matrix);
+        seconds = (System.nanoTime() - start) / 1e9;
+        metrics = PipelineMetrics.takeReport();
+        long frames = 0;
+        for(int i = 0; i < nrOfCategories; i++) {
+            frames += matrix.getNrOfFrames(i);
+        }
+        DataLoader.shutdown(trainingData);
+        DataLoader.shutdown(testingData);
+        Map<String, Object> evaluation = getPhase(frames / framesPerExample, frames, seconds, metrics);
+        evaluation.put("accuracy", matrix.getFrameAccuracy());
+        result.put("evaluation", evaluation);
+        return result;
+    }
+
+    private static double get(Map<String, Double> metrics, String name) {
+        Double v = metrics.get(name);
+        return v == null ? 0 : v;
+    }
+
+    private static Map<String, Object> getPhase(long examples, long frames, double seconds,
+                                                Map<String, Double> metrics) {
+        Map<String, Object> phase = new LinkedHashMap<String, Object>();
+        phase.put("examples", examples);
+        phase.put("frames", frames);
+        phase.put("seconds", seconds);
+        phase.put("examples_per_s", examples / seconds);
+        phase.put("frames_per_s", frames / seconds);
+        System.out.println(String.format("%d examples, %d frames in %.1f s: %.1f frames/s", examples, frames,
+                seconds, frames / seconds));
+        phase.put("metrics", metrics);
+        return phase;
+    }
+
+    private static Map<String, Object> getEnvironment() {
+        Map<String, Object> env = new LinkedHashMap<String, Object>();
+        env.put("time", System.currentTimeMillis());
+        env.put("java", System.getProperty("java.version"));
+        env.put("os", System.getProperty("os.name") + " " + System.getProperty("os.version"));
+        env.put("arch", System.getProperty("os.arch"));
+        env.put("processors", Runtime.getRuntime().availableProcessors());
+        env.put("max_memory", Runtime.getRuntime().maxMemory());
+        return env;
+    }
+
+    private static Map<String, Object> getConfiguration() {
+        Map<String, Object> conf = new LinkedHashMap<String, Object>();
+        conf.put("height", video_height);
+        conf.put("width", video_width);
+        conf.put("minibatch_size", minibatchsize);
+        conf.put("clips", nrOfClips);
+        conf.put("frames_per_category", framesPerCategory);
+        conf.put("clip_width", clipWidth);
+        conf.put("clip_height", clipHeight);
+        conf.put("clip_frames", clipFrames);
+        conf.put("gop", gop);
+        conf.put("frames_per_example", nrOfFramesPerVideo);
+        conf.put("decode_workers", decodeWorkers);
+        conf.put("prefetch_depth", prefetchDepth);
+        return conf;
+    }
+
+    private static String toJson(Object value) {
+        if(value instanceof Map) {
+            StringBuilder json = new StringBuilder("{");
+            for(Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                json.append(json.length() == 1 ? "" : ",").append('"').append(e.getKey()).append("\":")
+                        .append(toJson(e.getValue()));
+            }
+            return json.append('}').toString();
+        }
+        if(value instanceof Double) {
+            double d = (Double) value;
+            return Double.isNaN(d) || Double.isInfinite(d) ? "null" : String.valueOf(d);
+        }
+        if(value instanceof Number || value instanceof Boolean) {
+            return String.valueOf(value);
+        }
+        return '"' + String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+}
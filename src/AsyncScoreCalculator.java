@@ -0,0 +1,232 @@
+import org.deeplearning4j.earlystopping.scorecalc.ScoreCalculator;
+import org.deeplearning4j.nn.api.Updater;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.INDArrayIndex;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Early stopping score calculator which scores a fixed random subset of the testing data, optionally on a background
+ * thread while the training continues. The score is the average loss of the examples, like
+ * DataSetLossCalculator(testData, true).
+ *
+ * The subset is drawn (reservoir sampling with a fixed seed) the first time a score is calculated and is then kept in
+ * memory, so the testing data is only read (decoded) once per training run. Each example is kept as a copy of its
+ * features, e.g. 10 frames of 3x168x168 floats (3.4 MB) for the sequential data.
+ *
+ * submit() copies the parameters of the network into a snapshot network and scores the snapshot on a background
+ * thread. The snapshot is kept until the score has been taken with awaitScore(), so the network that got the score
+ * can be saved as the best model afterwards (see getSnapshot()). Only one evaluation is in flight at a time.
+ */
+public class AsyncScoreCalculator implements ScoreCalculator<MultiLayerNetwork> {
+
+    private final transient DataSetIterator testData;
+    private final int nrOfExamples;
+    private final long seed;
+    private transient List<DataSet> subset;
+
+    private transient ExecutorService executor;
+    private transient MultiLayerNetwork snapshot;
+    private transient Future<Double> pending;
+    private int pendingEpoch = -1;
+
+    /**
+     * @param testData The testing data
+     * @param nrOfExamples The number of examples in the subset, 0 to score all examples
+     * @param seed The seed of the subset
+     */
+    public AsyncScoreCalculator(DataSetIterator testData, int nrOfExamples, long seed) {
+        this.testData = testData;
+        this.nrOfExamples = nrOfExamples;
+        this.seed = seed;
+    }
+
+    /**
+     * Scores a network on the subset on the calling thread
+     * @param network The network
+     * @return The average loss of the examples of the subset
+     */
+    @Override
+    public double calculateScore(MultiLayerNetwork network) {
+        long start = PipelineMetrics.start();
+        double lossSum = 0;
+        int exCount = 0;
+        for(DataSet ds : getSubset()) {
+            lossSum += network.score(ds) * ds.numExamples();
+            exCount += ds.numExamples();
+        }
+        PipelineMetrics.stop(PipelineMetrics.EVALUATE, start);
+        return lossSum / exCount;
+    }
+
+    /**
+     * Starts scoring a copy of the parameters (and updater state) of a network in the background. The network can be
+     * trained further as soon as this method returns.
+     * @param network The network
+     * @param epoch The epoch the parameters are from
+     * @throws IllegalStateException If the score of the previous evaluation has not been taken
+     */
+    public void submit(MultiLayerNetwork network, int epoch) {
+        if(pending != null) {
+            throw new IllegalStateException("The score of epoch " + pendingEpoch + " has not been taken");
+        }
+        if(snapshot == null) {
+            snapshot = network.clone();
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "AsyncScoreCalculator");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        } else {
+            snapshot.params().assign(network.params());
+            /*The updater state is copied as well since the snapshot may be saved as the best model*/
+            Updater updater = network.getUpdater();
+            if(updater != null && updater.getStateViewArray() != null
+                    && snapshot.getUpdater().getStateViewArray() != null) {
+                snapshot.getUpdater().getStateViewArray().assign(updater.getStateViewArray());
+            }
+        }
+        pendingEpoch = epoch;
+        pending = executor.submit(new Callable<Double>() {
+            @Override
+            public Double call() {
+                return calculateScore(snapshot);
+            }
+        });
+    }
+
+    /**
+     * @return True if an evaluation has been submitted and its score has not been taken
+     */
+    public boolean hasPending() {
+        return pending != null;
+    }
+
+    /**
+     * @return The epoch of the submitted evaluation
+     */
+    public int getPendingEpoch() {
+        return pendingEpoch;
+    }
+
+    /**
+     * Waits for the submitted evaluation to finish
+     * @return The score of the snapshot
+     */
+    public double awaitScore() {
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pending = null;
+        }
+    }
+
+    /**
+     * @return The network with the parameters of the last submitted evaluation
+     */
+    public MultiLayerNetwork getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Stops the background thread, after the running evaluation
+     */
+    public void close() {
+        if(executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @return The subset of the testing data in minibatches of the size of the testing data
+     */
+    private synchronized List<DataSet> getSubset() {
+        if(subset != null) {
+            return subset;
+        }
+        Random random = new Random(seed);
+        List<DataSet> examples = new ArrayList<DataSet>();
+        int seen = 0;
+        testData.reset();
+        while(testData.hasNext()) {
+            DataSet ds = testData.next();
+            for(int i = 0; i < ds.numExamples(); i++) {
+                if(nrOfExamples <= 0 || examples.size() < nrOfExamples) {
+                    examples.add(getExample(ds, i));
+                } else {
+                    int j = random.nextInt(seen + 1);
+                    if(j < nrOfExamples) {
+                        examples.set(j, getExample(ds, i));
+                    }
+                }
+                seen++;
+            }
+        }
+        testData.reset();
+
+        int miniBatchSize = Math.max(1, testData.batch());
+        subset = new ArrayList<DataSet>();
+        for(int i = 0; i < examples.size(); i += miniBatchSize) {
+            subset.add(merge(examples.subList(i, Math.min(examples.size(), i + miniBatchSize))));
+        }
+        System.out.println("Early stopping score on " + examples.size() + " of " + seen + " testing examples");
+        return subset;
+    }
+
+    /**
+     * @return A copy of example i of a minibatch
+     */
+    private static DataSet getExample(DataSet ds, int i) {
+        return new DataSet(getRow(ds.getFeatureMatrix(), i), getRow(ds.getLabels(), i),
+                getRow(ds.getFeaturesMaskArray(), i), getRow(ds.getLabelsMaskArray(), i));
+    }
+
+    private static INDArray getRow(INDArray array, int i) {
+        if(array == null) {
+            return null;
+        }
+        INDArrayIndex[] indices = new INDArrayIndex[array.rank()];
+        indices[0] = NDArrayIndex.interval(i, i + 1);
+        for(int d = 1; d < indices.length; d++) {
+            indices[d] = NDArrayIndex.all();
+        }
+        return array.get(indices).dup();
+    }
+
+    private static DataSet merge(List<DataSet> examples) {
+        INDArray[] features = new INDArray[examples.size()];
+        INDArray[] labels = new INDArray[examples.size()];
+        INDArray[] featuresMasks = new INDArray[examples.size()];
+        INDArray[] labelsMasks = new INDArray[examples.size()];
+        for(int i = 0; i < examples.size(); i++) {
+            features[i] = examples.get(i).getFeatures();
+            labels[i] = examples.get(i).getLabels();
+            featuresMasks[i] = examples.get(i).getFeaturesMaskArray();
+            labelsMasks[i] = examples.get(i).getLabelsMaskArray();
+        }
+        return new DataSet(Nd4j.concat(0, features), Nd4j.concat(0, labels),
+                featuresMasks[0] == null ? null : Nd4j.concat(0, featuresMasks),
+                labelsMasks[0] == null ? null : Nd4j.concat(0, labelsMasks));
+    }
+}
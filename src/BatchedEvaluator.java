@@ -0,0 +1,243 @@
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates video clips in batches that span several clips. The frame windows (sequential model) or frames
+ * (non-sequential model) of the added clips are collected until a batch is full, the network is run once for the
+ * whole batch and the outputs are routed back to the windows of each clip, where the frames classified as each
+ * category are counted. This keeps the matrix
+ * multiplications and convolutions busy, which a batch of a single clip does not.
+ *
+ * The results are passed to a ClipListener in the order the clips were added, as soon as all windows of a clip have
+ * been evaluated.
+ */
+public class BatchedEvaluator {
+
+    private final MultiLayerNetwork model;
+    private final QuantizedNetwork quantized;
+    private final int batchSize;
+    private final int nrOfCategories;
+    private final ClipListener listener;
+
+    private final List<Pending> pending = new ArrayList<Pending>();
+    private int pendingRows = 0;
+    private final LinkedHashMap<Integer, ClipResult> clips = new LinkedHashMap<Integer, ClipResult>();
+
+    private int nrOfClips = 0;
+    private long startTime = -1;
+    private long endTime = -1;
+
+    /**
+     * @param model The network model used for evaluation
+     * @param batchSize The number of windows (sequential) or frames (non-sequential) run through the network at once
+     * @param nrOfCategories The number of possible labels/categories
+     * @param listener Receives the evaluations of each clip
+     */
+    public BatchedEvaluator(MultiLayerNetwork model, int batchSize, int nrOfCategories, ClipListener listener) {
+        this(model, null, batchSize, nrOfCategories, listener);
+    }
+
+    /**
+     * @param quantized The int8 network used for evaluation (see QuantizedNetwork)
+     * @param batchSize The number of windows (sequential) or frames (non-sequential) run through the network at once
+     * @param nrOfCategories The number of possible labels/categories
+     * @param listener Receives the evaluations of each clip
+     */
+    public BatchedEvaluator(QuantizedNetwork quantized, int batchSize, int nrOfCategories, ClipListener listener) {
+        this(null, quantized, batchSize, nrOfCategories, listener);
+    }
+
+    private BatchedEvaluator(MultiLayerNetwork model, QuantizedNetwork quantized, int batchSize, int nrOfCategories,
+                             ClipListener listener) {
+        this.model = model;
+        this.quantized = quantized;
+        this.batchSize = batchSize;
+        this.nrOfCategories = nrOfCategories;
+        this.listener = listener;
+    }
+
+    /**
+     * Adds the frame windows of a clip for a sequential model. The windows are evaluated separately, each giving its
+     * own counts.
+     * @param clip The id of the clip, passed back to the listener
+     * @param category The correct category of the clip
+     * @param windows The feature array of each window, with the shape [1, channels*height*width, nrOfFrames]
+     */
+    public void addSeq(int clip, int category, INDArray[] windows) {
+        start();
+        clips.put(clip, new ClipResult(category, windows.length));
+        for(int w = 0; w < windows.length; w++) {
+            /*Windows of different lengths can not be in the same batch*/
+            if(!pending.isEmpty() && pending.get(0).features.size(2) != windows[w].size(2)) {
+                flush();
+            }
+            add(new Pending(clip, w, windows[w], true, null));
+        }
+    }
+
+    /**
+     * Adds the frames of a clip for a non-sequential model. All frames of the clip give one set of counts.
+     * @param clip The id of the clip, passed back to the listener
+     * @param category The correct category of the clip
+     * @param frames The feature array of the frames, with the shape [nrOfFrames, channels*height*width]
+     */
+    public void addNonSeq(int clip, int category, INDArray frames) {
+        addNonSeq(clip, category, frames, null);
+    }
+
+    /**
+     * Adds the frames of a clip for a non-sequential model, where each row stands for a number of frames (see
+     * ClipDecoder.decodeFrames with a FrameSelector). All frames of the clip give one set of counts.
+     * @param clip The id of the clip, passed back to the listener
+     * @param category The correct category of the clip
+     * @param frames The feature array of the frames, with the shape [rows, channels*height*width]
+     * @param weights The number of frames of each row, or null if each row is one frame
+     */
+    public void addNonSeq(int clip, int category, INDArray frames, int[] weights) {
+        start();
+        clips.put(clip, new ClipResult(category, 1));
+        add(new Pending(clip, 0, frames, false, weights));
+    }
+
+    /**
+     * Evaluates the remaining windows and frames. Must be called after the last clip has been added.
+     */
+    public void finish() {
+        flush();
+    }
+
+    private void start() {
+        if(startTime < 0) {
+            startTime = System.nanoTime();
+        }
+    }
+
+    private void add(Pending p) {
+        pending.add(p);
+        pendingRows += p.features.size(0);
+        if(pendingRows >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Runs the network on the pending windows or frames and hands the finished clips to the listener
+     */
+    private void flush() {
+        if(pending.isEmpty()) {
+            return;
+        }
+        INDArray[] features = new INDArray[pending.size()];
+        for(int i = 0; i < features.length; i++) {
+            features[i] = pending.get(i).features;
+        }
+        long start = PipelineMetrics.start();
+        INDArray batch = features.length == 1 ? features[0] : Nd4j.concat(0, features);
+        PipelineMetrics.stop(PipelineMetrics.BATCH, start);
+        start = PipelineMetrics.start();
+        INDArray predicted = quantized != null ? quantized.output(batch) : model.output(batch, false);
+        PipelineMetrics.stop(PipelineMetrics.EVALUATE, start);
+
+        /*Route the rows of the output back to the windows*/
+        int row = 0;
+        for(Pending p : pending) {
+            int rows = p.features.size(0);
+            ClipResult result = clips.get(p.clip);
+            INDArray output;
+            if(p.sequential) {
+                output = predicted.get(NDArrayIndex.interval(row, row + 1), NDArrayIndex.all(), NDArrayIndex.all());
+            } else {
+                output = predicted.get(NDArrayIndex.interval(row, row + rows), NDArrayIndex.all());
+            }
+            result.predictions[p.window] = p.weights == null
+                    ? ConfusionMatrix.countPredictions(output, nrOfCategories)
+                    : ConfusionMatrix.countPredictions(output, nrOfCategories, p.weights);
+            result.remaining--;
+            row += rows;
+        }
+        pending.clear();
+        pendingRows = 0;
+
+        /*Hand over the finished clips in the order they were added*/
+        Iterator<Map.Entry<Integer, ClipResult>> it = clips.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<Integer, ClipResult> e = it.next();
+            if(e.getValue().remaining > 0) {
+                break;
+            }
+            it.remove();
+            nrOfClips++;
+            PipelineMetrics.count(PipelineMetrics.CLIPS, 1);
+            endTime = System.nanoTime();
+            listener.clipEvaluated(e.getKey(), e.getValue().category, e.getValue().predictions);
+        }
+    }
+
+    /**
+     * @return The number of clips evaluated so far
+     */
+    public int getNrOfClips() {
+        return nrOfClips;
+    }
+
+    /**
+     * @return The number of clips evaluated per second, from the first added clip to the last evaluated clip
+     * (including the decoding done by the caller in between)
+     */
+    public double getClipsPerSecond() {
+        if(nrOfClips == 0) {
+            return 0;
+        }
+        return nrOfClips / ((endTime - startTime) / 1e9);
+    }
+
+    /**
+     * Receives the evaluations of a clip
+     */
+    public interface ClipListener {
+
+        /**
+         * @param clip The id of the clip
+         * @param category The correct category of the clip
+         * @param predictions The number of frames classified as each category, for each window (one for
+         *                    non-sequential clips)
+         */
+        void clipEvaluated(int clip, int category, int[][] predictions);
+    }
+
+    private static class Pending {
+        private final int clip;
+        private final int window;
+        private final INDArray features;
+        private final boolean sequential;
+        private final int[] weights;
+
+        private Pending(int clip, int window, INDArray features, boolean sequential, int[] weights) {
+            this.clip = clip;
+            this.window = window;
+            this.features = features;
+            this.sequential = sequential;
+            this.weights = weights;
+        }
+    }
+
+    private static class ClipResult {
+        private final int category;
+        private final int[][] predictions;
+        private int remaining;
+
+        private ClipResult(int category, int nrOfWindows) {
+            this.category = category;
+            this.predictions = new int[nrOfWindows][];
+            this.remaining = nrOfWindows;
+        }
+    }
+}
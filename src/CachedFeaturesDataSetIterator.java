@@ -0,0 +1,137 @@
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.List;
+
+/**
+ * DataSetIterator over the activations in a FeatureCache. Each minibatch holds the cached activations of the clips
+ * with the shape [miniBatch, featureSize, nrFrames] and one-hot labels per frame with the shape [miniBatch,
+ * nrOfCategories, nrFrames], i.e. the input and labels of the layers after the frozen layers of the cache.
+ */
+public class CachedFeaturesDataSetIterator implements DataSetIterator {
+
+    private final FeatureCache cache;
+    private final int miniBatchSize;
+    private final int nExamples;
+    private final int nrFrames;
+    private final int featureSize;
+    private final int nrOfCategories;
+
+    private DataSetPreProcessor preProcessor;
+    private int cursor = 0;
+
+    /**
+     * @param cache The feature cache
+     * @param miniBatchSize The minibatch size
+     */
+    public CachedFeaturesDataSetIterator(FeatureCache cache, int miniBatchSize) {
+        this.cache = cache;
+        this.miniBatchSize = miniBatchSize;
+        this.nExamples = cache.getNrOfClips();
+        this.nrFrames = cache.getNrFrames();
+        this.featureSize = cache.getFeatureSize();
+        this.nrOfCategories = cache.getNrOfCategories();
+    }
+
+    @Override
+    public DataSet next(int num) {
+        int n = Math.min(num, nExamples - cursor);
+        long start = PipelineMetrics.start();
+        float[] features = new float[n * featureSize * nrFrames];
+        float[] labels = new float[n * nrOfCategories * nrFrames];
+        for(int i = 0; i < n; i++) {
+            int clip = cursor + i;
+            for(int t = 0; t < nrFrames; t++) {
+                cache.readFrame(clip, t, features, i * featureSize * nrFrames + t, nrFrames);
+                labels[(i * nrOfCategories + cache.getCategory(clip, t)) * nrFrames + t] = 1;
+            }
+        }
+        PipelineMetrics.stop(PipelineMetrics.BATCH, start);
+        cursor += n;
+        PipelineMetrics.count(PipelineMetrics.CLIPS, n);
+
+        DataSet ds = new DataSet(Nd4j.create(features, new int[] {n, featureSize, nrFrames}, 'c'),
+                Nd4j.create(labels, new int[] {n, nrOfCategories, nrFrames}, 'c'));
+        if(preProcessor != null) {
+            preProcessor.preProcess(ds);
+        }
+        return ds;
+    }
+
+    @Override
+    public int totalExamples() {
+        return nExamples;
+    }
+
+    @Override
+    public int inputColumns() {
+        return featureSize;
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return nrOfCategories;
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        cursor = 0;
+    }
+
+    @Override
+    public int batch() {
+        return miniBatchSize;
+    }
+
+    @Override
+    public int cursor() {
+        return cursor;
+    }
+
+    @Override
+    public int numExamples() {
+        return nExamples;
+    }
+
+    @Override
+    public void setPreProcessor(DataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return LabelMap.labels;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return cursor < nExamples;
+    }
+
+    @Override
+    public DataSet next() {
+        return next(miniBatchSize);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,138 @@
+import org.datavec.api.conf.Configuration;
+import org.datavec.api.records.Record;
+import org.datavec.api.records.SequenceRecord;
+import org.datavec.api.records.metadata.RecordMetaData;
+import org.datavec.api.records.reader.BaseRecordReader;
+import org.datavec.api.records.reader.SequenceRecordReader;
+import org.datavec.api.split.InputSplit;
+import org.datavec.api.writable.Writable;
+import org.datavec.common.RecordConverter;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sequence record reader that serves the frames of a FrameCache instead of decoding the video files. The sequences
+ * are the same as the ones produced by the SequentialFramesRecordReader with ravel enabled, so it can be used with
+ * the same label reader and iterator. The input split should contain the cache file. A PixelScaling can be set to
+ * scale the pixel values while they are read from the cache, instead of with a preprocessor on the minibatch.
+ */
+public class CachedFramesRecordReader extends BaseRecordReader implements SequenceRecordReader {
+
+    private Configuration conf;
+    private FrameCache cache;
+    private PixelScaling scaling = PixelScaling.NONE;
+    private int clip = 0;
+
+    public CachedFramesRecordReader() {
+    }
+
+    public void initialize(InputSplit split) throws IOException, InterruptedException {
+        URI[] locations = split.locations();
+        if(locations.length != 1) {
+            throw new IllegalArgumentException("The input split should contain exactly one frame cache file");
+        }
+        this.cache = new FrameCache(new File(locations[0]));
+        this.clip = 0;
+    }
+
+    public void initialize(Configuration conf, InputSplit split) throws IOException, InterruptedException {
+        this.setConf(conf);
+        this.initialize(split);
+    }
+
+    public List<List<Writable>> sequenceRecord() {
+        List<List<Writable>> record = new ArrayList<List<Writable>>(cache.getNrFrames());
+        byte[] frameBytes = new byte[cache.getFrameSize()];
+        float[] frame = new float[cache.getFrameSize()];
+        int planeSize = cache.getFrameHeight() * cache.getFrameWidth();
+        for(int t = 0; t < cache.getNrFrames(); t++) {
+            cache.readFrame(clip, t, frameBytes);
+            for(int c = 0, j = 0; c < 3; c++) {
+                float multiplier = scaling.getMultiplier(c);
+                float offset = scaling.getOffset(c);
+                for(int end = j + planeSize; j < end; j++) {
+                    frame[j] = (frameBytes[j] & 0xFF) * multiplier + offset;
+                }
+            }
+            record.add(RecordConverter.toRecord(Nd4j.create(frame)));
+        }
+        clip++;
+        return record;
+    }
+
+    public List<List<Writable>> sequenceRecord(URI uri, DataInputStream dataInputStream) throws IOException {
+        throw new UnsupportedOperationException("sequenceRecord(URI,DataInputStream) not supported for CachedFramesRecordReader");
+    }
+
+    @Override
+    public SequenceRecord nextSequence() {
+        return null;
+    }
+
+    @Override
+    public SequenceRecord loadSequenceFromMetaData(RecordMetaData recordMetaData) throws IOException {
+        return null;
+    }
+
+    @Override
+    public List<SequenceRecord> loadSequenceFromMetaData(List<RecordMetaData> list) throws IOException {
+        return null;
+    }
+
+    public List<Writable> next() {
+        throw new UnsupportedOperationException("next() not supported for CachedFramesRecordReader (use: sequenceRecord)");
+    }
+
+    public boolean hasNext() {
+        return clip < cache.getNrOfClips();
+    }
+
+    public List<String> getLabels() {
+        return null;
+    }
+
+    public void reset() {
+        this.clip = 0;
+    }
+
+    public List<Writable> record(URI uri, DataInputStream dataInputStream) throws IOException {
+        throw new UnsupportedOperationException("record(URI,DataInputStream) not supported for CachedFramesRecordReader");
+    }
+
+    public Record nextRecord() {
+        throw new UnsupportedOperationException("nextRecord() not supported for CachedFramesRecordReader (use: sequenceRecord)");
+    }
+
+    public Record loadFromMetaData(RecordMetaData recordMetaData) throws IOException {
+        return null;
+    }
+
+    public List<Record> loadFromMetaData(List<RecordMetaData> list) throws IOException {
+        return null;
+    }
+
+    public void close() throws IOException {
+    }
+
+    public void setConf(Configuration conf) {
+        this.conf = conf;
+    }
+
+    public Configuration getConf() {
+        return conf;
+    }
+
+    public void setScaling(PixelScaling scaling) {
+        this.scaling = scaling;
+    }
+
+    public FrameCache getCache() {
+        return cache;
+    }
+}
@@ -0,0 +1,463 @@
+import org.jcodec.api.FrameGrab8Bit;
+import org.jcodec.api.JCodecException;
+import org.jcodec.common.io.NIOUtils;
+import org.jcodec.common.io.SeekableByteChannel;
+import org.jcodec.common.model.Picture8Bit;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Methods for decoding frames from a video clip directly into feature arrays. The frames are converted with a
+ * FrameConverter into the same layout as the SequentialFramesRecordReader produces, so the features can be fed to
+ * networks trained on the sequential data. Apart from the keyframe index of each clip (see KeyframeIndex) nothing
+ * is written to disk, so several clips can be decoded at the same time.
+ */
+public class ClipDecoder {
+
+    /**
+     * Decodes several frame windows from a video clip. The clip is only decoded once, from the first frame of the
+     * earliest window to the last frame of the latest window, and each decoded frame is converted into every window
+     * that contains it. Frames that are not part of any window are decoded but not converted.
+     * @param f The video file
+     * @param windows The frame windows, each given as {startFrame, nrOfFrames}
+     * @param height The height of the frames in the feature arrays
+     * @param width The width of the frames in the feature arrays
+     * @param scaling The scaling applied to the pixel values
+     * @param mode The channel layout of the frames
+     * @return One feature array per window with the shape [1, frameSize, nrOfFrames], see InputMode.getFrameSize
+     * @throws IOException
+     * @throws JCodecException
+     */
+    public static INDArray[] decodeWindows(File f, int[][] windows, int height, int width, PixelScaling scaling,
+                                           InputMode mode) throws IOException, JCodecException {
+        FrameConverter converter = new FrameConverter(height, width, scaling, mode);
+        float[][] dst = new float[windows.length][];
+        int[] dstOffsets = new int[windows.length];
+        for(int w = 0; w < windows.length; w++) {
+            dst[w] = new float[converter.getFrameSize() * windows[w][1]];
+        }
+        decodeWindows(f, windows, converter, dst, dstOffsets);
+
+        INDArray[] features = new INDArray[windows.length];
+        for(int w = 0; w < windows.length; w++) {
+            features[w] = Nd4j.create(dst[w], new int[] {1, converter.getFrameSize(), windows[w][1]}, 'c');
+        }
+        return features;
+    }
+
+    /**
+     * Decodes several frame windows from a video clip into preallocated feature buffers. Frame t of window w is
+     * written to dst[w] starting at dstOffsets[w] + t with the window length as stride, which is the layout of one
+     * example of a [miniBatch, channels*height*width, nrOfFrames] array in 'c' order. A frame that cannot be decoded
+     * repeats the previous frame of its window (or stays zero if it is the first one) and is reported.
+     * @param f The video file
+     * @param windows The frame windows, each given as {startFrame, nrOfFrames}
+     * @param converter The converter used for the frames
+     * @param dst The feature buffer of each window
+     * @param dstOffsets The offset of each window in its feature buffer
+     * @return The numbers of the frames that could not be decoded
+     * @throws IOException
+     * @throws JCodecException
+     */
+    public static List<Integer> decodeWindows(File f, final int[][] windows, final FrameConverter converter,
+                                              final float[][] dst, final int[] dstOffsets)
+            throws IOException, JCodecException {
+        /*Find the range of frames covered by the windows*/
+        int firstFrame = Integer.MAX_VALUE;
+        int lastFrame = 0;
+        for(int w = 0; w < windows.length; w++) {
+            firstFrame = Math.min(firstFrame, windows[w][0]);
+            lastFrame = Math.max(lastFrame, windows[w][0] + windows[w][1]);
+        }
+
+        SeekableByteChannel channel = NIOUtils.readableChannel(f);
+        List<Integer> failed;
+        try {
+            failed = decodeRange(channel, KeyframeIndex.forFile(f), firstFrame, lastFrame,
+                    new WindowWriter(windows, converter, dst, dstOffsets));
+        } finally {
+            channel.close();
+        }
+        if(!failed.isEmpty()) {
+            System.err.println("Could not decode frames " + failed + " of " + f.getName());
+        }
+        return failed;
+    }
+
+    /**
+     * Decodes the frames [firstFrame, lastFrame) of a video clip and passes them to a handler. Decoding starts at
+     * the keyframe preceding the first frame, the frames before the first frame are decoded but not passed on. When
+     * a frame cannot be decoded, the decoder resyncs at the next keyframe; the frames up to that keyframe, and the
+     * frames after the end of the clip, are passed to the handler as missing. Decoding stops early if the handler
+     * returns false.
+     * @param channel The channel of the video
+     * @param index The keyframe index of the video
+     * @param firstFrame The first frame to be decoded
+     * @param lastFrame The frame after the last frame to be decoded
+     * @param handler The handler receiving the frames
+     * @return The numbers of the frames that could not be decoded
+     * @throws IOException
+     * @throws JCodecException
+     */
+    public static List<Integer> decodeRange(SeekableByteChannel channel, KeyframeIndex index, int firstFrame,
+                                            int lastFrame, FrameHandler handler) throws IOException, JCodecException {
+        List<Integer> failed = new ArrayList<Integer>();
+        int end = Math.min(lastFrame, index.getTotalFrames());
+        FrameGrab8Bit grab = FrameGrab8Bit.createFrameGrab8Bit(channel);
+
+        int i = index.keyframeAtOrBefore(firstFrame);
+        if(i != 0) {
+            grab.seekToFrameSloppy(i); /*Exact, since i is a keyframe*/
+        }
+        while(i < end) {
+            Picture8Bit p = null;
+            long start = PipelineMetrics.start();
+            try {
+                p = grab.getNativeFrame();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            PipelineMetrics.stop(PipelineMetrics.DECODE, start);
+            if(p != null) {
+                PipelineMetrics.count(PipelineMetrics.FRAMES, 1);
+                if(i >= firstFrame && !handler.frame(i, p)) {
+                    return failed;
+                }
+                i++;
+                continue;
+            }
+
+            /*Skip to the next keyframe, the frames before it depend on the one that failed*/
+            int next = index.keyframeAfter(i);
+            for(; i < next && i < end; i++) {
+                if(i >= firstFrame) {
+                    failed.add(i);
+                    if(!handler.missing(i)) {
+                        return failed;
+                    }
+                }
+            }
+            if(i < end) {
+                grab.seekToFrameSloppy(i);
+            }
+        }
+
+        for(i = Math.max(end, firstFrame); i < lastFrame; i++) {
+            failed.add(i);
+            if(!handler.missing(i)) {
+                return failed;
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * FrameHandler which writes the frames into the feature buffers of frame windows (see decodeWindows). A frame
+     * that cannot be decoded repeats the previous frame of its window. Subclasses can act on each window as soon as
+     * its last frame has been written by overriding windowDone.
+     */
+    public static class WindowWriter implements FrameHandler {
+        private final int[][] windows;
+        private final FrameConverter converter;
+        private final float[][] dst;
+        private final int[] dstOffsets;
+
+        /**
+         * @param windows The frame windows, each given as {startFrame, nrOfFrames}
+         * @param converter The converter used for the frames
+         * @param dst The feature buffer of each window
+         * @param dstOffsets The offset of each window in its feature buffer
+         */
+        public WindowWriter(int[][] windows, FrameConverter converter, float[][] dst, int[] dstOffsets) {
+            this.windows = windows;
+            this.converter = converter;
+            this.dst = dst;
+            this.dstOffsets = dstOffsets;
+        }
+
+        @Override
+        public boolean frame(int frameNumber, Picture8Bit p) {
+            /*Convert the frame into the windows containing it*/
+            for(int w = 0; w < windows.length; w++) {
+                if(frameNumber >= windows[w][0] && frameNumber < windows[w][0] + windows[w][1]) {
+                    converter.convert(p, dst[w], dstOffsets[w] + frameNumber - windows[w][0], windows[w][1]);
+                }
+            }
+            return windowsDone(frameNumber);
+        }
+
+        @Override
+        public boolean missing(int frameNumber) {
+            /*Repeat the previous time step of the windows containing the frame*/
+            int frameSize = converter.getFrameSize();
+            for(int w = 0; w < windows.length; w++) {
+                int t = frameNumber - windows[w][0];
+                if(t > 0 && t < windows[w][1]) {
+                    int o = dstOffsets[w] + t;
+                    for(int j = 0; j < frameSize; j++) {
+                        dst[w][o + j * windows[w][1]] = dst[w][o - 1 + j * windows[w][1]];
+                    }
+                }
+            }
+            return windowsDone(frameNumber);
+        }
+
+        private boolean windowsDone(int frameNumber) {
+            for(int w = 0; w < windows.length; w++) {
+                if(frameNumber == windows[w][0] + windows[w][1] - 1 && !windowDone(w)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Called when the last frame of a window has been written
+         * @param window The index of the window
+         * @return True to continue decoding, false to stop
+         */
+        protected boolean windowDone(int window) {
+            return true;
+        }
+    }
+
+    /**
+     * Receives the frames of a clip from decodeRange or decodeFrames, in frame order
+     */
+    public interface FrameHandler {
+
+        /**
+         * Called for a decoded frame. The picture is only valid until the next frame is decoded.
+         * @param frameNumber The number of the frame
+         * @param p The decoded frame
+         * @return True to continue decoding, false to stop
+         * @throws IOException
+         */
+        boolean frame(int frameNumber, Picture8Bit p) throws IOException;
+
+        /**
+         * Called for a frame that could not be decoded
+         * @param frameNumber The number of the frame
+         * @return True to continue decoding, false to stop
+         * @throws IOException
+         */
+        boolean missing(int frameNumber) throws IOException;
+    }
+
+    /**
+     * Decodes single frames from a video clip, e.g. for classification with a non-sequential model. The clip is
+     * opened once and decoded forward (see decodeFrames with a FrameHandler). A frame that cannot be decoded repeats
+     * the previous row (or stays zero if it is the first one) and is reported.
+     * @param f The video file
+     * @param frameNumbers The numbers of the frames to be decoded, in increasing order
+     * @param height The height of the frames in the feature array
+     * @param width The width of the frames in the feature array
+     * @param scaling The scaling applied to the pixel values
+     * @param mode The channel layout of the frames
+     * @return A feature array with the shape [frameNumbers.length, frameSize], one row per frame, see
+     * InputMode.getFrameSize
+     * @throws IOException
+     * @throws JCodecException
+     */
+    public static INDArray decodeFrames(File f, final int[] frameNumbers, int height, int width, PixelScaling scaling,
+                                        InputMode mode) throws IOException, JCodecException {
+        final FrameConverter converter = new FrameConverter(height, width, scaling, mode);
+        final int frameSize = converter.getFrameSize();
+        final float[] dst = new float[frameNumbers.length * frameSize];
+
+        SeekableByteChannel channel = NIOUtils.readableChannel(f);
+        List<Integer> failed;
+        try {
+            failed = decodeFrames(channel, KeyframeIndex.forFile(f), frameNumbers, new FrameHandler() {
+                private int row = 0;
+
+                @Override
+                public boolean frame(int frameNumber, Picture8Bit p) {
+                    converter.convert(p, dst, row * frameSize, 1);
+                    row++;
+                    return true;
+                }
+
+                @Override
+                public boolean missing(int frameNumber) {
+                    if(row > 0) {
+                        System.arraycopy(dst, (row - 1) * frameSize, dst, row * frameSize, frameSize);
+                    }
+                    row++;
+                    return true;
+                }
+            });
+        } finally {
+            channel.close();
+        }
+        if(!failed.isEmpty()) {
+            System.err.println("Could not decode frames " + failed + " of " + f.getName());
+        }
+        return Nd4j.create(dst, new int[] {frameNumbers.length, frameSize}, 'c');
+    }
+
+    /**
+     * Decodes single frames from a video clip like decodeFrames, but only converts the frames kept by a
+     * FrameSelector. A skipped frame, like a frame that cannot be decoded, is represented by the row of the frame
+     * before it, so the rows get weights: the number of requested frames each row stands for. Missing frames before
+     * the first decoded frame have no row and are left out.
+     * @param f The video file
+     * @param frameNumbers The numbers of the frames to be decoded, in increasing order
+     * @param height The height of the frames in the feature array
+     * @param width The width of the frames in the feature array
+     * @param scaling The scaling applied to the pixel values
+     * @param mode The channel layout of the frames
+     * @param selector Decides which frames are kept
+     * @param weights Receives the weight of each row, must have room for frameNumbers.length rows
+     * @return A feature array with the shape [rows, frameSize], one row per kept frame, or null if no frame could be
+     * decoded
+     * @throws IOException
+     * @throws JCodecException
+     */
+    public static INDArray decodeFrames(File f, final int[] frameNumbers, int height, int width, PixelScaling scaling,
+                                        InputMode mode, final FrameSelector selector, final int[] weights)
+            throws IOException, JCodecException {
+        final FrameConverter converter = new FrameConverter(height, width, scaling, mode);
+        final int frameSize = converter.getFrameSize();
+        final float[] dst = new float[frameNumbers.length * frameSize];
+        final int[] rows = {0};
+
+        SeekableByteChannel channel = NIOUtils.readableChannel(f);
+        List<Integer> failed;
+        try {
+            failed = decodeFrames(channel, KeyframeIndex.forFile(f), frameNumbers, new FrameHandler() {
+                @Override
+                public boolean frame(int frameNumber, Picture8Bit p) {
+                    if(!selector.select(p)) {
+                        /*A kept frame came before, so there is a row*/
+                        weights[rows[0] - 1]++;
+                        return true;
+                    }
+                    converter.convert(p, dst, rows[0] * frameSize, 1);
+                    weights[rows[0]] = 1;
+                    rows[0]++;
+                    return true;
+                }
+
+                @Override
+                public boolean missing(int frameNumber) {
+                    /*A missing first frame is skipped rather than classified as a blank frame*/
+                    if(rows[0] > 0) {
+                        weights[rows[0] - 1]++;
+                    }
+                    return true;
+                }
+            });
+        } finally {
+            channel.close();
+        }
+        if(!failed.isEmpty()) {
+            System.err.println("Could not decode frames " + failed + " of " + f.getName());
+        }
+        if(rows[0] == 0) {
+            return null;
+        }
+        float[] data = rows[0] == frameNumbers.length ? dst : Arrays.copyOf(dst, rows[0] * frameSize);
+        return Nd4j.create(data, new int[] {rows[0], frameSize}, 'c');
+    }
+
+    /**
+     * Decodes single frames of a video clip in one forward pass and passes them to a handler. Only the frames from
+     * the keyframe preceding each requested frame are decoded: if a keyframe lies between two requested frames the
+     * decoder seeks to it instead of decoding the frames in between. A requested keyframe therefore costs a single
+     * frame decode. When a frame cannot be decoded, the requested frames up to the next keyframe are passed to the
+     * handler as missing. Decoding stops early if the handler returns false.
+     * @param channel The channel of the video
+     * @param index The keyframe index of the video
+     * @param frameNumbers The numbers of the frames to be decoded, in increasing order
+     * @param handler The handler receiving the frames
+     * @return The numbers of the frames that could not be decoded
+     * @throws IOException
+     * @throws JCodecException
+     */
+    public static List<Integer> decodeFrames(SeekableByteChannel channel, KeyframeIndex index, int[] frameNumbers,
+                                             FrameHandler handler) throws IOException, JCodecException {
+        List<Integer> failed = new ArrayList<Integer>();
+        FrameGrab8Bit grab = FrameGrab8Bit.createFrameGrab8Bit(channel);
+        int position = 0; /*The frame returned by the next call to getNativeFrame*/
+        int brokenUntil = -1; /*Frames before this keyframe depend on a frame that could not be decoded*/
+
+        for(int target : frameNumbers) {
+            if(target >= index.getTotalFrames() || target < brokenUntil) {
+                failed.add(target);
+                if(!handler.missing(target)) {
+                    break;
+                }
+                continue;
+            }
+            int keyframe = index.keyframeAtOrBefore(target);
+            if(keyframe > position || target < position) {
+                grab.seekToFrameSloppy(keyframe);
+                position = keyframe;
+            }
+
+            Picture8Bit p = null;
+            while(position <= target) {
+                p = null;
+                long start = PipelineMetrics.start();
+                try {
+                    p = grab.getNativeFrame();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                PipelineMetrics.stop(PipelineMetrics.DECODE, start);
+                if(p == null) {
+                    break;
+                }
+                PipelineMetrics.count(PipelineMetrics.FRAMES, 1);
+                position++;
+            }
+            boolean more;
+            if(p == null) {
+                brokenUntil = index.keyframeAfter(position);
+                position = Integer.MAX_VALUE; /*Seek before decoding the next frame*/
+                failed.add(target);
+                more = handler.missing(target);
+            } else {
+                more = handler.frame(target, p);
+            }
+            if(!more) {
+                break;
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Returns the numbers of the frames to be classified from a clip: every frameJump-th frame from startFrame. If
+     * only keyframes should be used, each frame is replaced by the keyframe at or before it and duplicates are
+     * removed, so no frames that depend on other frames have to be decoded.
+     * @param index The keyframe index of the video
+     * @param startFrame The first frame
+     * @param endFrame The frame after the last frame
+     * @param frameJump The distance between two sampled frames
+     * @param keyframesOnly True if only keyframes should be sampled
+     * @return The frame numbers, in increasing order
+     */
+    public static int[] sampleFrames(KeyframeIndex index, int startFrame, int endFrame, int frameJump,
+                                     boolean keyframesOnly) {
+        List<Integer> frames = new ArrayList<Integer>();
+        for(int i = startFrame; i < endFrame; i += frameJump) {
+            int frame = keyframesOnly ? index.keyframeAtOrBefore(i) : i;
+            if(frames.isEmpty() || frames.get(frames.size() - 1) != frame) {
+                frames.add(frame);
+            }
+        }
+        int[] frameNumbers = new int[frames.size()];
+        for(int i = 0; i < frameNumbers.length; i++) {
+            frameNumbers[i] = frames.get(i);
+        }
+        return frameNumbers;
+    }
+}
@@ -0,0 +1,361 @@
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Frame-level and video-level confusion counts of an evaluation, kept in two primitive arrays (row: correct category,
+ * column: classified category) instead of an Evaluation per clip or window with its maps of boxed counters.
+ *
+ * A ConfusionMatrix is not thread safe. Threads evaluating clips in parallel each add to their own matrix (see
+ * PerThread), and the matrices are summed with merge when the evaluation is done.
+ */
+public class ConfusionMatrix {
+
+    private final int nrOfCategories;
+    private final long[] frames;
+    private final long[] videos;
+
+    /**
+     * @param nrOfCategories The number of possible labels/categories
+     */
+    public ConfusionMatrix(int nrOfCategories) {
+        this.nrOfCategories = nrOfCategories;
+        this.frames = new long[nrOfCategories * nrOfCategories];
+        this.videos = new long[nrOfCategories * nrOfCategories];
+    }
+
+    /**
+     * Counts the frames classified as each category, i.e. the category with the highest output. The time steps of a
+     * sequential output are counted as frames.
+     * @param predicted The network output, with the shape [rows, nrOfCategories] or [rows, nrOfCategories, frames]
+     * @param nrOfCategories The number of possible labels/categories
+     * @return The number of frames classified as each category
+     */
+    public static int[] countPredictions(INDArray predicted, int nrOfCategories) {
+        int[] counts = new int[nrOfCategories];
+        int rows = predicted.size(0);
+        if(predicted.rank() == 3) {
+            int nrOfFrames = predicted.size(2);
+            for(int r = 0; r < rows; r++) {
+                for(int t = 0; t < nrOfFrames; t++) {
+                    int best = 0;
+                    for(int c = 1; c < nrOfCategories; c++) {
+                        if(predicted.getDouble(r, c, t) > predicted.getDouble(r, best, t)) {
+                            best = c;
+                        }
+                    }
+                    counts[best]++;
+                }
+            }
+        } else {
+            for(int r = 0; r < rows; r++) {
+                counts[argMax(predicted, r, nrOfCategories)]++;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Counts the frames classified as each category when each row of a non-sequential output stands for several
+     * frames, e.g. a kept frame and the near-duplicates after it that were skipped (see FrameSelector)
+     * @param predicted The network output, with the shape [rows, nrOfCategories]
+     * @param nrOfCategories The number of possible labels/categories
+     * @param weights The number of frames of each row
+     * @return The number of frames classified as each category
+     */
+    public static int[] countPredictions(INDArray predicted, int nrOfCategories, int[] weights) {
+        int[] counts = new int[nrOfCategories];
+        int rows = predicted.size(0);
+        for(int r = 0; r < rows; r++) {
+            counts[argMax(predicted, r, nrOfCategories)] += weights[r];
+        }
+        return counts;
+    }
+
+    private static int argMax(INDArray m, int row, int nrOfCategories) {
+        int best = 0;
+        for(int c = 1; c < nrOfCategories; c++) {
+            if(m.getDouble(row, c) > m.getDouble(row, best)) {
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The category most frames were classified as. A tie with the correct category goes to the correct category.
+     * @param counts The number of frames classified as each category
+     * @param category The correct category
+     * @return The category
+     */
+    public static int mostClassified(int[] counts, int category) {
+        int bestCategory = category;
+        for(int i = 0; i < counts.length; i++) {
+            if(counts[i] > counts[bestCategory]) {
+                bestCategory = i;
+            }
+        }
+        return bestCategory;
+    }
+
+    /**
+     * Adds the frames of a video
+     * @param category The correct category of the frames
+     * @param counts The number of frames classified as each category
+     */
+    public void addFrames(int category, int[] counts) {
+        int row = category * nrOfCategories;
+        for(int i = 0; i < nrOfCategories; i++) {
+            frames[row + i] += counts[i];
+        }
+    }
+
+    /**
+     * Adds the frames of a minibatch
+     * @param labels The one-hot labels, with the shape of the output
+     * @param predicted The network output, with the shape [rows, nrOfCategories] or [rows, nrOfCategories, frames]
+     */
+    public void addFrames(INDArray labels, INDArray predicted) {
+        int rows = predicted.size(0);
+        if(predicted.rank() == 3) {
+            int nrOfFrames = predicted.size(2);
+            for(int r = 0; r < rows; r++) {
+                for(int t = 0; t < nrOfFrames; t++) {
+                    int actual = 0;
+                    int best = 0;
+                    for(int c = 1; c < nrOfCategories; c++) {
+                        if(labels.getDouble(r, c, t) > labels.getDouble(r, actual, t)) {
+                            actual = c;
+                        }
+                        if(predicted.getDouble(r, c, t) > predicted.getDouble(r, best, t)) {
+                            best = c;
+                        }
+                    }
+                    frames[actual * nrOfCategories + best]++;
+                }
+            }
+        } else {
+            for(int r = 0; r < rows; r++) {
+                frames[argMax(labels, r, nrOfCategories) * nrOfCategories + argMax(predicted, r, nrOfCategories)]++;
+            }
+        }
+    }
+
+    /**
+     * Adds a classified video
+     * @param category The correct category of the video
+     * @param classifiedCategory The category the video was classified as
+     */
+    public void addVideo(int category, int classifiedCategory) {
+        videos[category * nrOfCategories + classifiedCategory]++;
+    }
+
+    /**
+     * Adds the counts of another matrix to this one
+     * @param other A matrix with the same number of categories
+     */
+    public void merge(ConfusionMatrix other) {
+        for(int i = 0; i < frames.length; i++) {
+            frames[i] += other.frames[i];
+            videos[i] += other.videos[i];
+        }
+    }
+
+    /**
+     * @return The number of frames of a category classified as a category
+     */
+    public long getFrames(int category, int classifiedCategory) {
+        return frames[category * nrOfCategories + classifiedCategory];
+    }
+
+    /**
+     * @return The number of videos of a category classified as a category
+     */
+    public long getVideos(int category, int classifiedCategory) {
+        return videos[category * nrOfCategories + classifiedCategory];
+    }
+
+    /**
+     * @return The number of classified frames of a category
+     */
+    public long getNrOfFrames(int category) {
+        return sum(frames, category);
+    }
+
+    /**
+     * @return The number of classified videos of a category
+     */
+    public long getNrOfVideos(int category) {
+        return sum(videos, category);
+    }
+
+    private long sum(long[] counts, int category) {
+        long n = 0;
+        for(int i = 0; i < nrOfCategories; i++) {
+            n += counts[category * nrOfCategories + i];
+        }
+        return n;
+    }
+
+    /**
+     * @return The share of the frames classified as their correct category
+     */
+    public double getFrameAccuracy() {
+        return accuracy(frames);
+    }
+
+    /**
+     * @return The share of the videos classified as their correct category
+     */
+    public double getVideoAccuracy() {
+        return accuracy(videos);
+    }
+
+    private double accuracy(long[] counts) {
+        long correct = 0;
+        long n = 0;
+        for(int i = 0; i < nrOfCategories; i++) {
+            correct += counts[i * nrOfCategories + i];
+            n += sum(counts, i);
+        }
+        return n == 0 ? 0 : (double) correct / n;
+    }
+
+    /**
+     * Prints the tables in the format of the files in evaluation_results: for each category, the classified videos
+     * and frames and what they were classified as
+     * @param out The stream
+     */
+    public void printTables(PrintStream out) {
+        for(int i = 0; i < nrOfCategories; i++) {
+            out.println();
+            out.println("CATEGORY: " + LabelMap.labelMap.get(i));
+
+            out.println("Nr of classified Videos: " + getNrOfVideos(i));
+
+            for(int j = 0; j < nrOfCategories; j++) {
+                out.println("Nr of videos classified as " + LabelMap.labelMap.get(j) + ": " + getVideos(i, j));
+            }
+
+            out.println("Nr of classified frames: " + getNrOfFrames(i));
+
+            for(int j = 0; j < nrOfCategories; j++) {
+                out.println("Nr of frames classified as " + LabelMap.labelMap.get(j) + ": " + getFrames(i, j));
+            }
+        }
+    }
+
+    /**
+     * Writes the matrices as JSON: the labels, the frame and video matrices (one array per correct category) and
+     * the accuracies
+     * @param file The file
+     * @throws IOException
+     */
+    public void writeJson(File file) throws IOException {
+        StringBuilder json = new StringBuilder("{\"labels\":[");
+        for(int i = 0; i < nrOfCategories; i++) {
+            json.append(i == 0 ? "" : ",").append('"').append(LabelMap.labelMap.get(i)).append('"');
+        }
+        json.append("],\"frames\":");
+        appendJson(json, frames);
+        json.append(",\"videos\":");
+        appendJson(json, videos);
+        json.append(",\"frame_accuracy\":").append(getFrameAccuracy());
+        json.append(",\"video_accuracy\":").append(getVideoAccuracy()).append('}');
+        PrintWriter out = new PrintWriter(file);
+        try {
+            out.println(json);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void appendJson(StringBuilder json, long[] counts) {
+        json.append('[');
+        for(int i = 0; i < nrOfCategories; i++) {
+            json.append(i == 0 ? "[" : ",[");
+            for(int j = 0; j < nrOfCategories; j++) {
+                json.append(j == 0 ? "" : ",").append(counts[i * nrOfCategories + j]);
+            }
+            json.append(']');
+        }
+        json.append(']');
+    }
+
+    /**
+     * Writes the matrices as CSV, one line per level (frames or videos) and correct category, with a column per
+     * classified category
+     * @param file The file
+     * @throws IOException
+     */
+    public void writeCsv(File file) throws IOException {
+        PrintWriter out = new PrintWriter(file);
+        try {
+            StringBuilder header = new StringBuilder("level,category");
+            for(int j = 0; j < nrOfCategories; j++) {
+                header.append(',').append(LabelMap.labelMap.get(j));
+            }
+            out.println(header);
+            writeCsv(out, "videos", videos);
+            writeCsv(out, "frames", frames);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeCsv(PrintWriter out, String level, long[] counts) {
+        for(int i = 0; i < nrOfCategories; i++) {
+            StringBuilder line = new StringBuilder(level).append(',').append(LabelMap.labelMap.get(i));
+            for(int j = 0; j < nrOfCategories; j++) {
+                line.append(',').append(counts[i * nrOfCategories + j]);
+            }
+            out.println(line);
+        }
+    }
+
+    /**
+     * One ConfusionMatrix per thread, so threads add their results without locks or shared counters. The matrices
+     * are summed by reduce, which must be called after the threads are done adding (e.g. after joining them).
+     */
+    public static class PerThread {
+        private final int nrOfCategories;
+        private final ConcurrentLinkedQueue<ConfusionMatrix> matrices = new ConcurrentLinkedQueue<ConfusionMatrix>();
+        private final ThreadLocal<ConfusionMatrix> local = new ThreadLocal<ConfusionMatrix>() {
+            @Override
+            protected ConfusionMatrix initialValue() {
+                ConfusionMatrix m = new ConfusionMatrix(nrOfCategories);
+                matrices.add(m);
+                return m;
+            }
+        };
+
+        /**
+         * @param nrOfCategories The number of possible labels/categories
+         */
+        public PerThread(int nrOfCategories) {
+            this.nrOfCategories = nrOfCategories;
+        }
+
+        /**
+         * @return The matrix of the calling thread
+         */
+        public ConfusionMatrix get() {
+            return local.get();
+        }
+
+        /**
+         * @return The sum of the matrices of all threads
+         */
+        public ConfusionMatrix reduce() {
+            ConfusionMatrix sum = new ConfusionMatrix(nrOfCategories);
+            for(ConfusionMatrix m : matrices) {
+                sum.merge(m);
+            }
+            return sum;
+        }
+    }
+}
@@ -1,3 +1,6 @@
+import org.bytedeco.javacpp.indexer.UByteIndexer;
+import org.bytedeco.javacpp.opencv_core;
+import org.bytedeco.javacpp.opencv_core.Mat;
 import org.datavec.api.conf.Configuration;
 import org.datavec.api.io.filters.BalancedPathFilter;
 import org.datavec.api.io.labels.ParentPathLabelGenerator;
@@ -6,12 +9,15 @@ import org.datavec.api.records.reader.impl.csv.CSVSequenceRecordReader;
 import org.datavec.api.split.FileSplit;
 import org.datavec.api.split.InputSplit;
 import org.datavec.api.split.NumberedFileInputSplit;
+import org.datavec.image.loader.NativeImageLoader;
 import org.datavec.image.recordreader.ImageRecordReader;
 import org.deeplearning4j.datasets.datavec.RecordReaderDataSetIterator;
 import org.deeplearning4j.datasets.datavec.SequenceRecordReaderDataSetIterator;
-import org.deeplearning4j.datasets.iterator.AsyncDataSetIterator;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
 
 import java.io.File;
 import java.io.IOException;
@@ -44,6 +50,30 @@ public class DataLoader {
     public static DataSetIterator[] getNonSequentialData(String path, String[] allowedExtensions, int frame_height,
                                                        int frame_width, int channels, int miniBatchSize,
                                                        int percentage, int nrOfCategories) throws IOException {
+        return getNonSequentialData(path, allowedExtensions, frame_height, frame_width, channels, miniBatchSize,
+                percentage, nrOfCategories, PixelScaling.NONE);
+    }
+
+    /**
+     * Method for retrieving non-sequential data with scaled pixel values. The data should be stored as images with
+     * each label having its own subfolder. The scaling is applied to each image when it is read, before the minibatch
+     * is assembled.
+     * @param path Path to the folder containing the label subfolders which contain the frame images
+     * @param allowedExtensions The allowed extensions of the images (e.g. bmp, jpg etc.)
+     * @param frame_height  The height of the frame
+     * @param frame_width The width of the frame
+     * @param channels Number of channels (e.g. 3 for RGB images)
+     * @param miniBatchSize The minibatch size
+     * @param percentage The percentage of the images in the path that will be loaded
+     * @param nrOfCategories The number of possible labels/categories
+     * @param scaling The scaling applied to the pixel values
+     * @return The DataSetIterator containing the frames and the corresponding labels
+     * @throws IOException
+     */
+    public static DataSetIterator[] getNonSequentialData(String path, String[] allowedExtensions, int frame_height,
+                                                       int frame_width, int channels, int miniBatchSize,
+                                                       int percentage, int nrOfCategories, PixelScaling scaling)
+            throws IOException {
 
         /*Read the parent directory containing the data subfolders*/
         File parentDir = new File(path);
@@ -62,13 +92,13 @@ public class DataLoader {
         System.out.println("Data 1 size: " + testingData.length());
 
         /*Retrieve data set iterator of first data part*/
-        ImageRecordReader reader = new ImageRecordReader(frame_height, frame_width, channels ,labelMaker);
+        ImageRecordReader reader = new ScalingImageRecordReader(frame_height, frame_width, channels, labelMaker, scaling);
         reader.setLabels(LabelMap.labels); //determine label order
         reader.initialize(trainingData);
         DataSetIterator trainingIter = new RecordReaderDataSetIterator(reader, miniBatchSize, 1, nrOfCategories);
 
         /*Retrieve data set iterator of second data part*/
-        reader = new ImageRecordReader(frame_height, frame_width, channels ,labelMaker);
+        reader = new ScalingImageRecordReader(frame_height, frame_width, channels, labelMaker, scaling);
         reader.setLabels(LabelMap.labels); //determine label order
         reader.initialize(testingData);
         DataSetIterator testingIter = new RecordReaderDataSetIterator(reader, miniBatchSize, 1, nrOfCategories);
@@ -97,19 +127,274 @@ public class DataLoader {
     public static DataSetIterator getSequentialData(String path, String fileNameStandard, int startIdx,
                                                     int nExamples, int miniBatchSize, int startFrame,  int nrFrames,
                                                     int video_height, int video_width, int nrOfCategories) throws Exception {
+        return getSequentialData(path, fileNameStandard, startIdx, nExamples, miniBatchSize, startFrame, nrFrames,
+                video_height, video_width, nrOfCategories, 1, 1);
+    }
+
+    /**
+     * Method for retrieving sequential data. Grabs frames from video clips, decoding several video files at the
+     * same time. The data should be stored as numbered video files with the labels stored in a separate txt file
+     * with the same name and number.
+     *
+     * @param path Path to the folder containing the videos and the labels files
+     * @param fileNameStandard The name of the video and label files (e.g. "sportclip_%d")
+     * @param startIdx The start index of the video and label files
+     * @param nExamples The number of data to be loaded
+     * @param miniBatchSize The minibatch size
+     * @param startFrame The first frame to be loaded
+     * @param nrFrames The number of frames to be loaded from each video file
+     * @param video_height The height of the video
+     * @param video_width The width of the video
+     * @param nrOfCategories The number of possible labels/categories
+     * @param decodeWorkers The number of video files decoded at the same time
+     * @param prefetchDepth The number of minibatches loaded ahead of training
+     * @return The DataSetIterator containing the frames and the corresponding labels
+     * @throws Exception
+     */
+    public static DataSetIterator getSequentialData(String path, String fileNameStandard, int startIdx,
+                                                    int nExamples, int miniBatchSize, int startFrame,  int nrFrames,
+                                                    int video_height, int video_width, int nrOfCategories,
+                                                    int decodeWorkers, int prefetchDepth) throws Exception {
 
         /*Get the features*/
         SequenceRecordReader featuresTrain = getFeaturesReader(path + "/" + fileNameStandard + ".mp4", startIdx, nExamples, startFrame,
-                nrFrames, video_height, video_width);
+                nrFrames, video_height, video_width, decodeWorkers, prefetchDepth);
         /*Get the labels*/
         SequenceRecordReader labelsTrain = getLabelsReader(path + "/" + fileNameStandard + ".txt", startIdx, nExamples);
         /*Create a Data set iterator with the features and the labels*/
         SequenceRecordReaderDataSetIterator sequenceIter =
                 new SequenceRecordReaderDataSetIterator(featuresTrain, labelsTrain, miniBatchSize, nrOfCategories, false);
-        sequenceIter.setPreProcessor(new VideoPreProcessor());
+        /*The features reader scales the pixels while it writes them, so no preprocessor is needed*/
 
         /*AsyncDataSetIterator: Used to (pre-load) load data in a separate thread*/
-        return new AsyncDataSetIterator(sequenceIter, 1);
+        return PipelineMetrics.prefetch(sequenceIter, prefetchDepth);
+    }
+
+    /**
+     * Method for retrieving sequential data. Grabs frames from video clips and writes them directly into the
+     * minibatch feature arrays (see SequentialFramesDataSetIterator), skipping the record reader and Writable
+     * conversion of getSequentialData. The data should be stored as numbered video files with the labels stored in
+     * a separate txt file with the same name and number.
+     *
+     * @param path Path to the folder containing the videos and the labels files
+     * @param fileNameStandard The name of the video and label files (e.g. "sportclip_%d")
+     * @param startIdx The start index of the video and label files
+     * @param nExamples The number of data to be loaded
+     * @param miniBatchSize The minibatch size
+     * @param startFrame The first frame to be loaded
+     * @param nrFrames The number of frames to be loaded from each video file
+     * @param video_height The height of the video
+     * @param video_width The width of the video
+     * @param nrOfCategories The number of possible labels/categories
+     * @param decodeWorkers The number of video files decoded at the same time
+     * @param prefetchDepth The number of minibatches loaded ahead of training
+     * @param scaling The scaling applied to the pixel values (PixelScaling.UNIT matches the VideoPreProcessor)
+     * @return The DataSetIterator containing the frames and the corresponding labels
+     */
+    public static DataSetIterator getDirectSequentialData(String path, String fileNameStandard, int startIdx,
+                                                          int nExamples, int miniBatchSize, int startFrame, int nrFrames,
+                                                          int video_height, int video_width, int nrOfCategories,
+                                                          int decodeWorkers, int prefetchDepth, PixelScaling scaling) {
+        return getDirectSequentialData(path, fileNameStandard, startIdx, nExamples, miniBatchSize, startFrame,
+                nrFrames, video_height, video_width, nrOfCategories, decodeWorkers, prefetchDepth, scaling,
+                InputMode.BGR);
+    }
+
+    /**
+     * Method for retrieving sequential data like getDirectSequentialData, with the frames in a given channel layout,
+     * e.g. InputMode.YUV to feed the decoded planes to the network without colour conversion.
+     *
+     * @param path Path to the folder containing the videos and the labels files
+     * @param fileNameStandard The name of the video and label files (e.g. "sportclip_%d")
+     * @param startIdx The start index of the video and label files
+     * @param nExamples The number of data to be loaded
+     * @param miniBatchSize The minibatch size
+     * @param startFrame The first frame to be loaded
+     * @param nrFrames The number of frames to be loaded from each video file
+     * @param video_height The height of the video
+     * @param video_width The width of the video
+     * @param nrOfCategories The number of possible labels/categories
+     * @param decodeWorkers The number of video files decoded at the same time
+     * @param prefetchDepth The number of minibatches loaded ahead of training
+     * @param scaling The scaling applied to the pixel values (PixelScaling.UNIT matches the VideoPreProcessor)
+     * @param mode The channel layout of the frames
+     * @return The DataSetIterator containing the frames and the corresponding labels
+     */
+    public static DataSetIterator getDirectSequentialData(String path, String fileNameStandard, int startIdx,
+                                                          int nExamples, int miniBatchSize, int startFrame, int nrFrames,
+                                                          int video_height, int video_width, int nrOfCategories,
+                                                          int decodeWorkers, int prefetchDepth, PixelScaling scaling,
+                                                          InputMode mode) {
+        /*The pixels are scaled while they are written, so no preprocessor is needed*/
+        SequentialFramesDataSetIterator sequenceIter = new SequentialFramesDataSetIterator(path, fileNameStandard,
+                startIdx, nExamples, miniBatchSize, startFrame, nrFrames, video_height, video_width, nrOfCategories,
+                decodeWorkers, scaling, mode);
+
+        /*AsyncDataSetIterator: Used to (pre-load) load data in a separate thread*/
+        return PipelineMetrics.prefetch(sequenceIter, prefetchDepth);
+    }
+
+    /**
+     * Method for retrieving non-sequential data (single frames, e.g. for model 1) decoded directly from the video
+     * files, in a given channel layout. The image files of getNonSequentialData only hold BGR frames, so this is the
+     * data for a non-sequential model of another input mode. The nrFrames frames of each video become separate
+     * examples, so a minibatch holds miniBatchSize*nrFrames frames.
+     *
+     * @param path Path to the folder containing the videos and the labels files
+     * @param fileNameStandard The name of the video and label files (e.g. "sportclip_%d")
+     * @param startIdx The start index of the video and label files
+     * @param nExamples The number of video files to be loaded
+     * @param miniBatchSize The number of video files of a minibatch
+     * @param startFrame The first frame to be loaded
+     * @param nrFrames The number of frames to be loaded from each video file
+     * @param video_height The height of the video
+     * @param video_width The width of the video
+     * @param nrOfCategories The number of possible labels/categories
+     * @param decodeWorkers The number of video files decoded at the same time
+     * @param prefetchDepth The number of minibatches loaded ahead of training
+     * @param scaling The scaling applied to the pixel values
+     * @param mode The channel layout of the frames
+     * @return The DataSetIterator containing the frames and the corresponding labels, one row per frame
+     */
+    public static DataSetIterator getDirectFrameData(String path, String fileNameStandard, int startIdx, int nExamples,
+                                                     int miniBatchSize, int startFrame, int nrFrames,
+                                                     int video_height, int video_width, int nrOfCategories,
+                                                     int decodeWorkers, int prefetchDepth, PixelScaling scaling,
+                                                     InputMode mode) {
+        SequentialFramesDataSetIterator sequenceIter = new SequentialFramesDataSetIterator(path, fileNameStandard,
+                startIdx, nExamples, miniBatchSize, startFrame, nrFrames, video_height, video_width, nrOfCategories,
+                decodeWorkers, scaling, mode);
+        sequenceIter.setPreProcessor(new FramesPreProcessor());
+
+        /*AsyncDataSetIterator: Used to (pre-load) load data in a separate thread*/
+        return PipelineMetrics.prefetch(sequenceIter, prefetchDepth);
+    }
+
+    /**
+     * Method for retrieving sequential data from a frame cache. The cache is built from the video files (see
+     * FrameCache) the first time the data is requested for a configuration, after which the frames are read from the
+     * memory-mapped cache instead of being decoded again every epoch.
+     *
+     * @param path Path to the folder containing the videos and the labels files
+     * @param fileNameStandard The name of the video and label files (e.g. "sportclip_%d")
+     * @param startIdx The start index of the video and label files
+     * @param nExamples The number of data to be loaded
+     * @param miniBatchSize The minibatch size
+     * @param startFrame The first frame to be loaded
+     * @param nrFrames The number of frames to be loaded from each video file
+     * @param video_height The height of the video
+     * @param video_width The width of the video
+     * @param nrOfCategories The number of possible labels/categories
+     * @return The DataSetIterator containing the frames and the corresponding labels
+     * @throws Exception
+     */
+    public static DataSetIterator getCachedSequentialData(String path, String fileNameStandard, int startIdx,
+                                                          int nExamples, int miniBatchSize, int startFrame, int nrFrames,
+                                                          int video_height, int video_width, int nrOfCategories) throws Exception {
+
+        /*Build the frame cache if it does not exist or was built with other parameters*/
+        File cacheFile = FrameCache.getCacheFile(path, startIdx, nExamples, startFrame, nrFrames, video_height, video_width);
+        if(!FrameCache.matches(cacheFile, startIdx, nExamples, startFrame, nrFrames, video_height, video_width)) {
+            System.out.println("Building frame cache " + cacheFile);
+            FrameCache.build(path, fileNameStandard, startIdx, nExamples, startFrame, nrFrames, video_height, video_width);
+        }
+
+        /*Get the features, scaled [0,255] -> [0,1] while they are read from the cache*/
+        CachedFramesRecordReader featuresTrain = new CachedFramesRecordReader();
+        featuresTrain.initialize(new FileSplit(cacheFile));
+        featuresTrain.setScaling(PixelScaling.UNIT);
+        /*Get the labels*/
+        SequenceRecordReader labelsTrain = getLabelsReader(path + "/" + fileNameStandard + ".txt", startIdx, nExamples);
+        /*Create a Data set iterator with the features and the labels*/
+        SequenceRecordReaderDataSetIterator sequenceIter =
+                new SequenceRecordReaderDataSetIterator(featuresTrain, labelsTrain, miniBatchSize, nrOfCategories, false);
+
+        /*AsyncDataSetIterator: Used to (pre-load) load data in a separate thread*/
+        return PipelineMetrics.prefetch(sequenceIter, 1);
+    }
+
+    /**
+     * Method for retrieving the cached activations of the frozen layers of a sequential model (see FeatureCache),
+     * used to train the layers after them with NetworkTrainer.trainHead. The frames are decoded and run through the
+     * frozen layers once, the first time the data is requested for a configuration and set of frozen parameters.
+     *
+     * @param model The model
+     * @param nrOfFrozenLayers The number of layers whose activations are cached
+     * @param halfPrecision True if the activations should be stored as half precision floats
+     * @param path Path to the folder containing the videos and the labels files
+     * @param fileNameStandard The name of the video and label files (e.g. "sportclip_%d")
+     * @param startIdx The start index of the video and label files
+     * @param nExamples The number of data to be loaded
+     * @param miniBatchSize The minibatch size
+     * @param startFrame The first frame to be loaded
+     * @param nrFrames The number of frames to be loaded from each video file
+     * @param video_height The height of the video
+     * @param video_width The width of the video
+     * @param nrOfCategories The number of possible labels/categories
+     * @param decodeWorkers The number of video files decoded at the same time while the cache is built
+     * @param mode The channel layout of the frames fed to the model
+     * @return The DataSetIterator containing the activations and the corresponding labels
+     * @throws IOException
+     */
+    public static DataSetIterator getCachedFeatureData(MultiLayerNetwork model, int nrOfFrozenLayers,
+                                                       boolean halfPrecision, String path, String fileNameStandard,
+                                                       int startIdx, int nExamples, int miniBatchSize, int startFrame,
+                                                       int nrFrames, int video_height, int video_width,
+                                                       int nrOfCategories, int decodeWorkers, InputMode mode)
+            throws IOException {
+
+        /*Build the feature cache if it does not exist*/
+        File cacheFile = FeatureCache.getCacheFile(path, startIdx, nExamples, startFrame, nrFrames, model,
+                nrOfFrozenLayers, halfPrecision);
+        if(!cacheFile.exists()) {
+            System.out.println("Building feature cache " + cacheFile);
+            DataSetIterator frames = getDirectSequentialData(path, fileNameStandard, startIdx, nExamples,
+                    miniBatchSize, startFrame, nrFrames, video_height, video_width, nrOfCategories, decodeWorkers, 1,
+                    PixelScaling.UNIT, mode);
+            try {
+                FeatureCache.build(model, nrOfFrozenLayers, frames, cacheFile, halfPrecision);
+            } finally {
+                shutdown(frames);
+            }
+        }
+
+        /*AsyncDataSetIterator: Used to (pre-load) load data in a separate thread*/
+        return PipelineMetrics.prefetch(new CachedFeaturesDataSetIterator(new FeatureCache(cacheFile), miniBatchSize), 1);
+    }
+
+    /**
+     * Resets data returned by the methods of DataLoader to a minibatch of the epoch, e.g. to resume training from a
+     * checkpoint. The directly decoded data moves past the clips of the skipped minibatches without decoding them
+     * (the prefetch thread resets its source before it loads again), other data reads and drops the minibatches.
+     * @param data The data
+     * @param minibatch The number of minibatches to skip
+     */
+    public static void resetTo(DataSetIterator data, int minibatch) {
+        DataSetIterator source = PipelineMetrics.getPrefetchSource(data);
+        if(source instanceof SequentialFramesDataSetIterator) {
+            ((SequentialFramesDataSetIterator) source).setResetCursor(minibatch * source.batch());
+            data.reset();
+            return;
+        }
+        data.reset();
+        for(int i = 0; i < minibatch && data.hasNext(); i++) {
+            data.next();
+        }
+    }
+
+    /**
+     * Stops the threads of data returned by the methods of DataLoader: the prefetch thread and the decode workers of
+     * the directly decoded data. The data can not be read afterwards.
+     * @param data The data, may be null
+     */
+    public static void shutdown(DataSetIterator data) {
+        if(data == null) {
+            return;
+        }
+        DataSetIterator source = PipelineMetrics.stopPrefetch(data);
+        if(source instanceof SequentialFramesDataSetIterator) {
+            ((SequentialFramesDataSetIterator) source).shutdown();
+        }
     }
 
     /**
@@ -121,11 +406,14 @@ public class DataLoader {
      * @param nrFrames The number of frames
      * @param video_height The height of the video
      * @param video_width The width of the video
+     * @param decodeWorkers The number of video files decoded at the same time
+     * @param prefetchDepth The number of files each decoding worker decodes ahead of the file being returned
      * @return Record Reader with the features
      * @throws Exception
      */
     private static SequenceRecordReader getFeaturesReader(String fullPath, int startIdx, int numOfFiles, int startFrame,
-                                                          int nrFrames, int video_height, int video_width) throws Exception {
+                                                          int nrFrames, int video_height, int video_width,
+                                                          int decodeWorkers, int prefetchDepth) throws Exception {
         /*Get the files containing the video files*/
         InputSplit is = new NumberedFileInputSplit(fullPath, startIdx, startIdx + numOfFiles - 1);
         /*Set up configuration*/
@@ -135,6 +423,10 @@ public class DataLoader {
         conf.set(SequentialFramesRecordReader.TOTAL_FRAMES, String.valueOf(nrFrames));
         conf.set(SequentialFramesRecordReader.ROWS, String.valueOf(video_width));
         conf.set(SequentialFramesRecordReader.COLUMNS, String.valueOf(video_height));
+        conf.set(SequentialFramesRecordReader.WORKERS, String.valueOf(decodeWorkers));
+        conf.set(SequentialFramesRecordReader.PREFETCH, String.valueOf(decodeWorkers * Math.max(1, prefetchDepth)));
+        /*[0,255] -> [0,1] while the frames are written, as the VideoPreProcessor did on the finished minibatch*/
+        conf.set(SequentialFramesRecordReader.SCALE, String.valueOf(PixelScaling.UNIT.getMultiplier(0)));
         /*Get the features*/
         SequentialFramesRecordReader crr = new SequentialFramesRecordReader();
         crr.initialize(conf, is);
@@ -158,13 +450,100 @@ public class DataLoader {
         return csvSeq;
     }
 
+    /**
+     * ImageRecordReader which scales the pixel values of each image as it is read (see ScalingImageLoader), so that
+     * the minibatch does not need a separate normalization pass
+     */
+    private static class ScalingImageRecordReader extends ImageRecordReader {
+
+        public ScalingImageRecordReader(int height, int width, int channels, ParentPathLabelGenerator labelGenerator,
+                                        PixelScaling scaling) {
+            super(height, width, channels, labelGenerator);
+            /*initialize(InputSplit) only creates a NativeImageLoader if no image loader is set*/
+            this.imageLoader = new ScalingImageLoader(height, width, channels, scaling);
+        }
+    }
+
+    /**
+     * NativeImageLoader which applies a PixelScaling in the loop that copies the decoded 8-bit pixels into the
+     * [1, channels, height, width] array, instead of scaling the finished array. Images which need an image
+     * transform or a colour conversion are loaded by the NativeImageLoader and scaled afterwards.
+     */
+    private static class ScalingImageLoader extends NativeImageLoader {
+
+        private final PixelScaling scaling;
+
+        public ScalingImageLoader(int height, int width, int channels, PixelScaling scaling) {
+            super(height, width, channels);
+            this.scaling = scaling;
+        }
+
+        @Override
+        public INDArray asMatrix(Mat image) throws IOException {
+            if(imageTransform != null || (channels > 0 && image.channels() != channels)
+                    || image.depth() != opencv_core.CV_8U) {
+                INDArray matrix = super.asMatrix(image);
+                if(!scaling.isIdentity()) {
+                    long start = PipelineMetrics.start();
+                    int rank = matrix.rank();
+                    for(int c = 0; c < matrix.size(rank - 3); c++) {
+                        matrix.tensorAlongDimension(c, rank - 2, rank - 1)
+                                .muli(scaling.getMultiplier(c)).addi(scaling.getOffset(c));
+                    }
+                    PipelineMetrics.stop(PipelineMetrics.PREPROCESS, start);
+                }
+                return matrix;
+            }
+            if(centerCropIfNeeded) {
+                image = centerCropIfNeeded(image);
+            }
+            image = scalingIfNeed(image);
+
+            int rows = image.rows();
+            int cols = image.cols();
+            int imageChannels = image.channels();
+            float[] pixels = new float[imageChannels * rows * cols];
+            UByteIndexer indexer = image.createIndexer();
+            for(int c = 0; c < imageChannels; c++) {
+                float m = scaling.getMultiplier(c), o = scaling.getOffset(c);
+                int i = c * rows * cols;
+                for(int y = 0; y < rows; y++) {
+                    for(int x = 0; x < cols; x++) {
+                        pixels[i++] = indexer.get(y, x, c) * m + o;
+                    }
+                }
+            }
+            indexer.release();
+            return Nd4j.create(pixels, new int[] {1, imageChannels, rows, cols});
+        }
+    }
+
+    /**
+     * PreProcessor which turns sequences into single frames: [miniBatch, size, nrFrames] features and labels into
+     * [miniBatch*nrFrames, size], with the frames of an example in consecutive rows
+     */
+    static class FramesPreProcessor implements DataSetPreProcessor {
+        @Override
+        public void preProcess(org.nd4j.linalg.dataset.api.DataSet toPreProcess) {
+            toPreProcess.setFeatures(toFrames(toPreProcess.getFeatures()));
+            toPreProcess.setLabels(toFrames(toPreProcess.getLabels()));
+        }
+
+        private static INDArray toFrames(INDArray sequences) {
+            int[] shape = sequences.shape();
+            return sequences.permute(0, 2, 1).dup('c').reshape(shape[0] * shape[2], shape[1]);
+        }
+    }
+
     /**
      * PreProcessor for the features. Scales the values from 0-255 to 0-1
      */
-    private static class VideoPreProcessor implements DataSetPreProcessor {
+    static class VideoPreProcessor implements DataSetPreProcessor {
         @Override
         public void preProcess(org.nd4j.linalg.dataset.api.DataSet toPreProcess) {
+            long start = PipelineMetrics.start();
             toPreProcess.getFeatureMatrix().divi(255);  /*[0,255] -> [0,1] for input pixel values*/
+            PipelineMetrics.stop(PipelineMetrics.PREPROCESS, start);
         }
     }
 
@@ -0,0 +1,317 @@
+import org.deeplearning4j.nn.conf.InputPreProcessor;
+import org.deeplearning4j.nn.conf.preprocessor.FeedForwardToRnnPreProcessor;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Cache of the per-frame activations of the convolutional layers of a sequential model (e.g. the conv-pool-conv stack
+ * of model 3). The frozen layers are run once over the data and their outputs are stored in one cache file, which is
+ * then memory-mapped by the CachedFeaturesDataSetIterator, so that the layers after them (the head) can be trained
+ * for many epochs without decoding the clips or running the convolutions again (see NetworkTrainer.trainHead).
+ *
+ * The activations of each frame are stored as floats, or as 16 bit half precision floats to halve the size of the
+ * cache, followed at the end of the file by the category of every frame.
+ *
+ * The activations depend on the parameters of the frozen layers, so the name of the cache file contains a checksum
+ * of them besides the clip range and the frame window.
+ */
+public class FeatureCache {
+
+    public static final String EXTENSION = ".featurecache";
+    public static final int HEADER_SIZE = 64;
+    private static final int MAGIC = 0x56464631;
+
+    private final File file;
+    private final int nrOfClips;
+    private final int nrFrames;
+    private final int featureSize;
+    private final int nrOfCategories;
+    private final boolean halfPrecision;
+    private final int valueSize;
+    private final long clipSize;
+    private final int clipsPerBuffer;
+    private final MappedByteBuffer[] buffers;
+    private final byte[] categories;
+
+    /**
+     * Returns the cache file for the given data and frozen layers
+     * @param path Path to the folder containing the videos
+     * @param startIdx The start index of the video files
+     * @param nExamples The number of video files
+     * @param startFrame The first frame of each video
+     * @param nrFrames The number of frames of each video
+     * @param model The model
+     * @param nrOfFrozenLayers The number of layers whose activations are cached
+     * @param halfPrecision True if the activations are stored as half precision floats
+     * @return The cache file
+     */
+    public static File getCacheFile(String path, int startIdx, int nExamples, int startFrame, int nrFrames,
+                                    MultiLayerNetwork model, int nrOfFrozenLayers, boolean halfPrecision) {
+        CRC32 crc = new CRC32();
+        for(int i = 0; i < nrOfFrozenLayers; i++) {
+            INDArray params = model.getLayer(i).params();
+            if(params != null) {
+                for(float v : params.dup().data().asFloat()) {
+                    int bits = Float.floatToIntBits(v);
+                    crc.update(bits);
+                    crc.update(bits >>> 8);
+                    crc.update(bits >>> 16);
+                    crc.update(bits >>> 24);
+                }
+            }
+        }
+        return new File(path, "features_" + startIdx + "-" + (startIdx + nExamples - 1) + "_f" + startFrame + "-"
+                + (startFrame + nrFrames - 1) + "_l" + nrOfFrozenLayers + "_" + Long.toHexString(crc.getValue())
+                + (halfPrecision ? "_fp16" : "") + EXTENSION);
+    }
+
+    /**
+     * Runs the frozen layers of a model over the data and writes their activations to a cache file. The cache is
+     * first written to a temporary file which is renamed when all clips have been written, so an interrupted build
+     * never leaves a partial cache behind.
+     * @param model The model, with a recurrent input ([miniBatch, frameSize, nrFrames]) that is split into frames by
+     *              the input preprocessor of the first layer
+     * @param nrOfFrozenLayers The number of layers whose activations are cached
+     * @param data The sequential data, with one label per frame
+     * @param cacheFile The cache file
+     * @param halfPrecision True if the activations should be stored as half precision floats
+     * @return The cache file
+     * @throws IOException
+     */
+    public static File build(MultiLayerNetwork model, int nrOfFrozenLayers, DataSetIterator data, File cacheFile,
+                             boolean halfPrecision) throws IOException {
+        File tmpFile = new File(cacheFile.getPath() + ".tmp");
+        /*The input preprocessor of the first head layer flattens the activations of each frame*/
+        InputPreProcessor flatten = model.getLayerWiseConfigurations().getInputPreProcess(nrOfFrozenLayers);
+        FeedForwardToRnnPreProcessor toSequence = new FeedForwardToRnnPreProcessor();
+
+        int nrOfClips = 0;
+        int nrFrames = -1;
+        int featureSize = -1;
+        int nrOfCategories = -1;
+        ByteArrayOutputStream categories = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 20));
+        try {
+            /*The header is written when the sizes are known*/
+            out.write(new byte[HEADER_SIZE]);
+
+            data.reset();
+            while(data.hasNext()) {
+                DataSet ds = data.next();
+                int miniBatch = ds.numExamples();
+                List<INDArray> activations = model.feedForwardToLayer(nrOfFrozenLayers - 1, ds.getFeatureMatrix(),
+                        false);
+                INDArray a = activations.get(nrOfFrozenLayers);
+                if(flatten != null) {
+                    a = flatten.preProcess(a, miniBatch);
+                }
+                /*[miniBatch*nrFrames, featureSize] -> [miniBatch, nrFrames, featureSize], one row per frame*/
+                a = toSequence.preProcess(a, miniBatch).permute(0, 2, 1).dup('c');
+                float[] values = a.data().asFloat();
+                nrFrames = a.size(1);
+                featureSize = a.size(2);
+
+                for(int i = 0; i < values.length; i++) {
+                    if(halfPrecision) {
+                        out.writeShort(toHalf(values[i]));
+                    } else {
+                        out.writeFloat(values[i]);
+                    }
+                }
+
+                INDArray labels = ds.getLabels();
+                nrOfCategories = labels.size(1);
+                for(int b = 0; b < miniBatch; b++) {
+                    for(int t = 0; t < nrFrames; t++) {
+                        int best = 0;
+                        for(int c = 1; c < nrOfCategories; c++) {
+                            if(labels.getDouble(b, c, t) > labels.getDouble(b, best, t)) {
+                                best = c;
+                            }
+                        }
+                        categories.write(best);
+                    }
+                }
+                nrOfClips += miniBatch;
+            }
+            out.write(categories.toByteArray());
+        } finally {
+            out.close();
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+        try {
+            raf.writeInt(MAGIC);
+            raf.writeInt(nrOfClips);
+            raf.writeInt(nrFrames);
+            raf.writeInt(featureSize);
+            raf.writeInt(nrOfCategories);
+            raf.writeInt(halfPrecision ? 1 : 0);
+        } finally {
+            raf.close();
+        }
+
+        if(cacheFile.exists()) {
+            cacheFile.delete();
+        }
+        if(!tmpFile.renameTo(cacheFile)) {
+            throw new IOException("Could not rename " + tmpFile + " to " + cacheFile);
+        }
+        return cacheFile;
+    }
+
+    /**
+     * Opens and memory-maps an existing cache file
+     * @param file The cache file
+     * @throws IOException
+     */
+    public FeatureCache(File file) throws IOException {
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if(header.getInt() != MAGIC) {
+                throw new IOException("Not a feature cache file: " + file);
+            }
+            this.nrOfClips = header.getInt();
+            this.nrFrames = header.getInt();
+            this.featureSize = header.getInt();
+            this.nrOfCategories = header.getInt();
+            this.halfPrecision = header.getInt() == 1;
+            this.valueSize = halfPrecision ? 2 : 4;
+            this.clipSize = (long) nrFrames * featureSize * valueSize;
+
+            /*A mapped buffer is limited to 2GB, so the clips are spread over several buffers*/
+            this.clipsPerBuffer = (int) (Integer.MAX_VALUE / clipSize);
+            int nrOfBuffers = (nrOfClips + clipsPerBuffer - 1) / clipsPerBuffer;
+            this.buffers = new MappedByteBuffer[nrOfBuffers];
+            for(int b = 0; b < nrOfBuffers; b++) {
+                int clips = Math.min(clipsPerBuffer, nrOfClips - b * clipsPerBuffer);
+                buffers[b] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + b * clipsPerBuffer * clipSize,
+                        clips * clipSize);
+            }
+
+            ByteBuffer categories = ByteBuffer.allocate(nrOfClips * nrFrames);
+            channel.read(categories, HEADER_SIZE + nrOfClips * clipSize);
+            this.categories = categories.array();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Copies the activations of one cached frame into a feature buffer. Value i is written to dst[offset + i*stride],
+     * so a frame can be written directly into its time step of a [miniBatch, featureSize, nrFrames] array ('c'
+     * order) by using the number of frames as the stride.
+     * @param clip The index of the clip in the cache (not the file number)
+     * @param frame The index of the frame in the clip
+     * @param dst The feature buffer
+     * @param offset The index of the first value of the frame
+     * @param stride The distance between two values of the frame
+     */
+    public void readFrame(int clip, int frame, float[] dst, int offset, int stride) {
+        /*Absolute reads, so that several threads can read at the same time*/
+        ByteBuffer buffer = buffers[clip / clipsPerBuffer];
+        int position = (int) ((clip % clipsPerBuffer) * clipSize + (long) frame * featureSize * valueSize);
+        for(int i = 0; i < featureSize; i++) {
+            dst[offset + i * stride] = halfPrecision ? fromHalf(buffer.getShort(position + 2 * i))
+                    : buffer.getFloat(position + 4 * i);
+        }
+    }
+
+    /**
+     * @param clip The index of the clip in the cache
+     * @param frame The index of the frame in the clip
+     * @return The category of the frame
+     */
+    public int getCategory(int clip, int frame) {
+        return categories[clip * nrFrames + frame];
+    }
+
+    /**
+     * Converts a float to a half precision float, rounding to the nearest value
+     */
+    static short toHalf(float f) {
+        int bits = Float.floatToIntBits(f);
+        int sign = (bits >>> 16) & 0x8000;
+        int abs = bits & 0x7fffffff;
+        if(abs >= 0x7f800000) {
+            /*Infinity or NaN*/
+            return (short) (sign | 0x7c00 | (abs > 0x7f800000 ? 0x200 : 0));
+        }
+        if(abs >= 0x477ff000) {
+            /*Rounds to more than the largest half, 65504*/
+            return (short) (sign | 0x7c00);
+        }
+        if(abs >= 0x38800000) {
+            /*Normal: rebias the exponent and round the mantissa to 10 bits, ties to even*/
+            int h = (abs - 0x38000000) >>> 13;
+            int rest = abs & 0x1fff;
+            if(rest > 0x1000 || (rest == 0x1000 && (h & 1) != 0)) {
+                h++;
+            }
+            return (short) (sign | h);
+        }
+        /*Subnormal or zero, in steps of 2^-24*/
+        return (short) (sign | Math.round(Float.intBitsToFloat(abs) * (1 << 24)));
+    }
+
+    /**
+     * Converts a half precision float to a float
+     */
+    static float fromHalf(short h) {
+        int sign = (h & 0x8000) << 16;
+        int exponent = (h >>> 10) & 0x1f;
+        int mantissa = h & 0x3ff;
+        if(exponent == 0x1f) {
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+        if(exponent == 0) {
+            float v = mantissa / (float) (1 << 24);
+            return sign == 0 ? v : -v;
+        }
+        return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getNrOfClips() {
+        return nrOfClips;
+    }
+
+    public int getNrFrames() {
+        return nrFrames;
+    }
+
+    public int getFeatureSize() {
+        return featureSize;
+    }
+
+    public int getNrOfCategories() {
+        return nrOfCategories;
+    }
+
+    public boolean isHalfPrecision() {
+        return halfPrecision;
+    }
+}
@@ -0,0 +1,240 @@
+import org.jcodec.api.JCodecException;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Cache of pre-decoded video frames for the sequential data. The frames of every video clip are decoded and resized
+ * once and stored as unsigned bytes in one cache file, which is then memory-mapped by the CachedFramesRecordReader.
+ * The frames are stored in the same order as the raveled tensors of the SequentialFramesRecordReader (channels, rows,
+ * columns) so that they can be copied directly into the feature arrays.
+ *
+ * The name of the cache file contains the clip range, the frame window and the resolution, so that a cache is never
+ * used for another configuration.
+ *
+ * The frames are cached in the BGR layout only (InputMode.BGR); the frames of the other input modes are decoded
+ * directly, see DataLoader.getDirectSequentialData.
+ */
+public class FrameCache {
+
+    public static final String EXTENSION = ".framecache";
+    public static final int HEADER_SIZE = 64;
+    private static final int MAGIC = 0x56464331;
+    private static final int channels = InputMode.BGR.getChannels();
+
+    private final File file;
+    private final int nrOfClips;
+    private final int nrFrames;
+    private final int frameHeight;
+    private final int frameWidth;
+    private final int frameSize;
+    private final long clipSize;
+    private final int clipsPerBuffer;
+    private final MappedByteBuffer[] buffers;
+
+    /**
+     * Returns the cache file for the given data and frame configuration
+     * @param path Path to the folder containing the videos
+     * @param startIdx The start index of the video files
+     * @param nExamples The number of video files
+     * @param startFrame The first frame of each video
+     * @param nrFrames The number of frames of each video
+     * @param video_height The height of the frames
+     * @param video_width The width of the frames
+     * @return The cache file
+     */
+    public static File getCacheFile(String path, int startIdx, int nExamples, int startFrame, int nrFrames,
+                                    int video_height, int video_width) {
+        return new File(path, "frames_" + startIdx + "-" + (startIdx + nExamples - 1) + "_f" + startFrame + "-"
+                + (startFrame + nrFrames - 1) + "_" + video_height + "x" + video_width + EXTENSION);
+    }
+
+    /**
+     * Decodes the frames of the numbered video files and writes them to a cache file. The cache is first written to
+     * a temporary file which is renamed when all clips have been written, so an interrupted build never leaves a
+     * partial cache behind.
+     * @param path Path to the folder containing the videos
+     * @param fileNameStandard The name of the video files (e.g. "sportclip_%d")
+     * @param startIdx The start index of the video files
+     * @param nExamples The number of video files
+     * @param startFrame The first frame to be cached from each video
+     * @param nrFrames The number of frames to be cached from each video
+     * @param video_height The height of the cached frames
+     * @param video_width The width of the cached frames
+     * @return The cache file
+     * @throws IOException
+     * @throws JCodecException
+     */
+    public static File build(String path, String fileNameStandard, int startIdx, int nExamples, int startFrame,
+                             int nrFrames, int video_height, int video_width) throws IOException, JCodecException {
+        File cacheFile = getCacheFile(path, startIdx, nExamples, startFrame, nrFrames, video_height, video_width);
+        File tmpFile = new File(cacheFile.getPath() + ".tmp");
+        int frameSize = channels * video_height * video_width;
+        int[][] window = {{startFrame, nrFrames}};
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 20));
+        try {
+            /*Write the header*/
+            out.writeInt(MAGIC);
+            out.writeInt(nExamples);
+            out.writeInt(nrFrames);
+            out.writeInt(channels);
+            out.writeInt(video_height);
+            out.writeInt(video_width);
+            out.writeInt(startFrame);
+            out.writeInt(startIdx);
+            out.write(new byte[HEADER_SIZE - 8 * 4]);
+
+            /*Write the frames of every clip*/
+            FrameConverter converter = new FrameConverter(video_height, video_width, PixelScaling.NONE, InputMode.BGR);
+            float[][] clip = {new float[frameSize * nrFrames]};
+            int[] clipOffset = {0};
+            byte[] frameBytes = new byte[frameSize];
+            for(int i = startIdx; i < startIdx + nExamples; i++) {
+                File f = new File(path, String.format(fileNameStandard, i) + ".mp4");
+                Arrays.fill(clip[0], 0);
+                ClipDecoder.decodeWindows(f, window, converter, clip, clipOffset);
+                /*[frameSize, nrFrames] -> one row per frame*/
+                for(int t = 0; t < nrFrames; t++) {
+                    for(int j = 0; j < frameSize; j++) {
+                        frameBytes[j] = (byte) Math.round(clip[0][j * nrFrames + t]);
+                    }
+                    out.write(frameBytes);
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        if(cacheFile.exists()) {
+            cacheFile.delete();
+        }
+        if(!tmpFile.renameTo(cacheFile)) {
+            throw new IOException("Could not rename " + tmpFile + " to " + cacheFile);
+        }
+        return cacheFile;
+    }
+
+    /**
+     * Checks that a cache file exists and that its header matches the given data and frame configuration, so that a
+     * cache built with other parameters (or by an older build) is rebuilt instead of served
+     * @param cacheFile The cache file
+     * @param startIdx The start index of the video files
+     * @param nExamples The number of video files
+     * @param startFrame The first frame of each video
+     * @param nrFrames The number of frames of each video
+     * @param video_height The height of the frames
+     * @param video_width The width of the frames
+     * @return True if the cache can be used
+     * @throws IOException
+     */
+    public static boolean matches(File cacheFile, int startIdx, int nExamples, int startFrame, int nrFrames,
+                                  int video_height, int video_width) throws IOException {
+        if(!cacheFile.exists() || cacheFile.length() < HEADER_SIZE) {
+            return false;
+        }
+        RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            raf.getChannel().read(header, 0);
+            header.flip();
+            return header.getInt() == MAGIC
+                    && header.getInt() == nExamples
+                    && header.getInt() == nrFrames
+                    && header.getInt() == channels
+                    && header.getInt() == video_height
+                    && header.getInt() == video_width
+                    && header.getInt() == startFrame
+                    && header.getInt() == startIdx
+                    && cacheFile.length() == HEADER_SIZE + (long) nExamples * nrFrames * channels * video_height
+                    * video_width;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Opens and memory-maps an existing cache file
+     * @param file The cache file
+     * @throws IOException
+     */
+    public FrameCache(File file) throws IOException {
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if(header.getInt() != MAGIC) {
+                throw new IOException("Not a frame cache file: " + file);
+            }
+            this.nrOfClips = header.getInt();
+            this.nrFrames = header.getInt();
+            if(header.getInt() != channels) {
+                throw new IOException("Unexpected number of channels in frame cache " + file);
+            }
+            this.frameHeight = header.getInt();
+            this.frameWidth = header.getInt();
+            this.frameSize = channels * frameHeight * frameWidth;
+            this.clipSize = (long) nrFrames * frameSize;
+
+            /*A mapped buffer is limited to 2GB, so the clips are spread over several buffers*/
+            this.clipsPerBuffer = (int) (Integer.MAX_VALUE / clipSize);
+            int nrOfBuffers = (nrOfClips + clipsPerBuffer - 1) / clipsPerBuffer;
+            this.buffers = new MappedByteBuffer[nrOfBuffers];
+            for(int b = 0; b < nrOfBuffers; b++) {
+                int clips = Math.min(clipsPerBuffer, nrOfClips - b * clipsPerBuffer);
+                buffers[b] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + b * clipsPerBuffer * clipSize,
+                        clips * clipSize);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Copies one cached frame into a byte array
+     * @param clip The index of the clip in the cache (not the file number)
+     * @param frame The index of the frame in the clip
+     * @param dst The destination array, of length channels*height*width
+     */
+    public void readFrame(int clip, int frame, byte[] dst) {
+        /*Duplicate the buffer so that several threads can read at the same time*/
+        ByteBuffer buffer = buffers[clip / clipsPerBuffer].duplicate();
+        buffer.position((int) ((clip % clipsPerBuffer) * clipSize + (long) frame * frameSize));
+        buffer.get(dst, 0, frameSize);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getNrOfClips() {
+        return nrOfClips;
+    }
+
+    public int getNrFrames() {
+        return nrFrames;
+    }
+
+    public int getFrameHeight() {
+        return frameHeight;
+    }
+
+    public int getFrameWidth() {
+        return frameWidth;
+    }
+
+    public int getFrameSize() {
+        return frameSize;
+    }
+}
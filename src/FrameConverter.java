@@ -0,0 +1,422 @@
+import org.jcodec.common.model.ColorSpace;
+import org.jcodec.common.model.Picture8Bit;
+import org.jcodec.scale.ColorUtil;
+import org.jcodec.scale.Transform8Bit;
+
+/**
+ * Converts decoded frames directly into a float feature buffer. The result matches the raveled tensors of the
+ * ImageLoader (BGR channels, then rows, then columns, values in [0,255]) but no BufferedImage, INDArray or Writable is
+ * created for the frame. The frame is resized with area averaging, like the Image.SCALE_SMOOTH scaling done by the
+ * ImageLoader, but without rounding the result to whole pixel values. A PixelScaling can be applied while the pixels
+ * are written, so no separate normalization pass over the minibatch is needed.
+ *
+ * Planar YUV frames, as returned by the decoder, are resized before the colour conversion: the Y, U and V planes are
+ * each area averaged to the converted size and only the small frame is converted to BGR, so the conversion costs
+ * height*width pixels instead of the source resolution. Since the conversion is linear, this gives the same values as
+ * converting first, up to clipping at 0 and 255. Other frames are converted to RGB at full size and then resized.
+ *
+ * With the GREY or YUV InputMode the resampled planes are written as they are, without any colour conversion (frames
+ * that are not planar YUV are first converted to YUV 4:2:0).
+ *
+ * A converter reuses its work buffers between frames and is therefore not thread safe; use one converter per thread.
+ */
+public class FrameConverter {
+
+    private static final int channels = 3;
+
+    private final int height;
+    private final int width;
+    private final PixelScaling scaling;
+    private final InputMode mode;
+
+    /*Colour conversion*/
+    private Picture8Bit rgb;
+    private Transform8Bit transform;
+    private ColorSpace transformColor;
+    private Picture8Bit yuvFrame;
+    private Transform8Bit yuvTransform;
+    private ColorSpace yuvTransformColor;
+
+    /*Resampling of the Y, U and V planes and the resampled planes*/
+    private final PlaneScaler[] planeScalers = new PlaneScaler[channels];
+    private float[][] yuv;
+
+    /*Resampling tables for the current source size*/
+    private int srcWidth = -1;
+    private int srcHeight = -1;
+    private int[] xOffsets, xIndices, yOffsets, yIndices;
+    private float[] xWeights, yWeights;
+    private float[] rows;
+
+    /**
+     * @param height The height of the converted frames
+     * @param width The width of the converted frames
+     */
+    public FrameConverter(int height, int width) {
+        this(height, width, PixelScaling.NONE);
+    }
+
+    /**
+     * @param height The height of the converted frames
+     * @param width The width of the converted frames
+     * @param scaling The scaling applied to the pixel values when they are written
+     */
+    public FrameConverter(int height, int width, PixelScaling scaling) {
+        this(height, width, scaling, InputMode.BGR);
+    }
+
+    /**
+     * @param height The height of the frames
+     * @param width The width of the frames
+     * @param scaling The scaling applied to the pixel values when they are written
+     * @param mode The channel layout of the converted frames
+     */
+    public FrameConverter(int height, int width, PixelScaling scaling, InputMode mode) {
+        this.height = height;
+        this.width = width;
+        this.scaling = scaling;
+        this.mode = mode;
+    }
+
+    /**
+     * The size of a converted frame in the feature buffer
+     * @return channels*height*width of the input mode
+     */
+    public int getFrameSize() {
+        return mode.getFrameSize(height, width);
+    }
+
+    /**
+     * Converts a frame and writes it into a feature buffer. Value i of the raveled frame is written to
+     * dst[offset + i*stride], so a frame can be written directly into its time step of a [miniBatch, frameSize,
+     * nrFrames] array ('c' order) by using the number of frames as the stride.
+     * @param src The decoded frame
+     * @param dst The feature buffer
+     * @param offset The index of the first value of the frame
+     * @param stride The distance between two values of the frame
+     */
+    public void convert(Picture8Bit src, float[] dst, int offset, int stride) {
+        long start = PipelineMetrics.start();
+        switch(mode) {
+            case GREY:
+                writeGrey(toYuv(src), dst, offset, stride);
+                break;
+            case YUV:
+                writeYuv(toYuv(src), dst, offset, stride);
+                break;
+            default:
+                if(isPlanarYuv(src.getColor())) {
+                    convertYuv(src, dst, offset, stride);
+                } else {
+                    convertRgb(src, dst, offset, stride);
+                }
+        }
+        PipelineMetrics.stop(PipelineMetrics.CONVERT, start);
+    }
+
+    private static boolean isPlanarYuv(ColorSpace color) {
+        return color.planar && color.nComp == channels;
+    }
+
+    /**
+     * Converts the frame to YUV 4:2:0 unless it already is planar YUV
+     */
+    private Picture8Bit toYuv(Picture8Bit src) {
+        if(isPlanarYuv(src.getColor())) {
+            return src;
+        }
+        if(yuvFrame == null || yuvFrame.getWidth() != src.getWidth() || yuvFrame.getHeight() != src.getHeight()) {
+            yuvFrame = Picture8Bit.createCropped(src.getWidth(), src.getHeight(), ColorSpace.YUV420J,
+                    src.getCrop());
+        }
+        if(yuvTransform == null || yuvTransformColor != src.getColor()) {
+            yuvTransform = ColorUtil.getTransform8Bit(src.getColor(), ColorSpace.YUV420J);
+            yuvTransformColor = src.getColor();
+        }
+        yuvTransform.transform(src, yuvFrame);
+        return yuvFrame;
+    }
+
+    /**
+     * Resamples the first planes of a planar YUV frame into yuv: with the YUV input mode the Y plane to twice the
+     * size of the chroma planes, which get half the frame size, otherwise all planes to the frame size
+     */
+    private void scalePlanes(Picture8Bit src, int nrOfPlanes) {
+        ColorSpace color = src.getColor();
+        if(yuv == null) {
+            yuv = new float[nrOfPlanes][];
+        }
+        for(int i = 0; i < nrOfPlanes; i++) {
+            if(planeScalers[i] == null) {
+                int h = mode == InputMode.YUV ? (i == 0 ? 2 : 1) * (height / 2) : height;
+                int w = mode == InputMode.YUV ? (i == 0 ? 2 : 1) * (width / 2) : width;
+                planeScalers[i] = new PlaneScaler(h, w);
+                yuv[i] = new float[h * w];
+            }
+            int plane = color.compPlane[i];
+            /*The subsampled planes cover the cropped frame rounded up to whole samples*/
+            int w = (src.getCroppedWidth() + (1 << color.compWidth[i]) - 1) >> color.compWidth[i];
+            int h = (src.getCroppedHeight() + (1 << color.compHeight[i]) - 1) >> color.compHeight[i];
+            planeScalers[i].scale(src.getPlaneData(plane), src.getPlaneWidth(plane), w, h, yuv[i]);
+        }
+    }
+
+    /**
+     * Writes the resampled Y plane as the only channel
+     */
+    private void writeGrey(Picture8Bit src, float[] dst, int offset, int stride) {
+        scalePlanes(src, 1);
+        float[] ys = yuv[0];
+        float m = scaling.getMultiplier(0), o = scaling.getOffset(0);
+        for(int i = 0; i < height * width; i++) {
+            dst[offset + i * stride] = ys[i] * m + o;
+        }
+    }
+
+    /**
+     * Writes the 2x2 blocks of the resampled Y plane as four channels, followed by U and V
+     */
+    private void writeYuv(Picture8Bit src, float[] dst, int offset, int stride) {
+        scalePlanes(src, channels);
+        int h = height / 2;
+        int w = width / 2;
+        float[] ys = yuv[0], us = yuv[1], vs = yuv[2];
+        int planeStride = h * w * stride;
+        float m = scaling.getMultiplier(0), o = scaling.getOffset(0);
+        for(int y = 0; y < h; y++) {
+            for(int x = 0; x < w; x++) {
+                int i = y * w + x;
+                int d = offset + i * stride;
+                int s = 2 * y * 2 * w + 2 * x;
+                dst[d] = ys[s] * m + o;
+                dst[d + planeStride] = ys[s + 1] * m + o;
+                dst[d + 2 * planeStride] = ys[s + 2 * w] * m + o;
+                dst[d + 3 * planeStride] = ys[s + 2 * w + 1] * m + o;
+                dst[d + 4 * planeStride] = us[i] * m + o;
+                dst[d + 5 * planeStride] = vs[i] * m + o;
+            }
+        }
+    }
+
+    /**
+     * Resizes the planes of a YUV frame, then converts the resized frame to BGR
+     */
+    private void convertYuv(Picture8Bit src, float[] dst, int offset, int stride) {
+        scalePlanes(src, channels);
+        ColorSpace color = src.getColor();
+
+        /*BT.601, full range for the JPEG (J) colour spaces, video range otherwise*/
+        boolean fullRange = color == ColorSpace.YUV420J || color == ColorSpace.YUV422J
+                || color == ColorSpace.YUV444J;
+        float[] ys = yuv[0], us = yuv[1], vs = yuv[2];
+        int planeStride = height * width * stride;
+        float mb = scaling.getMultiplier(0), mg = scaling.getMultiplier(1), mr = scaling.getMultiplier(2);
+        float ob = scaling.getOffset(0), og = scaling.getOffset(1), or = scaling.getOffset(2);
+        for(int i = 0; i < height * width; i++) {
+            float y = ys[i], u = us[i] - 128, v = vs[i] - 128;
+            float r, g, b;
+            if(fullRange) {
+                r = y + 1.402f * v;
+                g = y - 0.34414f * u - 0.71414f * v;
+                b = y + 1.772f * u;
+            } else {
+                y = 1.164f * (y - 16);
+                r = y + 1.596f * v;
+                g = y - 0.391f * u - 0.813f * v;
+                b = y + 2.018f * u;
+            }
+            int o = offset + i * stride;
+            dst[o] = clip(b) * mb + ob;
+            dst[o + planeStride] = clip(g) * mg + og;
+            dst[o + 2 * planeStride] = clip(r) * mr + or;
+        }
+    }
+
+    private static float clip(float v) {
+        return v < 0 ? 0 : (v > 255 ? 255 : v);
+    }
+
+    /**
+     * Converts a frame to RGB at its full size, then resizes it
+     */
+    private void convertRgb(Picture8Bit src, float[] dst, int offset, int stride) {
+        Picture8Bit p = toRgb(src);
+        prepare(src.getCroppedWidth(), src.getCroppedHeight());
+        byte[] data = p.getPlaneData(0);
+        int lineStride = p.getWidth() * 3;
+
+        /*Resample each source row horizontally, swapping RGB to BGR. JCodec stores [0..255] as [-128, 127]*/
+        for(int y = 0; y < srcHeight; y++) {
+            int lineOffset = y * lineStride;
+            int rowOffset = y * width * 3;
+            for(int x = 0; x < width; x++) {
+                float r = 0, g = 0, b = 0;
+                for(int k = xOffsets[x]; k < xOffsets[x + 1]; k++) {
+                    int s = lineOffset + xIndices[k] * 3;
+                    float w = xWeights[k];
+                    r += (data[s] + 128) * w;
+                    g += (data[s + 1] + 128) * w;
+                    b += (data[s + 2] + 128) * w;
+                }
+                int t = rowOffset + x * 3;
+                rows[t] = b;
+                rows[t + 1] = g;
+                rows[t + 2] = r;
+            }
+        }
+
+        /*Resample vertically, scale and write the channels one plane after the other*/
+        int planeStride = height * width * stride;
+        float mb = scaling.getMultiplier(0), mg = scaling.getMultiplier(1), mr = scaling.getMultiplier(2);
+        float ob = scaling.getOffset(0), og = scaling.getOffset(1), or = scaling.getOffset(2);
+        for(int y = 0; y < height; y++) {
+            for(int x = 0; x < width; x++) {
+                float b = 0, g = 0, r = 0;
+                for(int k = yOffsets[y]; k < yOffsets[y + 1]; k++) {
+                    int t = (yIndices[k] * width + x) * 3;
+                    float w = yWeights[k];
+                    b += rows[t] * w;
+                    g += rows[t + 1] * w;
+                    r += rows[t + 2] * w;
+                }
+                int o = offset + (y * width + x) * stride;
+                dst[o] = b * mb + ob;
+                dst[o + planeStride] = g * mg + og;
+                dst[o + 2 * planeStride] = r * mr + or;
+            }
+        }
+    }
+
+    /**
+     * Converts the frame to RGB, reusing the RGB picture and the transform of the previous frame when possible
+     */
+    private Picture8Bit toRgb(Picture8Bit src) {
+        if(src.getColor() == ColorSpace.RGB) {
+            return src;
+        }
+        if(rgb == null || rgb.getWidth() != src.getWidth() || rgb.getHeight() != src.getHeight()) {
+            rgb = Picture8Bit.createCropped(src.getWidth(), src.getHeight(), ColorSpace.RGB, src.getCrop());
+        }
+        if(transform == null || transformColor != src.getColor()) {
+            transform = ColorUtil.getTransform8Bit(src.getColor(), ColorSpace.RGB);
+            transformColor = src.getColor();
+        }
+        transform.transform(src, rgb);
+        return rgb;
+    }
+
+    /**
+     * Builds the resampling tables when the source size changes
+     */
+    private void prepare(int srcWidth, int srcHeight) {
+        if(srcWidth == this.srcWidth && srcHeight == this.srcHeight) {
+            return;
+        }
+        this.srcWidth = srcWidth;
+        this.srcHeight = srcHeight;
+        xOffsets = new int[width + 1];
+        xIndices = new int[width * ((srcWidth + width - 1) / width + 1)];
+        xWeights = new float[xIndices.length];
+        areaWeights(srcWidth, width, xOffsets, xIndices, xWeights);
+        yOffsets = new int[height + 1];
+        yIndices = new int[height * ((srcHeight + height - 1) / height + 1)];
+        yWeights = new float[yIndices.length];
+        areaWeights(srcHeight, height, yOffsets, yIndices, yWeights);
+        rows = new float[srcHeight * width * 3];
+    }
+
+    /**
+     * Computes the area averaging weights for scaling one axis. Destination pixel i covers the source interval
+     * [i*scale, (i+1)*scale) and each source pixel is weighted by how much of it lies in the interval.
+     * @param srcLength The source length
+     * @param dstLength The destination length
+     * @param offsets The first weight of each destination pixel, of length dstLength + 1
+     * @param indices The source pixel of each weight
+     * @param weights The weights, summing to 1 for each destination pixel
+     */
+    static void areaWeights(int srcLength, int dstLength, int[] offsets, int[] indices, float[] weights) {
+        double scale = (double) srcLength / dstLength;
+        int n = 0;
+        for(int i = 0; i < dstLength; i++) {
+            offsets[i] = n;
+            double start = i * scale;
+            double end = Math.min((i + 1) * scale, srcLength);
+            for(int j = (int) start; j < end; j++) {
+                double w = Math.min(end, j + 1) - Math.max(start, j);
+                if(w > 0) {
+                    indices[n] = j;
+                    weights[n] = (float) (w / (end - start));
+                    n++;
+                }
+            }
+        }
+        offsets[dstLength] = n;
+    }
+
+    /**
+     * Area averages one plane of a frame to the converted size, keeping the tables of the last source size
+     */
+    private static class PlaneScaler {
+        private final int height;
+        private final int width;
+        private int srcWidth = -1;
+        private int srcHeight = -1;
+        private int[] xOffsets, xIndices, yOffsets, yIndices;
+        private float[] xWeights, yWeights;
+        private float[] rows;
+
+        private PlaneScaler(int height, int width) {
+            this.height = height;
+            this.width = width;
+        }
+
+        /**
+         * @param data The plane, JCodec stores [0..255] as [-128, 127]
+         * @param lineStride The distance between two lines of the plane
+         * @param srcWidth The width of the plane to be resampled
+         * @param srcHeight The height of the plane to be resampled
+         * @param dst Receives the height*width resampled values, in [0,255]
+         */
+        private void scale(byte[] data, int lineStride, int srcWidth, int srcHeight, float[] dst) {
+            prepare(srcWidth, srcHeight);
+            for(int y = 0; y < srcHeight; y++) {
+                int lineOffset = y * lineStride;
+                int rowOffset = y * width;
+                for(int x = 0; x < width; x++) {
+                    float sum = 0;
+                    for(int k = xOffsets[x]; k < xOffsets[x + 1]; k++) {
+                        sum += (data[lineOffset + xIndices[k]] + 128) * xWeights[k];
+                    }
+                    rows[rowOffset + x] = sum;
+                }
+            }
+            for(int y = 0; y < height; y++) {
+                int o = y * width;
+                for(int x = 0; x < width; x++) {
+                    float sum = 0;
+                    for(int k = yOffsets[y]; k < yOffsets[y + 1]; k++) {
+                        sum += rows[yIndices[k] * width + x] * yWeights[k];
+                    }
+                    dst[o + x] = sum;
+                }
+            }
+        }
+
+        private void prepare(int srcWidth, int srcHeight) {
+            if(srcWidth == this.srcWidth && srcHeight == this.srcHeight) {
+                return;
+            }
+            this.srcWidth = srcWidth;
+            this.srcHeight = srcHeight;
+            xOffsets = new int[width + 1];
+            xIndices = new int[width * ((srcWidth + width - 1) / width + 1)];
+            xWeights = new float[xIndices.length];
+            areaWeights(srcWidth, width, xOffsets, xIndices, xWeights);
+            yOffsets = new int[height + 1];
+            yIndices = new int[height * ((srcHeight + height - 1) / height + 1)];
+            yWeights = new float[yIndices.length];
+            areaWeights(srcHeight, height, yOffsets, yIndices, yWeights);
+            rows = new float[srcHeight * width];
+        }
+    }
+}
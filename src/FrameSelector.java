@@ -0,0 +1,113 @@
+import org.jcodec.common.model.ColorSpace;
+import org.jcodec.common.model.Picture8Bit;
+
+import java.util.Arrays;
+
+/**
+ * Skips near-duplicate frames of a clip, e.g. the long runs of almost identical frames of a static camera shot, so
+ * that the network only classifies frames that differ from the last classified one. The skipped frames reuse the
+ * prediction of the last kept frame.
+ *
+ * Each frame gets a signature of GRID x GRID block means of its luma plane, sampled at every second pixel and row.
+ * A frame is kept if the mean absolute difference between its signature and the signature of the last kept frame
+ * (in [0,255] luma units) is at least the threshold. Comparing with the last kept frame rather than the previous frame
+ * means that a slow pan is not skipped indefinitely.
+ *
+ * A FrameSelector holds the state of one clip and is not thread safe.
+ */
+public class FrameSelector {
+
+    private static final int GRID = 16;
+
+    private final double threshold;
+    private int[] last;
+    private int[] current = new int[GRID * GRID];
+    private final int[] samples = new int[GRID * GRID];
+    private int nrOfKept = 0;
+    private int nrOfSkipped = 0;
+
+    /**
+     * @param threshold The smallest signature difference of a kept frame, 0 keeps all frames
+     */
+    public FrameSelector(double threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Decides whether a frame should be classified. The first frame is always kept.
+     * @param p The decoded frame, in YUV or RGB
+     * @return True if the frame should be classified, false if it should reuse the prediction of the last kept frame
+     */
+    public boolean select(Picture8Bit p) {
+        signature(p, current);
+        if(last != null && distance(last, current) < threshold) {
+            nrOfSkipped++;
+            PipelineMetrics.count(PipelineMetrics.SKIPPED, 1);
+            return false;
+        }
+        /*The kept frame is compared with the following frames*/
+        int[] tmp = last == null ? new int[GRID * GRID] : last;
+        last = current;
+        current = tmp;
+        nrOfKept++;
+        return true;
+    }
+
+    /**
+     * Computes the block means of the luma of a frame
+     */
+    private void signature(Picture8Bit p, int[] sig) {
+        int width = p.getWidth();
+        int height = p.getHeight();
+        byte[] data = p.getPlaneData(0);
+        boolean rgb = p.getColor() == ColorSpace.RGB || p.getColor() == ColorSpace.BGR;
+        int stride = p.getPlaneWidth(0) * (rgb ? 3 : 1);
+
+        Arrays.fill(sig, 0);
+        Arrays.fill(samples, 0);
+        for(int y = 0; y < height; y += 2) {
+            int row = y * GRID / height * GRID;
+            int offset = y * stride;
+            for(int x = 0; x < width; x += 2) {
+                int luma;
+                if(rgb) {
+                    int i = offset + 3 * x;
+                    /*Approximately 0.25, 0.625, 0.125 (the order of R and B hardly matters here)*/
+                    luma = (2 * (data[i] + 128) + 5 * (data[i + 1] + 128) + (data[i + 2] + 128)) >> 3;
+                } else {
+                    luma = data[offset + x] + 128;
+                }
+                int cell = row + x * GRID / width;
+                sig[cell] += luma;
+                samples[cell]++;
+            }
+        }
+        for(int i = 0; i < sig.length; i++) {
+            if(samples[i] > 0) {
+                sig[i] /= samples[i];
+            }
+        }
+    }
+
+    private static double distance(int[] a, int[] b) {
+        long sum = 0;
+        for(int i = 0; i < a.length; i++) {
+            sum += Math.abs(a[i] - b[i]);
+        }
+        return (double) sum / a.length;
+    }
+
+    /**
+     * @return The number of frames kept so far
+     */
+    public int getNrOfKept() {
+        return nrOfKept;
+    }
+
+    /**
+     * @return The number of frames skipped so far
+     */
+    public int getNrOfSkipped() {
+        return nrOfSkipped;
+    }
+}
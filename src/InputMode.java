@@ -0,0 +1,83 @@
+/**
+ * The channel layout of the frames fed to a network. BGR is the layout of the ImageLoader. The other modes are taken
+ * from the Y, U and V planes of the decoded frames, so no colour conversion is needed:
+ *
+ * - GREY: the Y plane only, one channel of height x width
+ * - YUV: the Y plane folded into four channels of height/2 x width/2 (each channel holding one pixel of every 2x2
+ *   block, i.e. space-to-depth), followed by U and V resampled to height/2 x width/2. This is the 4:2:0 layout of
+ *   the decoder in a frame of half the size and half the values of BGR.
+ *
+ * The values stay in [0,255] like the BGR channels. A PixelScaling is applied with the multiplier and offset of its
+ * first channel to all channels.
+ */
+public enum InputMode {
+
+    BGR("bgr", 3, 1),
+    GREY("grey", 1, 1),
+    YUV("yuv", 6, 2);
+
+    /*The name of the mode in configurations, e.g. SequentialFramesRecordReader.INPUT_MODE*/
+    private final String name;
+    private final int channels;
+    private final int subsampling;
+
+    InputMode(String name, int channels, int subsampling) {
+        this.name = name;
+        this.channels = channels;
+        this.subsampling = subsampling;
+    }
+
+    /**
+     * @param name The name of a mode, e.g. from a configuration
+     * @return The mode
+     */
+    public static InputMode forName(String name) {
+        for(InputMode mode : values()) {
+            if(mode.name.equals(name)) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown input mode " + name);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The number of channels of the network input
+     */
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * @param height The height of the frames
+     * @return The height of the network input
+     */
+    public int getHeight(int height) {
+        return height / subsampling;
+    }
+
+    /**
+     * @param width The width of the frames
+     * @return The width of the network input
+     */
+    public int getWidth(int width) {
+        return width / subsampling;
+    }
+
+    /**
+     * @param height The height of the frames
+     * @param width The width of the frames
+     * @return The size of a frame in the feature arrays
+     */
+    public int getFrameSize(int height, int width) {
+        return channels * getHeight(height) * getWidth(width);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,204 @@
+import org.jcodec.common.DemuxerTrackMeta;
+import org.jcodec.common.io.NIOUtils;
+import org.jcodec.common.io.SeekableByteChannel;
+import org.jcodec.containers.mp4.demuxer.MP4Demuxer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the keyframes (I-frames) of a video clip. It is read from the sync sample table of the mp4 container the
+ * first time a clip is decoded and stored next to the clip (e.g. "sportclip_1.mp4.keyframes"), so later epochs only
+ * read a few bytes. The index is used to start decoding a frame window at the nearest preceding keyframe and to
+ * resync at the next keyframe when a frame cannot be decoded.
+ *
+ * The index file stores the length and modification time of the clip and is rebuilt if the clip changes.
+ */
+public class KeyframeIndex {
+
+    public static final String EXTENSION = ".keyframes";
+    private static final int MAGIC = 0x4B465831;
+
+    /*Indices already read by this process, by clip path*/
+    private static final ConcurrentHashMap<String, KeyframeIndex> loaded = new ConcurrentHashMap<String, KeyframeIndex>();
+
+    private final int totalFrames;
+    private final int[] keyframes;
+
+    /**
+     * @param totalFrames The number of frames of the clip
+     * @param keyframes The sorted numbers of the keyframes
+     */
+    public KeyframeIndex(int totalFrames, int[] keyframes) {
+        this.totalFrames = totalFrames;
+        this.keyframes = keyframes;
+    }
+
+    /**
+     * Returns the index file of a clip
+     * @param video The video file
+     * @return The index file
+     */
+    public static File getIndexFile(File video) {
+        return new File(video.getPath() + EXTENSION);
+    }
+
+    /**
+     * Returns the keyframe index of a clip. The index is read from the index file next to the clip, or built from the
+     * clip and saved if there is no up to date index file.
+     * @param video The video file
+     * @return The keyframe index
+     * @throws IOException
+     */
+    public static KeyframeIndex forFile(File video) throws IOException {
+        String key = video.getAbsolutePath();
+        KeyframeIndex index = loaded.get(key);
+        if(index != null) {
+            return index;
+        }
+
+        File indexFile = getIndexFile(video);
+        if(indexFile.exists()) {
+            index = read(indexFile, video);
+        }
+        if(index == null) {
+            SeekableByteChannel channel = NIOUtils.readableChannel(video);
+            try {
+                index = build(channel);
+            } finally {
+                channel.close();
+            }
+            try {
+                index.write(indexFile, video);
+            } catch (IOException e) {
+                /*The index still works without being saved, e.g. for a read-only data folder*/
+                System.err.println("Could not save keyframe index " + indexFile + ": " + e.getMessage());
+            }
+        }
+        loaded.put(key, index);
+        return index;
+    }
+
+    /**
+     * Builds the keyframe index of a clip from the sync sample table of its video track. The position of the channel
+     * is restored afterwards.
+     * @param channel The channel of the video
+     * @return The keyframe index
+     * @throws IOException
+     */
+    public static KeyframeIndex build(SeekableByteChannel channel) throws IOException {
+        long position = channel.position();
+        DemuxerTrackMeta meta = MP4Demuxer.createMP4Demuxer(channel).getVideoTrack().getMeta();
+        channel.setPosition(position);
+
+        int totalFrames = meta.getTotalFrames();
+        int[] keyframes = meta.getSeekFrames();
+        if(keyframes == null) {
+            /*No sync sample table means that every frame is a keyframe*/
+            keyframes = new int[totalFrames];
+            for(int i = 0; i < totalFrames; i++) {
+                keyframes[i] = i;
+            }
+        } else {
+            keyframes = keyframes.clone();
+            Arrays.sort(keyframes);
+        }
+        return new KeyframeIndex(totalFrames, keyframes);
+    }
+
+    /**
+     * Reads an index file, returning null if it is not a valid index of the clip
+     */
+    private static KeyframeIndex read(File indexFile, File video) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                if(in.readInt() != MAGIC || in.readLong() != video.length() || in.readLong() != video.lastModified()) {
+                    return null;
+                }
+                int totalFrames = in.readInt();
+                int[] keyframes = new int[in.readInt()];
+                for(int i = 0; i < keyframes.length; i++) {
+                    keyframes[i] = in.readInt();
+                }
+                return new KeyframeIndex(totalFrames, keyframes);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file which is then renamed, so that a reader never sees a partial index
+     */
+    private void write(File indexFile, File video) throws IOException {
+        File tmpFile = new File(indexFile.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeLong(video.length());
+            out.writeLong(video.lastModified());
+            out.writeInt(totalFrames);
+            out.writeInt(keyframes.length);
+            for(int k : keyframes) {
+                out.writeInt(k);
+            }
+        } finally {
+            out.close();
+        }
+        if(indexFile.exists()) {
+            indexFile.delete();
+        }
+        if(!tmpFile.renameTo(indexFile)) {
+            tmpFile.delete();
+            throw new IOException("Could not rename " + tmpFile + " to " + indexFile);
+        }
+    }
+
+    /**
+     * @param frame A frame number
+     * @return The last keyframe at or before the frame, or 0 if there is none
+     */
+    public int keyframeAtOrBefore(int frame) {
+        int i = Arrays.binarySearch(keyframes, frame);
+        if(i >= 0) {
+            return keyframes[i];
+        }
+        i = -i - 2;
+        return i >= 0 ? keyframes[i] : 0;
+    }
+
+    /**
+     * @param frame A frame number
+     * @return The first keyframe after the frame, or the number of frames if there is none
+     */
+    public int keyframeAfter(int frame) {
+        int i = Arrays.binarySearch(keyframes, frame + 1);
+        if(i < 0) {
+            i = -i - 1;
+        }
+        return i < keyframes.length ? keyframes[i] : totalFrames;
+    }
+
+    public boolean isKeyframe(int frame) {
+        return Arrays.binarySearch(keyframes, frame) >= 0;
+    }
+
+    public int getTotalFrames() {
+        return totalFrames;
+    }
+
+    public int[] getKeyframes() {
+        return keyframes;
+    }
+}
@@ -1,15 +1,46 @@
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Author: Daniel Karlsson c11dkn@cs.umu.se
  *
  * Methods for saving and loading trained network models.
+ *
+ * Besides the ModelSerializer zip, a model can be saved in an inference format which holds only the configuration
+ * and the parameters, without the updater state. The parameters are stored uncompressed as floats in native byte
+ * order, starting at an aligned offset, so loading memory-maps the file and copies them into the parameter array of
+ * the network in one go instead of inflating and deserializing the zip.
  */
 public class ModelHandler {
 
+    /*Inference format: magic, version, length of the configuration json, number of parameters, byte order, the
+    configuration json, then the parameters at the next multiple of PARAMS_ALIGNMENT*/
+    private static final int INFERENCE_MAGIC = 0x564D4931;
+    private static final int INFERENCE_VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int PARAMS_ALIGNMENT = 64;
+
+    /*Loaded models by canonical path, see getModel*/
+    private static final ConcurrentHashMap<String, CachedModel> cache = new ConcurrentHashMap<String, CachedModel>();
+
     /**
      * Method that saves a network model into a file. Used for saving trained network models.
      * @param model The model to be saved
@@ -32,4 +63,148 @@ public class ModelHandler {
         MultiLayerNetwork model = ModelSerializer.restoreMultiLayerNetwork(file);
         return model;
     }
+
+    /**
+     * Saves a model in the inference format. The file is written to a temporary file which then replaces the file.
+     * @param model The model to be saved
+     * @param fileName The desired filename
+     * @throws IOException
+     */
+    public static void saveInferenceModel(MultiLayerNetwork model, String fileName) throws IOException {
+        File file = new File(fileName);
+        File tmpFile = new File(fileName + ".tmp");
+        byte[] conf = model.getLayerWiseConfigurations().toJson().getBytes(StandardCharsets.UTF_8);
+        /*A copy, in case the parameters are a view into a larger buffer*/
+        INDArray params = model.params().dup();
+        int nrOfParams = params.length();
+        long paramsOffset = getParamsOffset(conf.length);
+
+        RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+        try {
+            raf.setLength(paramsOffset + 4L * nrOfParams);
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(INFERENCE_MAGIC).putInt(INFERENCE_VERSION).putInt(conf.length).putInt(nrOfParams)
+                    .put((byte) (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 0 : 1));
+            header.clear();
+            channel.write(header, 0);
+            channel.write(ByteBuffer.wrap(conf), HEADER_SIZE);
+
+            MappedByteBuffer dst = channel.map(FileChannel.MapMode.READ_WRITE, paramsOffset, 4L * nrOfParams);
+            dst.order(ByteOrder.nativeOrder()).asFloatBuffer().put(params.data().asFloat(), 0, nrOfParams);
+            dst.force();
+        } finally {
+            raf.close();
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads a model saved by saveInferenceModel. The model has no updater state and is meant for inference; it can
+     * still be trained, but the updater then starts from scratch.
+     * @param fileName The name of the file containing the model
+     * @return The loaded model
+     * @throws IOException
+     */
+    public static MultiLayerNetwork loadInferenceModel(String fileName) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if(header.getInt() != INFERENCE_MAGIC) {
+                throw new IOException(fileName + " is not an inference model");
+            }
+            if(header.getInt() != INFERENCE_VERSION) {
+                throw new IOException(fileName + " has an unsupported inference model version");
+            }
+            int confLength = header.getInt();
+            int nrOfParams = header.getInt();
+            ByteOrder order = header.get() == 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+
+            ByteBuffer conf = ByteBuffer.allocate(confLength);
+            channel.read(conf, HEADER_SIZE);
+            MultiLayerNetwork model = new MultiLayerNetwork(
+                    MultiLayerConfiguration.fromJson(new String(conf.array(), StandardCharsets.UTF_8)));
+
+            /*Copy the mapped parameters straight into the buffer of a new parameter array*/
+            MappedByteBuffer src = channel.map(FileChannel.MapMode.READ_ONLY, getParamsOffset(confLength),
+                    4L * nrOfParams);
+            src.order(order);
+            INDArray params = Nd4j.create(1, nrOfParams);
+            if(order == ByteOrder.nativeOrder() && params.data().dataType() == DataBuffer.Type.FLOAT) {
+                params.data().asNio().order(ByteOrder.nativeOrder()).asFloatBuffer().put(src.asFloatBuffer());
+            } else {
+                float[] values = new float[nrOfParams];
+                src.asFloatBuffer().get(values);
+                params = Nd4j.create(values);
+            }
+            model.init(params, false);
+            return model;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static long getParamsOffset(int confLength) {
+        long end = HEADER_SIZE + confLength;
+        return (end + PARAMS_ALIGNMENT - 1) / PARAMS_ALIGNMENT * PARAMS_ALIGNMENT;
+    }
+
+    /**
+     * @param fileName The name of a model file
+     * @return True if the file is in the inference format
+     * @throws IOException
+     */
+    public static boolean isInferenceModel(String fileName) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(fileName));
+        try {
+            return in.available() >= 4 && in.readInt() == INFERENCE_MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns a model for inference, loading it (in either format) only if it is not in the cache or the file has
+     * changed since it was loaded. The returned model is shared between callers, so it must not be trained; callers
+     * running it on several threads should use a clone per thread.
+     * @param fileName The name of the file containing the model
+     * @return The model
+     * @throws IOException
+     */
+    public static MultiLayerNetwork getModel(String fileName) throws IOException {
+        File file = new File(fileName).getCanonicalFile();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        CachedModel cached = cache.get(file.getPath());
+        if(cached != null && cached.lastModified == lastModified && cached.length == length) {
+            return cached.model;
+        }
+        MultiLayerNetwork model = isInferenceModel(file.getPath()) ? loadInferenceModel(file.getPath())
+                : loadModel(file.getPath());
+        cache.put(file.getPath(), new CachedModel(model, lastModified, length));
+        return model;
+    }
+
+    /**
+     * Removes all models from the cache
+     */
+    public static void clearCache() {
+        cache.clear();
+    }
+
+    private static class CachedModel {
+        private final MultiLayerNetwork model;
+        private final long lastModified;
+        private final long length;
+
+        private CachedModel(MultiLayerNetwork model, long lastModified, long length) {
+            this.model = model;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
 }
@@ -1,18 +1,19 @@
-import org.apache.commons.io.FileUtils;
 import org.deeplearning4j.eval.Evaluation;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
-import org.jcodec.api.FrameGrab8Bit;
 import org.jcodec.api.JCodecException;
+import org.jcodec.common.io.NIOUtils;
+import org.jcodec.common.io.SeekableByteChannel;
 import org.jcodec.common.model.Picture8Bit;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Author: Daniel Karlsson c11dkn@cs.umu.se
@@ -31,7 +32,9 @@ public class NetworkEvaluator {
         Evaluation totalEvaluation = new Evaluation(LabelMap.labelMap);
         while (evaluationData.hasNext()) {
             DataSet dsTest = evaluationData.next();
+            long start = PipelineMetrics.start();
             INDArray predicted = model.output(dsTest.getFeatureMatrix(), false);
+            PipelineMetrics.stop(PipelineMetrics.EVALUATE, start);
             INDArray actual = dsTest.getLabels();
             if(sequentialData)
                 totalEvaluation.evalTimeSeries(actual, predicted);
@@ -41,9 +44,22 @@ public class NetworkEvaluator {
         return totalEvaluation;
     }
 
-    private static final String tmpSeqFolder = "video_data/sequential_data/tmp_data/";
-    private static final String tmpName = "video";
-    private static final String tmpNonSeqFolder = "video_data/nonsequential_data/tmp_data/";
+    /**
+     * Evaluates the data into a ConfusionMatrix instead of an Evaluation
+     * @param model The network model used for evaluation
+     * @param evaluationData The data used for evaluation, sequential or non-sequential
+     * @param matrix The matrix the classified frames are added to
+     */
+    public static void evaluate(MultiLayerNetwork model, DataSetIterator evaluationData, ConfusionMatrix matrix) {
+        while (evaluationData.hasNext()) {
+            DataSet dsTest = evaluationData.next();
+            long start = PipelineMetrics.start();
+            INDArray predicted = model.output(dsTest.getFeatureMatrix(), false);
+            PipelineMetrics.stop(PipelineMetrics.EVALUATE, start);
+            matrix.addFrames(dsTest.getLabels(), predicted);
+        }
+    }
+
     private static final int height = 168;
     private static final int width = 168;
 
@@ -56,35 +72,130 @@ public class NetworkEvaluator {
      * @return The Evaluation Stats
      */
     public static Evaluation evaluateVideoClipSeq(MultiLayerNetwork model, String path, int category, int startFrame, int nrOfFrames, int nrOfCategories) {
-        PrintWriter writer = null;
-        DataSetIterator testData = null;
+        Evaluation[] evals = evaluateVideoClipSeq(model, path, category, new int[][] {{startFrame, nrOfFrames}},
+                nrOfCategories);
+        return evals == null ? null : evals[0];
+    }
+
+    /**
+     * Evaluate several frame windows of a video clip with a sequential (recurrent) model (e.g. LRCN). The clip is
+     * decoded once for all windows instead of once per window. The model is given the frames in the BGR layout.
+     * @param model Model to be used in the classification
+     * @param path Path to the video
+     * @param category The correct category of the video
+     * @param windows The frame windows to be classified, each given as {startFrame, nrOfFrames}
+     * @param nrOfCategories The number of possible labels/categories
+     * @return The Evaluation Stats of each window, in the same order as the windows
+     */
+    public static Evaluation[] evaluateVideoClipSeq(MultiLayerNetwork model, String path, int category, int[][] windows,
+                                                    int nrOfCategories) {
+        INDArray[] features = decodeVideoClipSeq(path, windows, InputMode.BGR);
+        if(features != null) {
+            /*Evaluate each window*/
+            Evaluation[] evals = new Evaluation[windows.length];
+            for(int w = 0; w < windows.length; w++) {
+                INDArray labels = Nd4j.zeros(new int[] {1, nrOfCategories, windows[w][1]}, 'f');
+                for(int t = 0; t < windows[w][1]; t++) {
+                    labels.putScalar(new int[] {0, category, t}, 1.0);
+                }
+                INDArray predicted = model.output(features[w], false);
+                evals[w] = new Evaluation(LabelMap.labelMap);
+                evals[w].evalTimeSeries(labels, predicted);
+            }
+            return evals;
+        }
+        return null;
+    }
+
+    /**
+     * Decodes the frame windows of a video clip for a sequential (recurrent) model, e.g. for the BatchedEvaluator
+     * @param path Path to the video
+     * @param windows The frame windows, each given as {startFrame, nrOfFrames}
+     * @param mode The channel layout of the frames the model was trained on
+     * @return The feature array of each window, or null if the video could not be decoded
+     */
+    public static INDArray[] decodeVideoClipSeq(String path, int[][] windows, InputMode mode) {
         /*Open file*/
         File f = new File(path);
         if(f.exists() && f.isFile()) {
-            /*Create video and labels files in the tmp dir*/
-            File videoFile = new File(tmpSeqFolder + tmpName + "_0.mp4");
-            File labelFile =new File(tmpSeqFolder + tmpName + "_0.txt");
             try {
-                /*Copy the input file to the temp folder*/
-                FileUtils.copyFile(f, videoFile);
+                return ClipDecoder.decodeWindows(f, windows, height, width, PixelScaling.UNIT, mode);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (JCodecException e) {
+                e.printStackTrace();
+            }
+        }
+        return null;
+    }
 
-                /*Write category data to the label file in the temp folder*/
-                writer = new PrintWriter(labelFile, "UTF-8");
-                for(int j = 0; j < nrOfFrames; j++) {
-                    writer.println(category);
+    /**
+     * Decodes the frames of a video clip for a non-sequential model, e.g. for the BatchedEvaluator
+     * @param path Path to the video
+     * @param startFrame The first frame
+     * @param nrOfFrames Nr of frames from the video that should be classified
+     * @param frameJump The distance between two classified frames
+     * @param keyframesOnly True if only keyframes should be decoded (see ClipDecoder.sampleFrames)
+     * @param mode The channel layout of the frames the model was trained on
+     * @return The feature array of the frames, one row per frame, or null if the video could not be decoded
+     */
+    public static INDArray decodeVideoClipNonSeq(String path, int startFrame, int nrOfFrames, int frameJump,
+                                                 boolean keyframesOnly, InputMode mode) {
+        /*Open file*/
+        File f = new File(path);
+        if(f.exists() && f.isFile()) {
+            try {
+                /*Get the numbers of the frames to be classified*/
+                int[] frameNumbers = ClipDecoder.sampleFrames(KeyframeIndex.forFile(f), startFrame,
+                        (startFrame + nrOfFrames) * frameJump, frameJump, keyframesOnly);
+                return ClipDecoder.decodeFrames(f, frameNumbers, height, width, PixelScaling.NONE, mode);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (JCodecException e) {
+                e.printStackTrace();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decodes the frames of a video clip for a non-sequential model like decodeVideoClipNonSeq, but skips the
+     * near-duplicate frames rejected by a FrameSelector. Each row stands for a kept frame and the frames skipped after
+     * it, so its prediction is reused for them.
+     * @param path Path to the video
+     * @param startFrame The first frame
+     * @param nrOfFrames Nr of frames from the video that should be classified
+     * @param frameJump The distance between two classified frames
+     * @param keyframesOnly True if only keyframes should be decoded (see ClipDecoder.sampleFrames)
+     * @param mode The channel layout of the frames the model was trained on
+     * @param selector Decides which frames are kept
+     * @param weights Receives the number of frames of each row as weights[0]
+     * @return The feature array of the kept frames, one row per kept frame, or null if the video could not be decoded
+     */
+    public static INDArray decodeVideoClipNonSeq(String path, int startFrame, int nrOfFrames, int frameJump,
+                                                 boolean keyframesOnly, InputMode mode, FrameSelector selector,
+                                                 int[][] weights) {
+        /*Open file*/
+        File f = new File(path);
+        if(f.exists() && f.isFile()) {
+            try {
+                /*Get the numbers of the frames to be classified*/
+                int[] frameNumbers = ClipDecoder.sampleFrames(KeyframeIndex.forFile(f), startFrame,
+                        (startFrame + nrOfFrames) * frameJump, frameJump, keyframesOnly);
+                int[] w = new int[frameNumbers.length];
+                INDArray features = ClipDecoder.decodeFrames(f, frameNumbers, height, width, PixelScaling.NONE, mode,
+                        selector, w);
+                if(features == null) {
+                    System.err.println("Could not decode any frame of " + f.getName());
+                    return null;
                 }
-                writer.close();
-                /*Load the data and the labels for testing*/
-                testData = DataLoader.getSequentialData(tmpSeqFolder, tmpName + "_%d", 0, 1, 1, startFrame, nrOfFrames, height, width, nrOfCategories);
-            } catch (Exception e) {
+                weights[0] = Arrays.copyOf(w, features.size(0));
+                return features;
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (JCodecException e) {
                 e.printStackTrace();
             }
-            /*Evaluate the input file*/
-            Evaluation eval = evaluate(model, testData, true);
-            /*Delete the tmp files*/
-            labelFile.delete();
-            videoFile.delete();
-            return eval;
         }
         return null;
     }
@@ -99,38 +210,238 @@ public class NetworkEvaluator {
      */
     public static Evaluation evaluateVideoClipNonSeq(MultiLayerNetwork model, String path, int category, int startFrame, int nrOfFrames, int frameJump
     , int nrOfCategories) {
+        return evaluateVideoClipNonSeq(model, path, category, startFrame, nrOfFrames, frameJump, false, nrOfCategories);
+    }
+
+    /**
+     * Evaluate a video clip with a non-sequential model (e.g. standard CNN). The sampled frames are decoded in a
+     * single pass over the clip. The model is given the frames in the BGR layout.
+     * @param model Model to be used in the classification
+     * @param path Path to the video
+     * @param category The correct category of the video
+     * @param nrOfFrames Nr of frames from the video that should be classified
+     * @param frameJump The distance between two classified frames
+     * @param keyframesOnly True if each sampled frame should be replaced by the keyframe at or before it, so that
+     *                      only keyframes are decoded (fewer frames may then be classified)
+     * @param nrOfCategories The number of possible labels/categories
+     * @return The Evaluation Stats
+     */
+    public static Evaluation evaluateVideoClipNonSeq(MultiLayerNetwork model, String path, int category, int startFrame,
+                                                     int nrOfFrames, int frameJump, boolean keyframesOnly,
+                                                     int nrOfCategories) {
 
         Evaluation eval = null;
+        INDArray features = decodeVideoClipNonSeq(path, startFrame, nrOfFrames, frameJump, keyframesOnly,
+                InputMode.BGR);
+        if(features != null) {
+            /*Evaluate the frames*/
+            INDArray labels = Nd4j.zeros(features.size(0), nrOfCategories);
+            for(int i = 0; i < features.size(0); i++) {
+                labels.putScalar(new int[] {i, category}, 1.0);
+            }
+            INDArray predicted = model.output(features, false);
+            eval = new Evaluation(LabelMap.labelMap);
+            eval.eval(labels, predicted);
+        }
+        return eval;
+    }
+
+    /**
+     * Evaluate the frame windows of a video clip with a sequential (recurrent) model and stop as soon as the video is
+     * decided. Each window is classified as soon as its last frame has been decoded and its frames are added to the
+     * vote; when the vote is decided, the remaining frames are neither decoded nor classified.
+     * @param model Model to be used in the classification
+     * @param path Path to the video
+     * @param windows The frame windows to be classified, each given as {startFrame, nrOfFrames}
+     * @param mode The channel layout of the frames the model was trained on
+     * @param vote Collects the posteriors of the classified frames and decides the video
+     * @param nrOfCategories The number of possible labels/categories
+     * @return The number of frames classified as each category (see ConfusionMatrix.countPredictions) for each
+     * classified window, in the order they were classified, or null if the video could not be decoded
+     */
+    public static int[][] evaluateVideoClipSeqEarlyExit(final MultiLayerNetwork model, String path,
+                                                        final int[][] windows, InputMode mode, final VideoVote vote,
+                                                        final int nrOfCategories) {
         /*Open file*/
         File f = new File(path);
         if(f.exists() && f.isFile()) {
-            try {
+            FrameConverter converter = new FrameConverter(height, width, PixelScaling.UNIT, mode);
+            final int frameSize = converter.getFrameSize();
+            final float[][] dst = new float[windows.length][];
+            int firstFrame = Integer.MAX_VALUE;
+            int lastFrame = 0;
+            for(int w = 0; w < windows.length; w++) {
+                dst[w] = new float[frameSize * windows[w][1]];
+                firstFrame = Math.min(firstFrame, windows[w][0]);
+                lastFrame = Math.max(lastFrame, windows[w][0] + windows[w][1]);
+            }
+            final List<int[]> predictions = new ArrayList<int[]>();
 
-                /*Create frames*/
-                for(int i = startFrame; i < (startFrame + nrOfFrames) * frameJump; i += frameJump) {
-                    BufferedImage b = null;
-                    Picture8Bit p = FrameGrab8Bit.getFrameFromFile(f, i);
-                    b = AWTUtil.toBufferedImage8Bit(p);
-                    File outputFile = new File(tmpNonSeqFolder + LabelMap.labelMap.get(category) + "/img_" + i + ".bmp");
-                    ImageIO.write(b, "bmp", outputFile);
+            try {
+                SeekableByteChannel channel = NIOUtils.readableChannel(f);
+                List<Integer> failed;
+                try {
+                    failed = ClipDecoder.decodeRange(channel, KeyframeIndex.forFile(f), firstFrame, lastFrame,
+                            new ClipDecoder.WindowWriter(windows, converter, dst, new int[windows.length]) {
+                        @Override
+                        protected boolean windowDone(int window) {
+                            INDArray predicted = model.output(Nd4j.create(dst[window],
+                                    new int[] {1, frameSize, windows[window][1]}, 'c'), false);
+                            predictions.add(ConfusionMatrix.countPredictions(predicted, nrOfCategories));
+                            /*[1, nrOfCategories, nrOfFrames] to one row per frame*/
+                            return !vote.add(predicted.tensorAlongDimension(0, 1, 2).transpose());
+                        }
+                    });
+                } finally {
+                    channel.close();
                 }
-
-                /*Get data and evaluate*/
-                DataSetIterator data = DataLoader.getNonSequentialData(tmpNonSeqFolder + LabelMap.labelMap.get(category), new String[] {"bmp"}, height,
-                        width, 3, nrOfFrames, 100, nrOfCategories)[0];
-                eval = evaluate(model, data, false);
+                if(!failed.isEmpty()) {
+                    System.err.println("Could not decode frames " + failed + " of " + f.getName());
+                }
+                return predictions.toArray(new int[predictions.size()][]);
             } catch (IOException e) {
                 e.printStackTrace();
             } catch (JCodecException e) {
                 e.printStackTrace();
             }
+        }
+        return null;
+    }
+
+    /**
+     * Evaluate a video clip with a non-sequential model (e.g. standard CNN) and stop as soon as the video is decided.
+     * The sampled frames are classified in chunks as they are decoded and added to the vote; when the vote is
+     * decided, the remaining frames are neither decoded nor classified. Frames that cannot be decoded are skipped.
+     * @param model Model to be used in the classification
+     * @param path Path to the video
+     * @param nrOfFrames Nr of frames from the video that should at most be classified
+     * @param frameJump The distance between two classified frames
+     * @param keyframesOnly True if only keyframes should be decoded (see ClipDecoder.sampleFrames)
+     * @param mode The channel layout of the frames the model was trained on
+     * @param chunkSize The number of frames classified at once, i.e. how often the vote is checked
+     * @param vote Collects the posteriors of the classified frames and decides the video
+     * @param nrOfCategories The number of possible labels/categories
+     * @return The number of frames classified as each category, or null if the video could not be decoded
+     */
+    public static int[] evaluateVideoClipNonSeqEarlyExit(MultiLayerNetwork model, String path, int startFrame,
+                                                         int nrOfFrames, int frameJump, boolean keyframesOnly,
+                                                         InputMode mode, int chunkSize, VideoVote vote,
+                                                         int nrOfCategories) {
+        return evaluateVideoClipNonSeqEarlyExit(model, path, startFrame, nrOfFrames, frameJump, keyframesOnly, mode,
+                chunkSize, null, vote, nrOfCategories);
+    }
+
+    /**
+     * Evaluate a video clip with a non-sequential model like evaluateVideoClipNonSeqEarlyExit, but skip the
+     * near-duplicate frames rejected by a FrameSelector. A skipped frame reuses the prediction of the last kept frame
+     * in the counts and the vote: while the kept frame is in the chunk its weight is increased, once the chunk has
+     * been classified the skipped frame is added to the vote with the posteriors of the kept frame, so a long static
+     * shot can still decide the video without waiting for the next kept frame.
+     * @param model Model to be used in the classification
+     * @param path Path to the video
+     * @param nrOfFrames Nr of frames from the video that should at most be classified
+     * @param frameJump The distance between two classified frames
+     * @param keyframesOnly True if only keyframes should be decoded (see ClipDecoder.sampleFrames)
+     * @param mode The channel layout of the frames the model was trained on
+     * @param chunkSize The number of kept frames classified at once, i.e. how often the vote is checked
+     * @param selector Decides which frames are kept, or null to keep all frames
+     * @param vote Collects the posteriors of the classified frames and decides the video
+     * @param nrOfCategories The number of possible labels/categories
+     * @return The number of frames classified as each category, or null if the video could not be decoded
+     */
+    public static int[] evaluateVideoClipNonSeqEarlyExit(final MultiLayerNetwork model, String path, int startFrame,
+                                                         int nrOfFrames, int frameJump, boolean keyframesOnly,
+                                                         InputMode mode, final int chunkSize,
+                                                         final FrameSelector selector, final VideoVote vote,
+                                                         final int nrOfCategories) {
+        /*Open file*/
+        File f = new File(path);
+        if(f.exists() && f.isFile()) {
+            final FrameConverter converter = new FrameConverter(height, width, PixelScaling.NONE, mode);
+            final int frameSize = converter.getFrameSize();
+            final float[] chunk = new float[chunkSize * frameSize];
+            final int[] rows = {0};
+            final int[] weights = new int[chunkSize];
+            final int[] predictions = new int[nrOfCategories];
+            /*The posteriors of the last kept frame once its chunk has been classified*/
+            final INDArray[] lastKept = {null};
+            final int[] one = {1};
+
+            try {
+                KeyframeIndex index = KeyframeIndex.forFile(f);
+                int[] frameNumbers = ClipDecoder.sampleFrames(index, startFrame, (startFrame + nrOfFrames) * frameJump,
+                        frameJump, keyframesOnly);
+                SeekableByteChannel channel = NIOUtils.readableChannel(f);
+                List<Integer> failed;
+                try {
+                    failed = ClipDecoder.decodeFrames(channel, index, frameNumbers, new ClipDecoder.FrameHandler() {
+                        @Override
+                        public boolean frame(int frameNumber, Picture8Bit p) {
+                            if(selector != null && !selector.select(p)) {
+                                if(rows[0] > 0) {
+                                    /*The kept frame is still in the chunk*/
+                                    weights[rows[0] - 1]++;
+                                    return true;
+                                }
+                                /*The chunk of the kept frame has been classified*/
+                                int[] counts = ConfusionMatrix.countPredictions(lastKept[0], nrOfCategories, one);
+                                for(int i = 0; i < nrOfCategories; i++) {
+                                    predictions[i] += counts[i];
+                                }
+                                return !vote.add(lastKept[0], one);
+                            }
+                            converter.convert(p, chunk, rows[0] * frameSize, 1);
+                            weights[rows[0]] = 1;
+                            rows[0]++;
+                            if(rows[0] == chunkSize) {
+                                INDArray predicted = evaluateChunk(model, chunk, chunkSize, frameSize, weights,
+                                        predictions, vote);
+                                lastKept[0] = predicted.getRow(chunkSize - 1).dup();
+                                rows[0] = 0;
+                                return !vote.isDecided();
+                            }
+                            return true;
+                        }
 
-            /*Delete frames*/
-            for(int i = startFrame; i < (startFrame + nrOfFrames) * frameJump; i += frameJump) {
-                File fd = new File(tmpNonSeqFolder + LabelMap.labelMap.get(category) + "/img_" + i + ".bmp");
-                fd.delete();
+                        @Override
+                        public boolean missing(int frameNumber) {
+                            return true;
+                        }
+                    });
+                } finally {
+                    channel.close();
+                }
+                /*The last chunk may not be full*/
+                if(rows[0] > 0 && !vote.isDecided()) {
+                    evaluateChunk(model, chunk, rows[0], frameSize, weights, predictions, vote);
+                }
+                if(!failed.isEmpty()) {
+                    System.err.println("Could not decode frames " + failed + " of " + f.getName());
+                }
+                return vote.getNrOfFrames() > 0 ? predictions : null;
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (JCodecException e) {
+                e.printStackTrace();
             }
         }
-        return eval;
+        return null;
+    }
+
+    /**
+     * Classifies the first rows of a chunk of frames and adds them, each as the number of frames given by its weight,
+     * to the prediction counts and a vote
+     * @return The posteriors of the rows
+     */
+    private static INDArray evaluateChunk(MultiLayerNetwork model, float[] chunk, int rows, int frameSize,
+                                         int[] weights, int[] predictions, VideoVote vote) {
+        float[] data = rows * frameSize == chunk.length ? chunk : Arrays.copyOf(chunk, rows * frameSize);
+        INDArray predicted = model.output(Nd4j.create(data, new int[] {rows, frameSize}, 'c'), false);
+        int[] counts = ConfusionMatrix.countPredictions(predicted, predictions.length, weights);
+        for(int i = 0; i < predictions.length; i++) {
+            predictions[i] += counts[i];
+        }
+        vote.add(predicted, weights);
+        return predicted;
     }
 }
@@ -34,6 +34,28 @@ public class NetworkModels {
      * @return The model configuration
      */
     public static MultiLayerConfiguration getModel1(int height, int width, int channels, int nrOfCategories) {
+        return getModel1(height, width, channels, nrOfCategories, 14, 7);
+    }
+
+    /**
+     * Returns the configuration for network model 1 sized for the frames of an input mode (see InputMode). With the
+     * YUV mode the input has half the height and width, so the first convolution uses an 8x8 kernel with stride 4
+     * instead of 14x14 with stride 7, which covers about the same area of the frame.
+     * @param mode The channel layout of the input
+     * @param height The height of the frames
+     * @param width The width of the frames
+     * @param nrOfCategories The number of categories in the data
+     * @return The model configuration
+     */
+    public static MultiLayerConfiguration getModel1(InputMode mode, int height, int width, int nrOfCategories) {
+        if(mode == InputMode.YUV) {
+            return getModel1(mode.getHeight(height), mode.getWidth(width), mode.getChannels(), nrOfCategories, 8, 4);
+        }
+        return getModel1(mode.getHeight(height), mode.getWidth(width), mode.getChannels(), nrOfCategories, 14, 7);
+    }
+
+    private static MultiLayerConfiguration getModel1(int height, int width, int channels, int nrOfCategories,
+                                                     int kernel, int stride) {
 
         Random rand = new Random();
 
@@ -53,7 +75,7 @@ public class NetworkModels {
                 .momentum(0.9)
                 .miniBatch(false)
                 .list()
-                .layer(0, new ConvolutionLayer.Builder(new int[]{14, 14}, new int[]{7, 7})
+                .layer(0, new ConvolutionLayer.Builder(new int[]{kernel, kernel}, new int[]{stride, stride})
                         .name("conv1")
                         .nIn(channels)
                         .nOut(32)
@@ -200,9 +222,31 @@ public class NetworkModels {
      * @return The network configuration
      */
     public static MultiLayerConfiguration getModel3(int height, int width, int channels, int nrOfOutputs) {
+        return getModel3(height, width, channels, nrOfOutputs, 14, 7);
+    }
+
+    /**
+     * Returns the configuration of model 3 sized for the frames of an input mode (see InputMode), with the first
+     * convolution adapted like in getModel1
+     * @param mode The channel layout of the input
+     * @param height The height of the frames
+     * @param width The width of the frames
+     * @param nrOfOutputs nr of output categories
+     * @return The network configuration
+     */
+    public static MultiLayerConfiguration getModel3(InputMode mode, int height, int width, int nrOfOutputs) {
+        if(mode == InputMode.YUV) {
+            return getModel3(mode.getHeight(height), mode.getWidth(width), mode.getChannels(), nrOfOutputs, 8, 4);
+        }
+        return getModel3(mode.getHeight(height), mode.getWidth(width), mode.getChannels(), nrOfOutputs, 14, 7);
+    }
+
+    private static MultiLayerConfiguration getModel3(int height, int width, int channels, int nrOfOutputs,
+                                                     int kernel, int stride) {
 
-        int fc_height = ((((((height-14)/7)-2)/2)-2)/2)+1;
-        int fc_width = ((((((height-14)/7)-2)/2)-2)/2)+1;
+        /*Size after conv1, maxpool (3x3, stride 2) and conv2 (3x3, stride 2)*/
+        int fc_height = ((((height - kernel) / stride + 1 - 3) / 2 + 1) - 3) / 2 + 1;
+        int fc_width = ((((width - kernel) / stride + 1 - 3) / 2 + 1) - 3) / 2 + 1;
 
         Updater updater = Updater.RMSPROP;
         MultiLayerConfiguration.Builder conf = new NeuralNetConfiguration.Builder()
@@ -216,8 +260,8 @@ public class NetworkModels {
                 .layer(0, new ConvolutionLayer.Builder()
                         .nIn(channels)
                         .nOut(32)
-                        .kernelSize(14, 14)
-                        .stride(7, 7)
+                        .kernelSize(kernel, kernel)
+                        .stride(stride, stride)
                         .activation("relu")
                         .weightInit(WeightInit.RELU)
                         .updater(updater)
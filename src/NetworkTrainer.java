@@ -1,22 +1,56 @@
 import org.deeplearning4j.earlystopping.EarlyStoppingConfiguration;
+import org.deeplearning4j.earlystopping.EarlyStoppingModelSaver;
 import org.deeplearning4j.earlystopping.EarlyStoppingResult;
 import org.deeplearning4j.earlystopping.saver.LocalFileModelSaver;
 import org.deeplearning4j.earlystopping.scorecalc.DataSetLossCalculator;
+import org.deeplearning4j.earlystopping.scorecalc.ScoreCalculator;
+import org.deeplearning4j.earlystopping.termination.EpochTerminationCondition;
+import org.deeplearning4j.earlystopping.termination.IterationTerminationCondition;
 import org.deeplearning4j.earlystopping.termination.MaxEpochsTerminationCondition;
 import org.deeplearning4j.earlystopping.termination.MaxTimeIterationTerminationCondition;
 import org.deeplearning4j.earlystopping.termination.ScoreImprovementEpochTerminationCondition;
 import org.deeplearning4j.earlystopping.trainer.EarlyStoppingTrainer;
+import org.deeplearning4j.nn.api.Updater;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.layers.BaseRecurrentLayer;
+import org.deeplearning4j.nn.conf.preprocessor.RnnToFeedForwardPreProcessor;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.indexing.NDArrayIndex;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Methods for training a network model. The early stopping training stops depending on 3 different factors: If the number
  * of epochs is too high, if too much time has been spent on training or if the performance has not improved for N epochs.
+ *
+ * The parallel variants train K replicas of the model on K threads. Each replica takes the next minibatch from the
+ * training data when it needs one, and every N minibatches per replica the parameters (and updater states) of the
+ * replicas are averaged, so the replicas start each round from the same model.
+ *
+ * The early stopping training can write checkpoints every N minibatches (see TrainingCheckpoint) to
+ * "checkpoint.bin" in the model save path, and resume a run from its last checkpoint.
  */
 public class NetworkTrainer {
 
+    /*Seed of the testing subset scored by the asynchronous early stopping evaluation*/
+    private static final long EVALUATION_SEED = 12345;
+
     /**
      * Trains a model with the provided data for the selected number of epochs
      *
@@ -28,13 +62,89 @@ public class NetworkTrainer {
     public static MultiLayerNetwork train(MultiLayerNetwork model, DataSetIterator trainData, int nrOfEpochs) {
         for(int i = 0; i < nrOfEpochs; i++) {
             while(trainData.hasNext()) {
-                model.fit(trainData.next());
+                DataSet ds = trainData.next();
+                long start = PipelineMetrics.start();
+                model.fit(ds);
+                PipelineMetrics.stop(PipelineMetrics.FIT, start);
+                PipelineMetrics.count(PipelineMetrics.EXAMPLES, ds.numExamples());
             }
             trainData.reset();
         }
         return model;
     }
 
+    /**
+     * Trains only the layers of a sequential model after its frozen layers (the head, e.g. the dense, LSTM and output
+     * layers of model 3) on the cached activations of the frozen layers (see FeatureCache), then copies the trained
+     * parameters of the head back into the model. The frozen layers are not run at all during training.
+     *
+     * @param model The model, whose head parameters are replaced
+     * @param nrOfFrozenLayers The number of frozen layers, as used for the feature cache
+     * @param trainFeatures The cached activations and labels, see CachedFeaturesDataSetIterator
+     * @param nrOfEpochs The number of training epochs
+     * @return The model
+     */
+    public static MultiLayerNetwork trainHead(MultiLayerNetwork model, int nrOfFrozenLayers,
+                                              DataSetIterator trainFeatures, int nrOfEpochs) {
+        MultiLayerNetwork head = getHead(model, nrOfFrozenLayers);
+        train(head, trainFeatures, nrOfEpochs);
+        setHeadParams(model, nrOfFrozenLayers, head);
+        return model;
+    }
+
+    /**
+     * Returns a network of the layers of a model after its frozen layers, with a copy of their parameters. The input
+     * of the head is the sequence of flattened activations of the frozen layers, [miniBatch, featureSize, nrFrames],
+     * so a feed-forward first layer gets an RnnToFeedForwardPreProcessor; the other input preprocessors are kept.
+     * @param model The model
+     * @param nrOfFrozenLayers The number of frozen layers
+     * @return The head
+     */
+    public static MultiLayerNetwork getHead(MultiLayerNetwork model, int nrOfFrozenLayers) {
+        MultiLayerConfiguration conf = model.getLayerWiseConfigurations();
+        List<NeuralNetConfiguration> confs = new ArrayList<NeuralNetConfiguration>();
+        MultiLayerConfiguration.Builder builder = new MultiLayerConfiguration.Builder();
+        for(int i = nrOfFrozenLayers; i < conf.getConfs().size(); i++) {
+            confs.add(conf.getConf(i).clone());
+            if(i > nrOfFrozenLayers && conf.getInputPreProcess(i) != null) {
+                builder.inputPreProcessor(i - nrOfFrozenLayers, conf.getInputPreProcess(i).clone());
+            }
+        }
+        if(!(confs.get(0).getLayer() instanceof BaseRecurrentLayer)) {
+            builder.inputPreProcessor(0, new RnnToFeedForwardPreProcessor());
+        }
+        MultiLayerNetwork head = new MultiLayerNetwork(builder.confs(confs).pretrain(false).backprop(true)
+                .backpropType(conf.getBackpropType()).build());
+        int offset = getNrOfParams(model, nrOfFrozenLayers);
+        head.init(model.params().get(NDArrayIndex.point(0), NDArrayIndex.interval(offset, model.numParams()))
+                .dup(), false);
+        return head;
+    }
+
+    /**
+     * Copies the parameters of a head (see getHead) into the layers of a model after its frozen layers
+     * @param model The model
+     * @param nrOfFrozenLayers The number of frozen layers
+     * @param head The head
+     */
+    public static void setHeadParams(MultiLayerNetwork model, int nrOfFrozenLayers, MultiLayerNetwork head) {
+        INDArray params = model.params().dup();
+        int offset = getNrOfParams(model, nrOfFrozenLayers);
+        params.get(NDArrayIndex.point(0), NDArrayIndex.interval(offset, model.numParams())).assign(head.params());
+        model.setParams(params);
+    }
+
+    /**
+     * @return The number of parameters of the first layers of a model
+     */
+    private static int getNrOfParams(MultiLayerNetwork model, int nrOfLayers) {
+        int n = 0;
+        for(int i = 0; i < nrOfLayers; i++) {
+            n += model.getLayer(i).numParams();
+        }
+        return n;
+    }
+
     /**
      * Trains the model with the provided data until one of the termination conditions are met. The conditions provided
      * are max hours, max epochs and max epochs without improvement. The model will be constantly evaluated with testing
@@ -53,20 +163,601 @@ public class NetworkTrainer {
                                                        DataSetIterator trainData, DataSetIterator testData,
                                                        int maxEpochs, int maxHours, int maxEpochsWithoutImprovement) {
 
-        EarlyStoppingConfiguration esConf = new EarlyStoppingConfiguration.Builder()
+        EarlyStoppingConfiguration<MultiLayerNetwork> esConf = getConfiguration(modelSavePath, testData, maxEpochs,
+                maxHours, maxEpochsWithoutImprovement);
+
+        EarlyStoppingTrainer trainer = new EarlyStoppingTrainer(esConf, model, trainData);
+        //Conduct early stopping training:
+        EarlyStoppingResult result = trainer.fit();
+
+        return (MultiLayerNetwork) result.getBestModel();
+    }
+
+    /**
+     * Trains the model like earlyStoppingTrain, writing a checkpoint every checkpointEvery minibatches, and optionally
+     * resumes the run from the last checkpoint
+     * @param model The model to be trained, with the same configuration as the checkpointed model when resuming
+     * @param modelSavePath Path to where the best model and the checkpoints will be saved
+     * @param trainData The training data
+     * @param testData The testing data
+     * @param maxEpochs Termination condition: max epochs
+     * @param maxHours Termination condition: max hours
+     * @param maxEpochsWithoutImprovement Termination condition: max epochs without improvement
+     * @param checkpointEvery The number of minibatches between two checkpoints, or 0 for checkpoints after each epoch
+     * @param resume True to continue from the checkpoint in modelSavePath, if there is one
+     * @return The trained model (best model)
+     */
+    public static MultiLayerNetwork earlyStoppingTrain(MultiLayerNetwork model, String modelSavePath,
+                                                       DataSetIterator trainData, DataSetIterator testData,
+                                                       int maxEpochs, int maxHours, int maxEpochsWithoutImprovement,
+                                                       int checkpointEvery, boolean resume) {
+        return parallelEarlyStoppingTrain(model, modelSavePath, trainData, testData, maxEpochs, maxHours,
+                maxEpochsWithoutImprovement, 1, 1, checkpointEvery, resume);
+    }
+
+    /**
+     * Trains a model with the provided data for the selected number of epochs, on several threads
+     *
+     * @param model The model to be trained
+     * @param trainData The training data
+     * @param nrOfEpochs The number of training epochs
+     * @param workers The number of replicas trained at the same time
+     * @param averagingFrequency The number of minibatches each replica is trained on between two averagings
+     * @return The trained network
+     */
+    public static MultiLayerNetwork parallelTrain(MultiLayerNetwork model, DataSetIterator trainData, int nrOfEpochs,
+                                                  int workers, int averagingFrequency) {
+        ExecutorService pool = Executors.newFixedThreadPool(workers, daemonThreads());
+        try {
+            MultiLayerNetwork[] replicas = getReplicas(model, workers);
+            for(int i = 0; i < nrOfEpochs; i++) {
+                fitEpoch(replicas, pool, trainData, averagingFrequency, new ArrayList<IterationTerminationCondition>(),
+                        0, null);
+                trainData.reset();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return model;
+    }
+
+    /**
+     * Trains the model with the provided data until one of the termination conditions are met, like
+     * earlyStoppingTrain, but with the data-parallel training of parallelTrain. The model is evaluated and saved after
+     * each epoch, when the replicas have been averaged.
+     * @param model The model to be trained
+     * @param modelSavePath Path to where the best model will be saved
+     * @param trainData The training data
+     * @param testData The testing data
+     * @param maxEpochs Termination condition: max epochs
+     * @param maxHours Termination condition: max hours
+     * @param maxEpochsWithoutImprovement Termination condition: max epochs without improvement
+     * @param workers The number of replicas trained at the same time
+     * @param averagingFrequency The number of minibatches each replica is trained on between two averagings
+     * @return The trained model (best model)
+     */
+    public static MultiLayerNetwork parallelEarlyStoppingTrain(MultiLayerNetwork model, String modelSavePath,
+                                                               DataSetIterator trainData, DataSetIterator testData,
+                                                               int maxEpochs, int maxHours,
+                                                               int maxEpochsWithoutImprovement, int workers,
+                                                               int averagingFrequency) {
+        if(workers <= 1) {
+            return earlyStoppingTrain(model, modelSavePath, trainData, testData, maxEpochs, maxHours,
+                    maxEpochsWithoutImprovement);
+        }
+        return parallelEarlyStoppingTrain(model, modelSavePath, trainData, testData, maxEpochs, maxHours,
+                maxEpochsWithoutImprovement, workers, averagingFrequency, 0, false);
+    }
+
+    /**
+     * Trains the model like parallelEarlyStoppingTrain, writing a checkpoint every checkpointEvery minibatches, and
+     * optionally resumes the run from the last checkpoint. The checkpoints are taken after the replicas have been
+     * averaged, so checkpointEvery is rounded up to whole rounds of workers * averagingFrequency minibatches.
+     * @param model The model to be trained, with the same configuration as the checkpointed model when resuming
+     * @param modelSavePath Path to where the best model and the checkpoints will be saved
+     * @param trainData The training data
+     * @param testData The testing data
+     * @param maxEpochs Termination condition: max epochs
+     * @param maxHours Termination condition: max hours
+     * @param maxEpochsWithoutImprovement Termination condition: max epochs without improvement
+     * @param workers The number of replicas trained at the same time
+     * @param averagingFrequency The number of minibatches each replica is trained on between two averagings
+     * @param checkpointEvery The number of minibatches between two checkpoints, or 0 for checkpoints after each epoch
+     * @param resume True to continue from the checkpoint in modelSavePath, if there is one
+     * @return The trained model (best model)
+     */
+    public static MultiLayerNetwork parallelEarlyStoppingTrain(MultiLayerNetwork model, String modelSavePath,
+                                                               DataSetIterator trainData, DataSetIterator testData,
+                                                               int maxEpochs, int maxHours,
+                                                               int maxEpochsWithoutImprovement, int workers,
+                                                               int averagingFrequency, int checkpointEvery,
+                                                               boolean resume) {
+        return parallelEarlyStoppingTrain(model, modelSavePath, trainData, testData, maxEpochs, maxHours,
+                maxEpochsWithoutImprovement, workers, averagingFrequency, checkpointEvery, resume, 0);
+    }
+
+    /**
+     * Trains the model like parallelEarlyStoppingTrain with checkpoints, optionally scoring each epoch on a fixed
+     * random subset of the testing data in the background (see AsyncScoreCalculator). The next epoch is trained while
+     * the snapshot of the previous epoch is scored, and the score is used by the termination conditions and for
+     * saving the best model when the next epoch ends, so a stop on the score takes effect one epoch later than with
+     * the synchronous score. The subset is read once and kept in memory.
+     * @param model The model to be trained, with the same configuration as the checkpointed model when resuming
+     * @param modelSavePath Path to where the best model and the checkpoints will be saved
+     * @param trainData The training data
+     * @param testData The testing data
+     * @param maxEpochs Termination condition: max epochs
+     * @param maxHours Termination condition: max hours
+     * @param maxEpochsWithoutImprovement Termination condition: max epochs without improvement
+     * @param workers The number of replicas trained at the same time
+     * @param averagingFrequency The number of minibatches each replica is trained on between two averagings
+     * @param checkpointEvery The number of minibatches between two checkpoints, or 0 for checkpoints after each epoch
+     * @param resume True to continue from the checkpoint in modelSavePath, if there is one
+     * @param evaluationExamples The number of testing examples scored in the background after each epoch, or 0 to
+     *                           score all testing data before the next epoch is trained
+     * @return The trained model (best model)
+     */
+    public static MultiLayerNetwork parallelEarlyStoppingTrain(MultiLayerNetwork model, String modelSavePath,
+                                                               DataSetIterator trainData, DataSetIterator testData,
+                                                               int maxEpochs, int maxHours,
+                                                               int maxEpochsWithoutImprovement, int workers,
+                                                               int averagingFrequency, int checkpointEvery,
+                                                               boolean resume, int evaluationExamples) {
+        ScoreCalculator<MultiLayerNetwork> scoreCalculator = evaluationExamples > 0
+                ? new AsyncScoreCalculator(testData, evaluationExamples, EVALUATION_SEED)
+                : new DataSetLossCalculator(testData, true);
+        EarlyStoppingConfiguration<MultiLayerNetwork> esConf = getConfiguration(modelSavePath, scoreCalculator,
+                maxEpochs, maxHours, maxEpochsWithoutImprovement);
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, workers), daemonThreads());
+        EarlyStoppingResult<MultiLayerNetwork> result;
+        try {
+            result = earlyStoppingFit(esConf, getReplicas(model, workers), pool, trainData, averagingFrequency,
+                    new File(modelSavePath, "checkpoint.bin"), checkpointEvery, resume);
+        } finally {
+            pool.shutdownNow();
+            if(scoreCalculator instanceof AsyncScoreCalculator) {
+                ((AsyncScoreCalculator) scoreCalculator).close();
+            }
+        }
+        System.out.println(result);
+        return result.getBestModel();
+    }
+
+    private static EarlyStoppingConfiguration<MultiLayerNetwork> getConfiguration(String modelSavePath,
+                                                                                  DataSetIterator testData,
+                                                                                  int maxEpochs, int maxHours,
+                                                                                  int maxEpochsWithoutImprovement) {
+        return getConfiguration(modelSavePath, new DataSetLossCalculator(testData, true), maxEpochs, maxHours,
+                maxEpochsWithoutImprovement);
+    }
+
+    private static EarlyStoppingConfiguration<MultiLayerNetwork> getConfiguration(
+            String modelSavePath, ScoreCalculator<MultiLayerNetwork> scoreCalculator, int maxEpochs, int maxHours,
+            int maxEpochsWithoutImprovement) {
+        return new EarlyStoppingConfiguration.Builder<MultiLayerNetwork>()
                 .epochTerminationConditions(new MaxEpochsTerminationCondition(maxEpochs),
                         new ScoreImprovementEpochTerminationCondition(maxEpochsWithoutImprovement))
                 .iterationTerminationConditions(new MaxTimeIterationTerminationCondition(maxHours, TimeUnit.HOURS))
-                .scoreCalculator(new DataSetLossCalculator(testData, true))
+                .scoreCalculator(scoreCalculator)
                 .saveLastModel(true)
                 .evaluateEveryNEpochs(1)
                 .modelSaver(new LocalFileModelSaver(modelSavePath))
                 .build();
+    }
 
-        EarlyStoppingTrainer trainer = new EarlyStoppingTrainer(esConf, model, trainData);
-        //Conduct early stopping training:
-        EarlyStoppingResult result = trainer.fit();
+    /**
+     * The epoch loop of the EarlyStoppingTrainer, with each epoch trained by fitEpoch and checkpoints written in the
+     * background. When resuming, the epoch termination conditions are given the scores of the finished epochs again
+     * so they are in the same state as when the checkpoint was taken, and the minibatches of the current epoch that
+     * were already trained on are skipped.
+     *
+     * With an AsyncScoreCalculator the snapshot of an epoch is scored while the next epoch is trained, and its score
+     * is used at the end of the next epoch. The score of the last epoch (on the max epochs or an iteration
+     * termination condition) is waited for before returning. The checkpoints written while a snapshot is being scored
+     * hold the snapshot, and a resumed run scores it again.
+     */
+    private static EarlyStoppingResult<MultiLayerNetwork> earlyStoppingFit(
+            EarlyStoppingConfiguration<MultiLayerNetwork> esConf, MultiLayerNetwork[] replicas, ExecutorService pool,
+            DataSetIterator trainData, int averagingFrequency, File checkpointFile, final int checkpointEvery,
+            boolean resume) {
+        final MultiLayerNetwork model = replicas[0];
+        final AsyncScoreCalculator async = esConf.getScoreCalculator() instanceof AsyncScoreCalculator
+                ? (AsyncScoreCalculator) esConf.getScoreCalculator() : null;
+        final TrainingCheckpoint.AsyncWriter writer = new TrainingCheckpoint.AsyncWriter(checkpointFile);
+        for(EpochTerminationCondition c : esConf.getEpochTerminationConditions()) {
+            c.initialize();
+        }
+        for(IterationTerminationCondition c : esConf.getIterationTerminationConditions()) {
+            c.initialize();
+        }
 
-        return (MultiLayerNetwork) result.getBestModel();
+        final EpochScores scores = new EpochScores(esConf);
+        int epochCount = 0;
+        int firstBatch = 0;
+        try {
+            if(resume) {
+                TrainingCheckpoint checkpoint = TrainingCheckpoint.read(checkpointFile);
+                if(checkpoint != null) {
+                    checkpoint.restore(model);
+                    average(replicas, 1);
+                    scores.scoreVsEpoch.putAll(checkpoint.getScoreVsEpoch());
+                    for(Map.Entry<Integer, Double> e : scores.scoreVsEpoch.entrySet()) {
+                        for(EpochTerminationCondition c : esConf.getEpochTerminationConditions()) {
+                            c.terminate(e.getKey(), e.getValue());
+                        }
+                    }
+                    epochCount = checkpoint.getEpoch();
+                    firstBatch = checkpoint.getBatch();
+                    scores.bestModelEpoch = checkpoint.getBestModelEpoch();
+                    scores.bestModelScore = checkpoint.getBestModelScore();
+                    System.out.println("Resuming training at epoch " + epochCount + ", minibatch " + firstBatch);
+
+                    /*The epoch that was being scored in the background when the checkpoint was taken*/
+                    if(checkpoint.hasPendingEvaluation()) {
+                        MultiLayerNetwork pending = model.clone();
+                        checkpoint.restorePendingEvaluation(pending);
+                        if(async != null) {
+                            async.submit(pending, checkpoint.getPendingEpoch());
+                        } else {
+                            EpochTerminationCondition stop = scores.add(checkpoint.getPendingEpoch(),
+                                    esConf.getScoreCalculator().calculateScore(pending), pending, true);
+                            if(stop != null) {
+                                return scores.getResult(EarlyStoppingResult.TerminationReason.EpochTerminationCondition,
+                                        stop.toString(), epochCount);
+                            }
+                        }
+                    }
+                }
+            }
+
+            while(true) {
+                /*Skips the minibatches trained on before the checkpoint, without decoding them where possible*/
+                DataLoader.resetTo(trainData, firstBatch);
+
+                /*Checkpoint every checkpointEvery minibatches*/
+                final int epoch = epochCount;
+                final int bestEpoch = scores.bestModelEpoch;
+                final double bestScore = scores.bestModelScore;
+                final int[] lastCheckpoint = {firstBatch};
+                /*The number of minibatches trained on so far, reported by fitEpoch after each round*/
+                final int[] reached = {firstBatch};
+                RoundListener checkpoints = new RoundListener() {
+                    @Override
+                    public void roundDone(int batch) {
+                        reached[0] = batch;
+                        if(checkpointEvery > 0 && batch - lastCheckpoint[0] >= checkpointEvery) {
+                            writer.submit(checkpoint(model, epoch, batch, bestEpoch, bestScore, scores.scoreVsEpoch,
+                                    async));
+                            lastCheckpoint[0] = batch;
+                        }
+                    }
+                };
+
+                IterationTerminationCondition terminated = fitEpoch(replicas, pool, trainData, averagingFrequency,
+                        esConf.getIterationTerminationConditions(), firstBatch, checkpoints);
+                firstBatch = 0;
+                if(terminated != null) {
+                    /*The score of the previous epoch can still improve the best model*/
+                    if(async != null && async.hasPending()) {
+                        scores.add(async.getPendingEpoch(), async.awaitScore(), async.getSnapshot(), false);
+                    }
+                    writer.submit(TrainingCheckpoint.snapshot(model, epoch, reached[0], scores.bestModelEpoch,
+                            scores.bestModelScore, scores.scoreVsEpoch));
+                    scores.saveLatest(model);
+                    return scores.getResult(EarlyStoppingResult.TerminationReason.IterationTerminationCondition,
+                            terminated.toString(), epochCount);
+                }
+
+                if(epochCount % esConf.getEvaluateEveryNEpochs() == 0) {
+                    EpochTerminationCondition stop = null;
+                    if(async == null) {
+                        long start = PipelineMetrics.start();
+                        double score = esConf.getScoreCalculator().calculateScore(model);
+                        PipelineMetrics.stop(PipelineMetrics.EVALUATE, start);
+                        stop = scores.add(epochCount, score, model, true);
+                    } else {
+                        if(async.hasPending()) {
+                            stop = scores.add(async.getPendingEpoch(), async.awaitScore(), async.getSnapshot(), true);
+                        }
+                        if(stop == null) {
+                            async.submit(model, epochCount);
+                            /*Wait for the last score instead of training an epoch that would be thrown away*/
+                            if(isMaxEpochs(esConf, epochCount)) {
+                                stop = scores.add(async.getPendingEpoch(), async.awaitScore(), async.getSnapshot(),
+                                        true);
+                            }
+                        }
+                    }
+                    scores.saveLatest(model);
+                    writer.submit(checkpoint(model, epochCount + 1, 0, scores.bestModelEpoch, scores.bestModelScore,
+                            scores.scoreVsEpoch, async));
+                    if(stop != null) {
+                        return scores.getResult(EarlyStoppingResult.TerminationReason.EpochTerminationCondition,
+                                stop.toString(), epochCount + 1);
+                    }
+                }
+                epochCount++;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new EarlyStoppingResult<MultiLayerNetwork>(EarlyStoppingResult.TerminationReason.Error,
+                    e.toString(), scores.scoreVsEpoch, scores.bestModelEpoch, scores.bestModelScore, epochCount,
+                    model);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Takes a checkpoint of the training, with the snapshot of the epoch that is being scored in the background
+     * @param async The score calculator, or null if the epochs are scored before the next epoch
+     * @return The checkpoint
+     */
+    private static TrainingCheckpoint checkpoint(MultiLayerNetwork model, int epoch, int batch, int bestModelEpoch,
+                                                 double bestModelScore, Map<Integer, Double> scoreVsEpoch,
+                                                 AsyncScoreCalculator async) {
+        TrainingCheckpoint checkpoint = TrainingCheckpoint.snapshot(model, epoch, batch, bestModelEpoch,
+                bestModelScore, scoreVsEpoch);
+        if(async != null && async.hasPending()) {
+            checkpoint.setPendingEvaluation(async.getSnapshot(), async.getPendingEpoch());
+        }
+        return checkpoint;
+    }
+
+    /**
+     * @return True if a MaxEpochsTerminationCondition stops the training after the epoch
+     */
+    private static boolean isMaxEpochs(EarlyStoppingConfiguration<MultiLayerNetwork> esConf, int epoch) {
+        for(EpochTerminationCondition c : esConf.getEpochTerminationConditions()) {
+            /*Unlike the other conditions it has no state, and does not depend on the score*/
+            if(c instanceof MaxEpochsTerminationCondition && c.terminate(epoch, 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Trains the replicas on one epoch of the data. The replicas take their minibatches from the shared iterator one
+     * at a time, as they need them, so only the minibatches being trained on are held in memory and the iterator can
+     * keep loading ahead while the replicas train. A round ends when each replica has been trained on
+     * averagingFrequency minibatches (or the data ran out); the replicas are then averaged and the iteration
+     * termination conditions are checked with the average score of the replicas.
+     *
+     * The iteration counts of the replicas are advanced together: after a round all replicas get the iteration count
+     * they started the round with plus the number of minibatches of the round, as with training on one thread, so the
+     * learning rate schedules run at the same rate as without data-parallelism.
+     * @param batch The number of minibatches of the epoch that have already been trained on
+     * @param listener Called after each round, or null
+     * @return The iteration termination condition that stopped the epoch, or null if the epoch was completed
+     */
+    private static IterationTerminationCondition fitEpoch(final MultiLayerNetwork[] replicas, ExecutorService pool,
+                                                          final DataSetIterator trainData,
+                                                          final int averagingFrequency,
+                                                          List<IterationTerminationCondition> conditions,
+                                                          int batch, RoundListener listener) {
+        final int workers = replicas.length;
+        final int[] steps = new int[workers];
+        while(trainData.hasNext()) {
+            int iteration = TrainingCheckpoint.getIteration(replicas[0]);
+            List<Callable<Double>> tasks = new ArrayList<Callable<Double>>();
+            for(int k = 0; k < workers; k++) {
+                final int replica = k;
+                steps[replica] = 0;
+                tasks.add(new Callable<Double>() {
+                    @Override
+                    public Double call() {
+                        while(steps[replica] < averagingFrequency) {
+                            DataSet ds;
+                            synchronized(trainData) {
+                                if(!trainData.hasNext()) {
+                                    break;
+                                }
+                                ds = trainData.next();
+                            }
+                            long start = PipelineMetrics.start();
+                            replicas[replica].fit(ds);
+                            PipelineMetrics.stop(PipelineMetrics.FIT, start);
+                            PipelineMetrics.count(PipelineMetrics.EXAMPLES, ds.numExamples());
+                            steps[replica]++;
+                        }
+                        return steps[replica] == 0 ? 0.0 : replicas[replica].score();
+                    }
+                });
+            }
+            double score = 0;
+            try {
+                for(Future<Double> f : pool.invokeAll(tasks)) {
+                    score += f.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+
+            /*Replicas that got no minibatch (at the end of the epoch) are left out of the average*/
+            boolean[] trained = new boolean[workers];
+            int used = 0;
+            int roundSize = 0;
+            for(int k = 0; k < workers; k++) {
+                trained[k] = steps[k] > 0;
+                used += trained[k] ? 1 : 0;
+                roundSize += steps[k];
+            }
+            if(used == 0) {
+                break;
+            }
+            average(replicas, trained);
+            for(MultiLayerNetwork replica : replicas) {
+                TrainingCheckpoint.setIteration(replica, iteration + roundSize);
+            }
+            batch += roundSize;
+            if(listener != null) {
+                listener.roundDone(batch);
+            }
+
+            for(IterationTerminationCondition c : conditions) {
+                if(c.terminate(score / used)) {
+                    return c;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets the parameters and updater states of all replicas to the average of the first n replicas, and their
+     * iteration counts to the one of the first replica
+     */
+    private static void average(MultiLayerNetwork[] replicas, int n) {
+        boolean[] included = new boolean[replicas.length];
+        for(int k = 0; k < n; k++) {
+            included[k] = true;
+        }
+        average(replicas, included);
+        if(replicas.length > 1) {
+            int iteration = TrainingCheckpoint.getIteration(replicas[0]);
+            for(int k = 1; k < replicas.length; k++) {
+                TrainingCheckpoint.setIteration(replicas[k], iteration);
+            }
+        }
+    }
+
+    /**
+     * Sets the parameters and updater states of all replicas to the average of the included replicas
+     */
+    private static void average(MultiLayerNetwork[] replicas, boolean[] included) {
+        INDArray params = null;
+        INDArray state = null;
+        int n = 0;
+        int nrOfStates = 0;
+        for(int k = 0; k < replicas.length; k++) {
+            if(!included[k]) {
+                continue;
+            }
+            params = params == null ? replicas[k].params().dup() : params.addi(replicas[k].params());
+            /*The updater states (e.g. momentum) only exist after the first fit*/
+            Updater updater = replicas[k].getUpdater();
+            INDArray view = updater == null ? null : updater.getStateViewArray();
+            if(view != null) {
+                state = state == null ? view.dup() : state.addi(view);
+                nrOfStates++;
+            }
+            n++;
+        }
+        params.divi(n);
+        for(MultiLayerNetwork replica : replicas) {
+            replica.params().assign(params);
+        }
+        if(state != null) {
+            state.divi(nrOfStates);
+            for(MultiLayerNetwork replica : replicas) {
+                Updater updater = replica.getUpdater();
+                INDArray view = updater == null ? null : updater.getStateViewArray();
+                if(view != null) {
+                    view.assign(state);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The model followed by workers - 1 clones of it
+     */
+    private static MultiLayerNetwork[] getReplicas(MultiLayerNetwork model, int workers) {
+        MultiLayerNetwork[] replicas = new MultiLayerNetwork[Math.max(1, workers)];
+        replicas[0] = model;
+        for(int k = 1; k < replicas.length; k++) {
+            replicas[k] = model.clone();
+        }
+        return replicas;
+    }
+
+    private static ThreadFactory daemonThreads() {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "NetworkTrainer-replica");
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * The scores of the epochs and the best model so far of an early stopping run
+     */
+    private static class EpochScores {
+        private final EarlyStoppingConfiguration<MultiLayerNetwork> esConf;
+        private final Map<Integer, Double> scoreVsEpoch = new LinkedHashMap<Integer, Double>();
+        private int bestModelEpoch = -1;
+        private double bestModelScore = Double.MAX_VALUE;
+        private double lastScore = Double.NaN;
+
+        EpochScores(EarlyStoppingConfiguration<MultiLayerNetwork> esConf) {
+            this.esConf = esConf;
+        }
+
+        /**
+         * Records the score of an epoch, saves the scored network if it is the best model and checks the epoch
+         * termination conditions
+         * @param epoch The epoch
+         * @param score The score
+         * @param scored The network with the parameters of the epoch
+         * @param checkConditions True to check the epoch termination conditions
+         * @return The condition that stops the training, or null
+         * @throws IOException
+         */
+        EpochTerminationCondition add(int epoch, double score, MultiLayerNetwork scored, boolean checkConditions)
+                throws IOException {
+            scoreVsEpoch.put(epoch, score);
+            lastScore = score;
+            System.out.println("Completed training epoch " + epoch + ", score: " + score);
+            if(score < bestModelScore) {
+                bestModelScore = score;
+                bestModelEpoch = epoch;
+                esConf.getModelSaver().saveBestModel(scored, score);
+            }
+            if(checkConditions) {
+                for(EpochTerminationCondition c : esConf.getEpochTerminationConditions()) {
+                    if(c.terminate(epoch, score)) {
+                        return c;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Saves the network being trained as the latest model, if the configuration asks for it. With a score
+         * calculated in the background the network is newer than the last scored epoch, whose score is passed on.
+         * @param model The network being trained
+         * @throws IOException
+         */
+        void saveLatest(MultiLayerNetwork model) throws IOException {
+            if(esConf.isSaveLastModel()) {
+                esConf.getModelSaver().saveLatestModel(model, lastScore);
+            }
+        }
+
+        EarlyStoppingResult<MultiLayerNetwork> getResult(EarlyStoppingResult.TerminationReason reason,
+                                                         String details, int totalEpochs) throws IOException {
+            return new EarlyStoppingResult<MultiLayerNetwork>(reason, details, scoreVsEpoch, bestModelEpoch,
+                    bestModelScore, totalEpochs, esConf.getModelSaver().getBestModel());
+        }
+    }
+
+    /**
+     * Called by fitEpoch when the replicas have been averaged
+     */
+    private interface RoundListener {
+
+        /**
+         * @param batch The number of minibatches of the epoch that have been trained on
+         */
+        void roundDone(int batch);
     }
 }
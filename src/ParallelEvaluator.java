@@ -0,0 +1,312 @@
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluates video clips on several cores. The clips are loaded (decoded) by a pool of decode workers while a number
+ * of inference threads evaluate the loaded clips, each with its own clone of the network (an int8 QuantizedNetwork is
+ * shared instead) and its own BatchedEvaluator, so decoding and inference overlap. The results of the inference
+ * threads are merged and passed to the listener in clip order, so the listener sees the same sequence of results as
+ * with a serial evaluation.
+ */
+public class ParallelEvaluator {
+
+    private final MultiLayerNetwork model;
+    private final QuantizedNetwork quantized;
+    private final int decodeWorkers;
+    private final int inferenceWorkers;
+    private final int batchSize;
+    private final int nrOfCategories;
+
+    private double clipsPerSecond = 0;
+    private int nrOfClips = 0;
+
+    /**
+     * @param model The network model used for evaluation, cloned for each inference thread
+     * @param decodeWorkers The number of clips loaded at the same time
+     * @param inferenceWorkers The number of inference threads
+     * @param batchSize The number of windows (sequential) or frames (non-sequential) run through the network at once
+     *                  by each inference thread
+     * @param nrOfCategories The number of possible labels/categories
+     */
+    public ParallelEvaluator(MultiLayerNetwork model, int decodeWorkers, int inferenceWorkers, int batchSize,
+                             int nrOfCategories) {
+        this(model, null, decodeWorkers, inferenceWorkers, batchSize, nrOfCategories);
+    }
+
+    /**
+     * @param quantized The int8 network used for evaluation, shared by the inference threads (see QuantizedNetwork)
+     * @param decodeWorkers The number of clips loaded at the same time
+     * @param inferenceWorkers The number of inference threads
+     * @param batchSize The number of windows (sequential) or frames (non-sequential) run through the network at once
+     *                  by each inference thread
+     * @param nrOfCategories The number of possible labels/categories
+     */
+    public ParallelEvaluator(QuantizedNetwork quantized, int decodeWorkers, int inferenceWorkers, int batchSize,
+                             int nrOfCategories) {
+        this(null, quantized, decodeWorkers, inferenceWorkers, batchSize, nrOfCategories);
+    }
+
+    private ParallelEvaluator(MultiLayerNetwork model, QuantizedNetwork quantized, int decodeWorkers,
+                              int inferenceWorkers, int batchSize, int nrOfCategories) {
+        this.model = model;
+        this.quantized = quantized;
+        this.decodeWorkers = Math.max(1, decodeWorkers);
+        this.inferenceWorkers = Math.max(1, inferenceWorkers);
+        this.batchSize = batchSize;
+        this.nrOfCategories = nrOfCategories;
+    }
+
+    /**
+     * Loads and evaluates the clips [startClip, startClip + numOfClips). Returns when all clips have been evaluated.
+     * @param startClip The id of the first clip
+     * @param numOfClips The number of clips
+     * @param loader Loads the clips, called on the decode workers
+     * @param listener Receives the evaluations of each clip, in clip order and on one thread at a time
+     * @throws InterruptedException
+     * @throws RuntimeException If an inference thread failed, the evaluations after the failed clip are not passed on
+     */
+    public void evaluate(int startClip, int numOfClips, final ClipLoader loader,
+                         BatchedEvaluator.ClipListener listener) throws InterruptedException {
+        long startTime = System.nanoTime();
+        final OrderedMerge merge = new OrderedMerge(startClip, listener);
+        /*Bounded, so the decode workers can not get far ahead of the inference threads*/
+        final BlockingQueue<LoadedClip> loaded = new ArrayBlockingQueue<LoadedClip>(2 * decodeWorkers);
+
+        ExecutorService decoders = Executors.newFixedThreadPool(decodeWorkers, daemonThreads("ParallelEvaluator-decode"));
+        for(int i = startClip; i < startClip + numOfClips; i++) {
+            final int clip = i;
+            decoders.execute(new Runnable() {
+                @Override
+                public void run() {
+                    LoadedClip c = null;
+                    try {
+                        c = loader.load(clip);
+                    } catch (Throwable e) {
+                        /*Errors as well, e.g. OutOfMemoryError, the clip is still posted below*/
+                        e.printStackTrace();
+                    } finally {
+                        /*Every clip is posted, otherwise an inference thread would wait for it forever*/
+                        try {
+                            loaded.put(c != null ? c : LoadedClip.skipped(clip));
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+            });
+        }
+        decoders.shutdown();
+
+        /*Each inference thread evaluates with its own clone of the network, the int8 network is shared*/
+        final int[] remaining = {numOfClips};
+        final Throwable[] failure = {null};
+        List<Thread> inference = new ArrayList<Thread>();
+        for(int t = 0; t < inferenceWorkers; t++) {
+            final MultiLayerNetwork replica = t == 0 || model == null ? model : model.clone();
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    BatchedEvaluator evaluator = quantized != null
+                            ? new BatchedEvaluator(quantized, batchSize, nrOfCategories, merge)
+                            : new BatchedEvaluator(replica, batchSize, nrOfCategories, merge);
+                    try {
+                        while(true) {
+                            LoadedClip c;
+                            synchronized(remaining) {
+                                if(remaining[0] == 0) {
+                                    break;
+                                }
+                                remaining[0]--;
+                            }
+                            c = loaded.take();
+                            if(c.windows != null) {
+                                evaluator.addSeq(c.clip, c.category, c.windows);
+                            } else if(c.frames != null) {
+                                evaluator.addNonSeq(c.clip, c.category, c.frames, c.weights);
+                            } else {
+                                merge.skip(c.clip);
+                            }
+                        }
+                        evaluator.finish();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (Throwable e) {
+                        /*The other inference threads take the remaining clips, the failure is thrown by evaluate*/
+                        synchronized(failure) {
+                            if(failure[0] == null) {
+                                failure[0] = e;
+                            }
+                        }
+                    }
+                }
+            }, "ParallelEvaluator-inference-" + t);
+            thread.setDaemon(true);
+            inference.add(thread);
+            thread.start();
+        }
+
+        try {
+            for(Thread thread : inference) {
+                thread.join();
+            }
+        } finally {
+            decoders.shutdownNow();
+            decoders.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        synchronized(failure) {
+            if(failure[0] != null) {
+                throw new RuntimeException("Evaluation failed on an inference thread", failure[0]);
+            }
+        }
+
+        nrOfClips = merge.getNrOfClips();
+        clipsPerSecond = nrOfClips / ((System.nanoTime() - startTime) / 1e9);
+    }
+
+    /**
+     * @return The number of clips evaluated by the last call to evaluate
+     */
+    public int getNrOfClips() {
+        return nrOfClips;
+    }
+
+    /**
+     * @return The number of clips evaluated per second by the last call to evaluate, including the decoding
+     */
+    public double getClipsPerSecond() {
+        return clipsPerSecond;
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Loads the features of a clip
+     */
+    public interface ClipLoader {
+
+        /**
+         * @param clip The id of the clip
+         * @return The loaded clip, or null if the clip could not be loaded
+         * @throws Exception
+         */
+        LoadedClip load(int clip) throws Exception;
+    }
+
+    /**
+     * The features and the correct category of a clip
+     */
+    public static class LoadedClip {
+        private final int clip;
+        private final int category;
+        private final INDArray[] windows;
+        private final INDArray frames;
+        private final int[] weights;
+
+        private LoadedClip(int clip, int category, INDArray[] windows, INDArray frames, int[] weights) {
+            this.clip = clip;
+            this.category = category;
+            this.windows = windows;
+            this.frames = frames;
+            this.weights = weights;
+        }
+
+        /**
+         * @param clip The id of the clip
+         * @param category The correct category of the clip
+         * @param windows The feature array of each frame window, see BatchedEvaluator.addSeq
+         * @return The clip for a sequential model
+         */
+        public static LoadedClip seq(int clip, int category, INDArray[] windows) {
+            return new LoadedClip(clip, category, windows, null, null);
+        }
+
+        /**
+         * @param clip The id of the clip
+         * @param category The correct category of the clip
+         * @param frames The feature array of the frames, see BatchedEvaluator.addNonSeq
+         * @return The clip for a non-sequential model
+         */
+        public static LoadedClip nonSeq(int clip, int category, INDArray frames) {
+            return new LoadedClip(clip, category, null, frames, null);
+        }
+
+        /**
+         * @param clip The id of the clip
+         * @param category The correct category of the clip
+         * @param frames The feature array of the kept frames, see BatchedEvaluator.addNonSeq
+         * @param weights The number of frames of each row, see ClipDecoder.decodeFrames with a FrameSelector
+         * @return The clip for a non-sequential model
+         */
+        public static LoadedClip nonSeq(int clip, int category, INDArray frames, int[] weights) {
+            return new LoadedClip(clip, category, null, frames, weights);
+        }
+
+        private static LoadedClip skipped(int clip) {
+            return new LoadedClip(clip, -1, null, null, null);
+        }
+    }
+
+    /**
+     * Collects the results of the inference threads and passes them on in clip order
+     */
+    private static class OrderedMerge implements BatchedEvaluator.ClipListener {
+        private final BatchedEvaluator.ClipListener listener;
+        /*Finished clips waiting for an earlier clip, a skipped clip has no evaluations*/
+        private final Map<Integer, int[][]> done = new HashMap<Integer, int[][]>();
+        private final Map<Integer, Integer> categories = new HashMap<Integer, Integer>();
+        private int next;
+        private int nrOfClips = 0;
+
+        private OrderedMerge(int startClip, BatchedEvaluator.ClipListener listener) {
+            this.next = startClip;
+            this.listener = listener;
+        }
+
+        @Override
+        public synchronized void clipEvaluated(int clip, int category, int[][] predictions) {
+            done.put(clip, predictions);
+            categories.put(clip, category);
+            drain();
+        }
+
+        private synchronized void skip(int clip) {
+            done.put(clip, null);
+            drain();
+        }
+
+        private void drain() {
+            while(done.containsKey(next)) {
+                int[][] predictions = done.remove(next);
+                if(predictions != null) {
+                    listener.clipEvaluated(next, categories.remove(next), predictions);
+                    nrOfClips++;
+                }
+                next++;
+            }
+        }
+
+        private synchronized int getNrOfClips() {
+            return nrOfClips;
+        }
+    }
+}
@@ -0,0 +1,578 @@
+import org.deeplearning4j.datasets.iterator.AsyncDataSetIterator;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timings and counters of the stages of the data and training pipeline, e.g. to tell whether a run is bound by the
+ * decoding or by the network. The stages record their durations in timing histograms (start/stop), the counters count
+ * frames, clips and examples and the gauges hold the current value of e.g. the prefetch queue occupancy.
+ *
+ * The metrics are collected only while reporting (or collecting) is started. A report is then passed to the sinks
+ * every period, or taken by the caller with takeReport; it holds, for each stage, the number of calls, the mean,
+ * median, 99th percentile and max duration and the total busy time during the period, the rate of each counter, the
+ * gauges and the GC time and count during the period.
+ */
+public class PipelineMetrics {
+
+    /*Timed stages*/
+    public static final String DECODE = "decode";
+    public static final String CONVERT = "convert";
+    public static final String BATCH = "batch";
+    public static final String WAIT = "wait";
+    public static final String PREPROCESS = "preprocess";
+    public static final String FIT = "fit";
+    public static final String EVALUATE = "evaluate";
+    public static final String CHECKPOINT = "checkpoint";
+
+    /*Counters*/
+    public static final String FRAMES = "frames";
+    public static final String CLIPS = "clips";
+    public static final String EXAMPLES = "examples";
+    public static final String SKIPPED = "skipped_frames";
+
+    /*Gauges*/
+    public static final String QUEUE = "queue";
+
+    private static volatile boolean enabled = false;
+    private static final ConcurrentHashMap<String, Histogram> timers = new ConcurrentHashMap<String, Histogram>();
+    private static final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+    private static final ConcurrentHashMap<String, AtomicLong> gauges = new ConcurrentHashMap<String, AtomicLong>();
+
+    private static ScheduledExecutorService reporter;
+    private static long lastReport;
+    private static long lastGcTime;
+    private static long lastGcCount;
+
+    /**
+     * Starts timing a stage
+     * @return The start time, passed to stop
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the duration of a stage
+     * @param stage The stage
+     * @param start The value returned by start
+     */
+    public static void stop(String stage, long start) {
+        if(enabled && start != 0) {
+            Histogram h = timers.get(stage);
+            if(h == null) {
+                timers.putIfAbsent(stage, new Histogram());
+                h = timers.get(stage);
+            }
+            h.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Adds to a counter
+     * @param counter The counter
+     * @param n The amount added
+     */
+    public static void count(String counter, long n) {
+        if(enabled) {
+            get(counters, counter).addAndGet(n);
+        }
+    }
+
+    /**
+     * Sets a gauge
+     * @param gauge The gauge
+     * @param value The current value
+     */
+    public static void gauge(String gauge, long value) {
+        if(enabled) {
+            get(gauges, gauge).set(value);
+        }
+    }
+
+    private static AtomicLong get(ConcurrentHashMap<String, AtomicLong> map, String name) {
+        AtomicLong v = map.get(name);
+        if(v == null) {
+            map.putIfAbsent(name, new AtomicLong());
+            v = map.get(name);
+        }
+        return v;
+    }
+
+    /**
+     * Starts collecting the metrics and passing a report to the sinks every period
+     * @param periodSeconds The report period
+     * @param sinks The sinks receiving the reports
+     */
+    public static synchronized void startReporting(long periodSeconds, final Sink... sinks) {
+        startCollecting();
+        reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "PipelineMetrics-reporter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        reporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report(sinks);
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Starts collecting the metrics without reporting them, for callers which take the reports themselves (see
+     * takeReport)
+     */
+    public static synchronized void startCollecting() {
+        stopReporting();
+        takeReport();
+        enabled = true;
+    }
+
+    /**
+     * Stops collecting the metrics
+     */
+    public static synchronized void stopReporting() {
+        enabled = false;
+        if(reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+
+    private static void report(Sink[] sinks) {
+        Map<String, Double> report = takeReport();
+        for(Sink sink : sinks) {
+            try {
+                sink.report(report);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Returns the metrics since the last report and starts a new period
+     * @return The metrics by name, sorted by name
+     */
+    public static synchronized Map<String, Double> takeReport() {
+        long now = System.nanoTime();
+        double period = (now - lastReport) / 1e9;
+        lastReport = now;
+
+        Map<String, Double> report = new TreeMap<String, Double>();
+        report.put("time", (double) System.currentTimeMillis());
+        report.put("period_s", period);
+        for(Map.Entry<String, Histogram> e : timers.entrySet()) {
+            e.getValue().report(e.getKey(), report);
+        }
+        for(Map.Entry<String, AtomicLong> e : counters.entrySet()) {
+            report.put(e.getKey() + ".per_s", e.getValue().getAndSet(0) / period);
+        }
+        for(Map.Entry<String, AtomicLong> e : gauges.entrySet()) {
+            report.put(e.getKey(), (double) e.getValue().get());
+        }
+
+        long gcTime = 0;
+        long gcCount = 0;
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcTime += Math.max(0, gc.getCollectionTime());
+            gcCount += Math.max(0, gc.getCollectionCount());
+        }
+        report.put("gc.pause_ms", (double) (gcTime - lastGcTime));
+        report.put("gc.count", (double) (gcCount - lastGcCount));
+        lastGcTime = gcTime;
+        lastGcCount = gcCount;
+        return report;
+    }
+
+    /**
+     * Wraps a DataSetIterator in an AsyncDataSetIterator which loads the minibatches in a separate thread. The time to
+     * assemble a minibatch in the source iterator is recorded as BATCH, the time the consumer waits for a minibatch
+     * as WAIT and the number of minibatches waiting in the queue as the QUEUE gauge.
+     * @param source The iterator assembling the minibatches
+     * @param prefetchDepth The number of minibatches loaded ahead
+     * @return The prefetching iterator
+     */
+    public static DataSetIterator prefetch(DataSetIterator source, int prefetchDepth) {
+        AtomicInteger queued = new AtomicInteger();
+        return new PrefetchIterator(new AsyncDataSetIterator(
+                new TimedIterator(source, BATCH, queued, 1), prefetchDepth), source, queued);
+    }
+
+    /**
+     * @param iterator An iterator returned by prefetch, or any other iterator
+     * @return The source iterator of the prefetching iterator, or the iterator itself if it is not one
+     */
+    public static DataSetIterator getPrefetchSource(DataSetIterator iterator) {
+        if(iterator instanceof PrefetchIterator) {
+            return ((PrefetchIterator) iterator).prefetchSource;
+        }
+        return iterator;
+    }
+
+    /**
+     * Stops the loading thread of an iterator returned by prefetch. The iterator can not be used afterwards.
+     * @param iterator The prefetching iterator
+     * @return The source iterator of the prefetching iterator, or the iterator itself if it is not one
+     */
+    public static DataSetIterator stopPrefetch(DataSetIterator iterator) {
+        if(iterator instanceof PrefetchIterator) {
+            PrefetchIterator prefetching = (PrefetchIterator) iterator;
+            prefetching.async.shutdown();
+            return prefetching.prefetchSource;
+        }
+        return iterator;
+    }
+
+    /**
+     * Receives the reports
+     */
+    public interface Sink {
+
+        /**
+         * @param report The metrics of the last period by name, sorted by name
+         * @throws IOException
+         */
+        void report(Map<String, Double> report) throws IOException;
+    }
+
+    /**
+     * Appends the reports to a CSV file, one line per report. A header line is written whenever the set of metrics
+     * changes.
+     */
+    public static class CsvSink implements Sink {
+        private final File file;
+        private List<String> columns = Collections.emptyList();
+
+        public CsvSink(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public void report(Map<String, Double> report) throws IOException {
+            PrintWriter out = new PrintWriter(new FileWriter(file, true));
+            try {
+                if(!columns.equals(new ArrayList<String>(report.keySet()))) {
+                    columns = new ArrayList<String>(report.keySet());
+                    StringBuilder header = new StringBuilder();
+                    for(String c : columns) {
+                        header.append(header.length() == 0 ? "" : ",").append(c);
+                    }
+                    out.println(header);
+                }
+                StringBuilder line = new StringBuilder();
+                for(String c : columns) {
+                    line.append(line.length() == 0 ? "" : ",").append(format(report.get(c)));
+                }
+                out.println(line);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Appends the reports to a file as JSON objects, one per line
+     */
+    public static class JsonSink implements Sink {
+        private final File file;
+
+        public JsonSink(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public void report(Map<String, Double> report) throws IOException {
+            StringBuilder json = new StringBuilder("{");
+            for(Map.Entry<String, Double> e : report.entrySet()) {
+                json.append(json.length() == 1 ? "" : ",").append('"').append(e.getKey()).append("\":")
+                        .append(format(e.getValue()));
+            }
+            json.append('}');
+            PrintWriter out = new PrintWriter(new FileWriter(file, true));
+            try {
+                out.println(json);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Exposes the last report as the MXBean "VideoClassification:type=PipelineMetrics", e.g. for jconsole
+     */
+    public static class JmxSink implements Sink, PipelineMetricsMXBean {
+        private volatile Map<String, Double> last = new TreeMap<String, Double>();
+
+        public JmxSink() {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName("VideoClassification:type=PipelineMetrics");
+                if(server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+                server.registerMBean(this, name);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void report(Map<String, Double> report) {
+            last = report;
+        }
+
+        @Override
+        public Map<String, Double> getMetrics() {
+            return last;
+        }
+    }
+
+    /**
+     * The management interface of the JmxSink
+     */
+    public interface PipelineMetricsMXBean {
+
+        /**
+         * @return The metrics of the last report by name
+         */
+        Map<String, Double> getMetrics();
+    }
+
+    private static String format(Double v) {
+        if(v == null) {
+            return "";
+        }
+        if(v == Math.rint(v) && Math.abs(v) < 1e15) {
+            return Long.toString(v.longValue());
+        }
+        return String.format(Locale.ROOT, "%.4f", v);
+    }
+
+    /**
+     * Lock-free histogram of durations in nanoseconds, with 4 buckets per power of two (at most 25% error)
+     */
+    private static class Histogram {
+        private static final int BUCKETS = 248;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        private void record(long ns) {
+            ns = Math.max(0, ns);
+            buckets.incrementAndGet(bucket(ns));
+            sum.addAndGet(ns);
+            long m;
+            while(ns > (m = max.get()) && !max.compareAndSet(m, ns)) {
+                /*Retry*/
+            }
+        }
+
+        private static int bucket(long ns) {
+            if(ns < 4) {
+                return (int) ns;
+            }
+            int e = 63 - Long.numberOfLeadingZeros(ns);
+            return 4 * (e - 1) + (int) ((ns >>> (e - 2)) & 3);
+        }
+
+        /**
+         * The middle of a bucket
+         */
+        private static double value(int bucket) {
+            if(bucket < 4) {
+                return bucket;
+            }
+            int e = bucket / 4 + 1;
+            long lower = (4L + bucket % 4) << (e - 2);
+            return lower + (1L << (e - 2)) / 2.0;
+        }
+
+        /**
+         * Adds the statistics of the period to a report and starts a new period
+         */
+        private void report(String name, Map<String, Double> report) {
+            long[] counts = new long[BUCKETS];
+            long n = 0;
+            for(int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.getAndSet(i, 0);
+                n += counts[i];
+            }
+            long total = sum.getAndSet(0);
+            long longest = max.getAndSet(0);
+
+            report.put(name + ".count", (double) n);
+            report.put(name + ".busy_s", total / 1e9);
+            report.put(name + ".mean_ms", n == 0 ? 0 : total / 1e6 / n);
+            report.put(name + ".p50_ms", Math.min(percentile(counts, n, 0.5), longest) / 1e6);
+            report.put(name + ".p99_ms", Math.min(percentile(counts, n, 0.99), longest) / 1e6);
+            report.put(name + ".max_ms", longest / 1e6);
+        }
+
+        private static double percentile(long[] counts, long n, double p) {
+            long rank = (long) Math.ceil(p * n);
+            long seen = 0;
+            for(int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if(seen >= rank && seen > 0) {
+                    return value(i);
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * DataSetIterator which times next() and keeps track of the number of minibatches in a prefetch queue
+     */
+    private static class TimedIterator implements DataSetIterator {
+        private final DataSetIterator source;
+        private final String stage;
+        private final AtomicInteger queued;
+        private final int queueChange;
+
+        /**
+         * @param source The wrapped iterator
+         * @param stage The stage recording the time of next()
+         * @param queued The number of minibatches in the queue
+         * @param queueChange Added to queued for each minibatch: 1 on the producer side, -1 on the consumer side
+         */
+        private TimedIterator(DataSetIterator source, String stage, AtomicInteger queued, int queueChange) {
+            this.source = source;
+            this.stage = stage;
+            this.queued = queued;
+            this.queueChange = queueChange;
+        }
+
+        @Override
+        public DataSet next(int num) {
+            long start = start();
+            DataSet ds = source.next(num);
+            stop(stage, start);
+            gauge(QUEUE, queued.addAndGet(queueChange));
+            return ds;
+        }
+
+        @Override
+        public DataSet next() {
+            long start = start();
+            DataSet ds = source.next();
+            stop(stage, start);
+            gauge(QUEUE, queued.addAndGet(queueChange));
+            return ds;
+        }
+
+        @Override
+        public void reset() {
+            source.reset();
+            queued.set(0);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return source.hasNext();
+        }
+
+        @Override
+        public int totalExamples() {
+            return source.totalExamples();
+        }
+
+        @Override
+        public int inputColumns() {
+            return source.inputColumns();
+        }
+
+        @Override
+        public int totalOutcomes() {
+            return source.totalOutcomes();
+        }
+
+        @Override
+        public boolean resetSupported() {
+            return source.resetSupported();
+        }
+
+        @Override
+        public boolean asyncSupported() {
+            return source.asyncSupported();
+        }
+
+        @Override
+        public int batch() {
+            return source.batch();
+        }
+
+        @Override
+        public int cursor() {
+            return source.cursor();
+        }
+
+        @Override
+        public int numExamples() {
+            return source.numExamples();
+        }
+
+        @Override
+        public void setPreProcessor(DataSetPreProcessor preProcessor) {
+            source.setPreProcessor(preProcessor);
+        }
+
+        @Override
+        public DataSetPreProcessor getPreProcessor() {
+            return source.getPreProcessor();
+        }
+
+        @Override
+        public List<String> getLabels() {
+            return source.getLabels();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * The consumer side of prefetch, which keeps the AsyncDataSetIterator and the source iterator for stopPrefetch
+     * and getPrefetchSource
+     */
+    private static class PrefetchIterator extends TimedIterator {
+        private final AsyncDataSetIterator async;
+        private final DataSetIterator prefetchSource;
+
+        private PrefetchIterator(AsyncDataSetIterator async, DataSetIterator prefetchSource, AtomicInteger queued) {
+            super(async, WAIT, queued, -1);
+            this.async = async;
+            this.prefetchSource = prefetchSource;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+import java.io.Serializable;
+
+/**
+ * Per-channel scaling of pixel values, applied while the pixels are written into the feature arrays instead of as a
+ * separate pass over the finished minibatch. A value v of channel c becomes (v * scale - mean[c]) / std[c], which is
+ * stored as a multiplier and an offset per channel. The channels are in the BGR order of the feature arrays.
+ */
+public class PixelScaling implements Serializable {
+
+    /*Keep the pixel values in [0,255], as used by the non-sequential data*/
+    public static final PixelScaling NONE = new PixelScaling(1, null, null);
+    /*[0,255] -> [0,1], as done by the VideoPreProcessor for the sequential data*/
+    public static final PixelScaling UNIT = new PixelScaling(1 / 255f, null, null);
+
+    private static final int channels = 3;
+
+    private final float[] multipliers = new float[channels];
+    private final float[] offsets = new float[channels];
+
+    /**
+     * @param scale The scale applied to the [0,255] pixel values
+     * @param mean The mean of each channel after scaling, or null for no mean subtraction
+     * @param std The standard deviation of each channel after scaling, or null for no division
+     */
+    public PixelScaling(float scale, float[] mean, float[] std) {
+        for(int c = 0; c < channels; c++) {
+            float m = mean == null ? 0 : mean[c];
+            float s = std == null ? 1 : std[c];
+            multipliers[c] = scale / s;
+            offsets[c] = -m / s;
+        }
+    }
+
+    public float getMultiplier(int channel) {
+        return multipliers[channel];
+    }
+
+    public float getOffset(int channel) {
+        return offsets[channel];
+    }
+
+    /**
+     * @return True if the scaling leaves the pixel values unchanged
+     */
+    public boolean isIdentity() {
+        for(int c = 0; c < channels; c++) {
+            if(multipliers[c] != 1 || offsets[c] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
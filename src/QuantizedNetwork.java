@@ -0,0 +1,1095 @@
+import org.deeplearning4j.eval.Evaluation;
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.conf.ConvolutionMode;
+import org.deeplearning4j.nn.conf.InputPreProcessor;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.layers.BaseOutputLayer;
+import org.deeplearning4j.nn.conf.layers.ConvolutionLayer;
+import org.deeplearning4j.nn.conf.layers.DenseLayer;
+import org.deeplearning4j.nn.conf.layers.FeedForwardLayer;
+import org.deeplearning4j.nn.conf.layers.GravesLSTM;
+import org.deeplearning4j.nn.conf.layers.SubsamplingLayer;
+import org.deeplearning4j.nn.conf.preprocessor.FeedForwardToCnnPreProcessor;
+import org.deeplearning4j.nn.conf.preprocessor.RnnToCnnPreProcessor;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.INDArrayIndex;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.nd4j.linalg.util.ArrayUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Int8 inference engine for the models of NetworkModels, built by post-training quantization of a trained network.
+ *
+ * The weights of the convolution, dense, LSTM and output layers are stored as int8 with symmetric scales per output
+ * channel (or one scale per layer). The inputs of these layers are quantized to int8 with one scale per layer,
+ * calibrated as the largest absolute activation seen on a sample of the data, and the products of the int8 values are
+ * summed exactly. The sums are then scaled back to floats, where the biases, activation functions, pooling and the
+ * LSTM gates are computed.
+ *
+ * The network is run layer by layer over the whole minibatch (and all frames of the sequences), so each weight is
+ * read once per minibatch, as in the float network:
+ * - Dense, output and LSTM layers quantize all their input rows first and then multiply each int8 weight row with all
+ *   of them. The rows are widened to ints for the products, since the JIT vectorizes int loops but not byte loops. The
+ *   input weights of an LSTM layer are applied to all time steps at once, the recurrent weights once per time step.
+ * - Convolution layers quantize the input of all frames in one loop, rearrange each frame once into a block matrix
+ *   (see QConv) and multiply the block matrices with the int8 weights through nd4j's gemm, with the int8 values held
+ *   in floats. These layers are bound by the multiplications rather than by reading their small weights, and Java has
+ *   no int8 vector instructions; the sums are still exact, as floats hold every integer up to 2^24 (127*127*588 for
+ *   the 14x14x3 kernel of model 1).
+ * QuantizedForwardBenchmark compares the forward pass with the float network.
+ *
+ * Supported layers: ConvolutionLayer (truncated convolution mode), SubsamplingLayer (max and average pooling),
+ * DenseLayer, GravesLSTM and OutputLayer/RnnOutputLayer, which covers models 1 and 3. The input preprocessors of these
+ * models are implied: the frames are flattened as channels, rows, columns, and a network with an LSTM layer takes
+ * sequences [miniBatch, frameSize, nrFrames] like model 3.
+ *
+ * A QuantizedNetwork keeps no state between calls of output, so one network can be used by several threads. Each
+ * thread keeps the native buffers of the convolution layers for its next call.
+ */
+public class QuantizedNetwork {
+
+    public static final String EXTENSION = ".int8";
+
+    private static final int MAGIC = 0x51494E38;
+    private static final long CALIBRATION_SEED = 0;
+    /*Floats of the block matrices of the frames multiplied at once by a convolution layer (16 MB)*/
+    private static final int BLOCK_BUFFER = 1 << 22;
+    /*Added to and subtracted from a float below 2^22 to round it to an integer*/
+    private static final float ROUNDING = 12582912f;
+    private static final int CONV = 0;
+    private static final int POOL = 1;
+    private static final int DENSE = 2;
+    private static final int LSTM = 3;
+
+    private final QLayer[] layers;
+    private final boolean recurrent;
+    private final int nrOfOutputs;
+
+    private QuantizedNetwork(QLayer[] layers) {
+        this.layers = layers;
+        boolean recurrent = false;
+        for(QLayer layer : layers) {
+            recurrent |= layer instanceof QLstm;
+        }
+        this.recurrent = recurrent;
+        this.nrOfOutputs = layers[layers.length - 1].getOutputSize();
+    }
+
+    /**
+     * Quantizes a trained network. The activation scales are calibrated by running the float network on examples drawn
+     * at random from all of the calibration data (with a fixed seed), which should be a sample of the data the network
+     * is used on (e.g. the training clips) and not the data it is evaluated on. The calibration data is read once and
+     * the drawn examples are kept in memory.
+     * @param model The trained network
+     * @param calibrationData The calibration data
+     * @param nrOfExamples The number of examples used for the calibration
+     * @param perChannel True for a weight scale per output channel, false for one weight scale per layer
+     * @return The quantized network
+     */
+    public static QuantizedNetwork quantize(MultiLayerNetwork model, DataSetIterator calibrationData, int nrOfExamples,
+                                            boolean perChannel) {
+        int nrOfLayers = model.getnLayers();
+        /*inputMax[i]: the largest absolute input of layer i, inputMax[nrOfLayers]: the largest absolute output*/
+        float[] inputMax = new float[nrOfLayers + 1];
+        List<INDArray> sample = sample(calibrationData, nrOfExamples);
+        int miniBatchSize = Math.max(1, calibrationData.batch());
+        for(int b = 0; b < sample.size(); b += miniBatchSize) {
+            List<INDArray> examples = sample.subList(b, Math.min(sample.size(), b + miniBatchSize));
+            List<INDArray> activations = model.feedForward(Nd4j.concat(0,
+                    examples.toArray(new INDArray[examples.size()])), false);
+            for(int i = 0; i < activations.size(); i++) {
+                INDArray a = activations.get(i);
+                inputMax[i] = Math.max(inputMax[i], Math.max(a.maxNumber().floatValue(), -a.minNumber().floatValue()));
+            }
+        }
+
+        MultiLayerConfiguration conf = model.getLayerWiseConfigurations();
+        int[] shape = getInputShape(conf.getInputPreProcess(0));
+        QLayer[] layers = new QLayer[nrOfLayers];
+        for(int i = 0; i < nrOfLayers; i++) {
+            org.deeplearning4j.nn.conf.layers.Layer layerConf = conf.getConf(i).getLayer();
+            Layer layer = model.getLayer(i);
+            float inputScale = getScale(inputMax[i]);
+            if(layerConf instanceof ConvolutionLayer) {
+                ConvolutionLayer c = (ConvolutionLayer) layerConf;
+                checkConvolutionMode(c.getConvolutionMode(), i);
+                if(shape == null) {
+                    throw new IllegalArgumentException("The input size of convolution layer " + i + " is unknown");
+                }
+                QConv q = new QConv(shape, c.getNOut(), c.getKernelSize(), c.getStride(), c.getPadding(),
+                        c.getActivationFunction(), quantize(layer.getParam("W"), perChannel), inputScale,
+                        toFloats(layer.getParam("b")));
+                shape = q.getOutputShape();
+                layers[i] = q;
+            } else if(layerConf instanceof SubsamplingLayer) {
+                SubsamplingLayer s = (SubsamplingLayer) layerConf;
+                checkConvolutionMode(s.getConvolutionMode(), i);
+                if(shape == null) {
+                    throw new IllegalArgumentException("The input size of subsampling layer " + i + " is unknown");
+                }
+                if(s.getPoolingType() != SubsamplingLayer.PoolingType.MAX
+                        && s.getPoolingType() != SubsamplingLayer.PoolingType.AVG) {
+                    throw new IllegalArgumentException("Unsupported pooling type " + s.getPoolingType());
+                }
+                QPool q = new QPool(shape, s.getKernelSize(), s.getStride(), s.getPadding(),
+                        s.getPoolingType() == SubsamplingLayer.PoolingType.MAX);
+                shape = q.getOutputShape();
+                layers[i] = q;
+            } else if(layerConf instanceof DenseLayer || layerConf instanceof BaseOutputLayer) {
+                /*W: [nIn, nOut], quantized per output*/
+                layers[i] = new QDense(quantize(layer.getParam("W").transpose(), perChannel), inputScale,
+                        toFloats(layer.getParam("b")), layerConf.getActivationFunction());
+                shape = null;
+            } else if(layerConf instanceof GravesLSTM) {
+                int nL = ((FeedForwardLayer) layerConf).getNOut();
+                INDArray recurrentWeights = layer.getParam("RW");
+                /*RW: [nL, 4*nL + 3], the gate weights followed by the peephole weights of the forget, output and input
+                modulation gates*/
+                INDArray gates = recurrentWeights.get(NDArrayIndex.all(), NDArrayIndex.interval(0, 4 * nL));
+                float[][] peepholes = new float[3][];
+                for(int p = 0; p < 3; p++) {
+                    peepholes[p] = toFloats(recurrentWeights.getColumn(4 * nL + p));
+                }
+                layers[i] = new QLstm(quantize(layer.getParam("W").transpose(), perChannel), inputScale,
+                        quantize(gates.transpose(), perChannel), getScale(inputMax[i + 1]),
+                        toFloats(layer.getParam("b")), peepholes, layerConf.getActivationFunction());
+                shape = null;
+            } else {
+                throw new IllegalArgumentException("Layer " + i + " (" + layerConf.getClass().getSimpleName()
+                        + ") is not supported by the quantized network");
+            }
+        }
+        return new QuantizedNetwork(layers);
+    }
+
+    /**
+     * Runs the network
+     * @param input Frames [miniBatch, frameSize] or [miniBatch, channels, height, width], or sequences [miniBatch,
+     *              frameSize, nrFrames] for a network with an LSTM layer
+     * @return The outputs, [miniBatch, nrOfOutputs] or [miniBatch, nrOfOutputs, nrFrames]
+     */
+    public INDArray output(INDArray input) {
+        int miniBatch = input.size(0);
+        int nrFrames = recurrent ? input.size(2) : 1;
+        float[] x = toFloats(input);
+        if(recurrent) {
+            /*One row per frame, ordered by sequence and then by time step*/
+            x = swapLastAxes(x, miniBatch, x.length / (miniBatch * nrFrames), nrFrames);
+        }
+        for(QLayer layer : layers) {
+            x = layer.forward(x, miniBatch, nrFrames);
+        }
+        if(recurrent) {
+            return Nd4j.create(swapLastAxes(x, miniBatch, nrFrames, nrOfOutputs),
+                    new int[] {miniBatch, nrOfOutputs, nrFrames}, 'c');
+        }
+        return Nd4j.create(x, new int[] {miniBatch, nrOfOutputs}, 'c');
+    }
+
+    /**
+     * Evaluates the network on labelled data, per frame for sequences
+     * @param data The data
+     * @return The evaluation
+     */
+    public Evaluation evaluate(DataSetIterator data) {
+        Evaluation eval = new Evaluation(nrOfOutputs);
+        data.reset();
+        while(data.hasNext()) {
+            DataSet ds = data.next();
+            eval(eval, ds.getLabels(), output(ds.getFeatureMatrix()));
+        }
+        data.reset();
+        return eval;
+    }
+
+    /**
+     * Evaluates a float network and its quantized network on the same data, and reports the accuracy of both, the
+     * accuracy delta, how often the two networks predict the same category, and the time spent in each network.
+     * @param model The float network
+     * @param quantized The quantized network
+     * @param data The evaluation data
+     * @return The report
+     */
+    public static String compare(MultiLayerNetwork model, QuantizedNetwork quantized, DataSetIterator data) {
+        Evaluation floatEval = new Evaluation(quantized.nrOfOutputs);
+        Evaluation int8Eval = new Evaluation(quantized.nrOfOutputs);
+        long floatTime = 0;
+        long int8Time = 0;
+        int agree = 0;
+        int total = 0;
+        data.reset();
+        while(data.hasNext()) {
+            DataSet ds = data.next();
+            long start = System.nanoTime();
+            INDArray floatOut = model.output(ds.getFeatureMatrix(), false);
+            floatTime += System.nanoTime() - start;
+            start = System.nanoTime();
+            INDArray int8Out = quantized.output(ds.getFeatureMatrix());
+            int8Time += System.nanoTime() - start;
+
+            eval(floatEval, ds.getLabels(), floatOut);
+            eval(int8Eval, ds.getLabels(), int8Out);
+            INDArray floatPredictions = Nd4j.argMax(floatOut, 1);
+            INDArray int8Predictions = Nd4j.argMax(int8Out, 1);
+            for(int i = 0; i < floatPredictions.length(); i++) {
+                if(floatPredictions.getDouble(i) == int8Predictions.getDouble(i)) {
+                    agree++;
+                }
+                total++;
+            }
+        }
+        data.reset();
+
+        return String.format("fp32 accuracy: %.4f, int8 accuracy: %.4f, delta: %+.4f%n"
+                        + "Same prediction: %.4f (%d of %d)%n"
+                        + "Time: fp32 %.1f s, int8 %.1f s",
+                floatEval.accuracy(), int8Eval.accuracy(), int8Eval.accuracy() - floatEval.accuracy(),
+                total == 0 ? 0.0 : (double) agree / total, agree, total, floatTime / 1e9, int8Time / 1e9);
+    }
+
+    private static void eval(Evaluation eval, INDArray labels, INDArray output) {
+        if(output.rank() == 3) {
+            eval.evalTimeSeries(labels, output);
+        } else {
+            eval.eval(labels, output);
+        }
+    }
+
+    /**
+     * Saves the network. The file is written to a temporary file which then replaces the file.
+     * @param fileName The desired filename
+     * @throws IOException
+     */
+    public void save(String fileName) throws IOException {
+        File file = new File(fileName);
+        File tmpFile = new File(fileName + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 20));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(layers.length);
+            for(QLayer layer : layers) {
+                layer.write(out);
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads a network saved by save
+     * @param fileName The name of the file containing the network
+     * @return The network
+     * @throws IOException
+     */
+    public static QuantizedNetwork load(String fileName) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 1 << 20));
+        try {
+            if(in.readInt() != MAGIC) {
+                throw new IOException(fileName + " is not a quantized network");
+            }
+            QLayer[] layers = new QLayer[in.readInt()];
+            for(int i = 0; i < layers.length; i++) {
+                int type = in.readInt();
+                switch(type) {
+                    case CONV:
+                        layers[i] = new QConv(in);
+                        break;
+                    case POOL:
+                        layers[i] = new QPool(in);
+                        break;
+                    case DENSE:
+                        layers[i] = new QDense(in);
+                        break;
+                    case LSTM:
+                        layers[i] = new QLstm(in);
+                        break;
+                    default:
+                        throw new IOException("Unknown layer type " + type + " in " + fileName);
+                }
+            }
+            return new QuantizedNetwork(layers);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return The number of outputs (categories)
+     */
+    public int getNrOfOutputs() {
+        return nrOfOutputs;
+    }
+
+    /**
+     * Draws examples at random (reservoir sampling) from all minibatches of the data
+     * @return The features of the examples, each with a minibatch size of 1
+     */
+    private static List<INDArray> sample(DataSetIterator data, int nrOfExamples) {
+        Random random = new Random(CALIBRATION_SEED);
+        List<INDArray> examples = new ArrayList<INDArray>();
+        int seen = 0;
+        data.reset();
+        while(data.hasNext()) {
+            INDArray features = data.next().getFeatureMatrix();
+            for(int i = 0; i < features.size(0); i++) {
+                if(examples.size() < nrOfExamples) {
+                    examples.add(getExample(features, i));
+                } else {
+                    int j = random.nextInt(seen + 1);
+                    if(j < nrOfExamples) {
+                        examples.set(j, getExample(features, i));
+                    }
+                }
+                seen++;
+            }
+        }
+        data.reset();
+        System.out.println("Calibration on " + examples.size() + " of " + seen + " examples");
+        return examples;
+    }
+
+    /**
+     * @return A copy of example i of a minibatch
+     */
+    private static INDArray getExample(INDArray features, int i) {
+        INDArrayIndex[] indices = new INDArrayIndex[features.rank()];
+        indices[0] = NDArrayIndex.interval(i, i + 1);
+        for(int d = 1; d < indices.length; d++) {
+            indices[d] = NDArrayIndex.all();
+        }
+        return features.get(indices).dup();
+    }
+
+    /**
+     * @return The values [n, a, b] reordered as [n, b, a]
+     */
+    private static float[] swapLastAxes(float[] values, int n, int a, int b) {
+        float[] swapped = new float[values.length];
+        for(int i = 0; i < n; i++) {
+            int offset = i * a * b;
+            for(int j = 0; j < a; j++) {
+                for(int k = 0; k < b; k++) {
+                    swapped[offset + k * a + j] = values[offset + j * b + k];
+                }
+            }
+        }
+        return swapped;
+    }
+
+    /**
+     * @return The input shape {channels, height, width} given by the preprocessor of the first layer, or null
+     */
+    private static int[] getInputShape(InputPreProcessor preProcessor) {
+        if(preProcessor instanceof FeedForwardToCnnPreProcessor) {
+            FeedForwardToCnnPreProcessor p = (FeedForwardToCnnPreProcessor) preProcessor;
+            return new int[] {p.getNumChannels(), p.getInputHeight(), p.getInputWidth()};
+        }
+        if(preProcessor instanceof RnnToCnnPreProcessor) {
+            RnnToCnnPreProcessor p = (RnnToCnnPreProcessor) preProcessor;
+            return new int[] {p.getNumChannels(), p.getInputHeight(), p.getInputWidth()};
+        }
+        return null;
+    }
+
+    private static void checkConvolutionMode(ConvolutionMode mode, int layer) {
+        if(mode == ConvolutionMode.Same) {
+            throw new IllegalArgumentException("Layer " + layer + " uses the unsupported convolution mode " + mode);
+        }
+    }
+
+    /**
+     * @return The scale mapping [-max, max] to [-127, 127]
+     */
+    private static float getScale(float max) {
+        return max > 0 ? max / 127 : 1;
+    }
+
+    private static float[] toFloats(INDArray array) {
+        /*The buffer is read in bulk (asFloat reads value by value), through a copy if the array does not hold all of
+        its buffer in c order*/
+        if(array.isView() || !Arrays.equals(array.stride(), ArrayUtil.calcStrides(array.shape()))) {
+            array = array.dup('c');
+        }
+        float[] values = new float[array.length()];
+        array.data().asNioFloat().get(values);
+        return values;
+    }
+
+    /**
+     * Quantizes a weight array, with the outputs along the first dimension
+     */
+    private static QWeights quantize(INDArray weights, boolean perChannel) {
+        int rows = weights.size(0);
+        float[] values = toFloats(weights.reshape('c', rows, weights.length() / rows));
+        return new QWeights(values, rows, values.length / rows, perChannel);
+    }
+
+    /**
+     * Quantizes a value with a scale to an integer in [-127, 127], held in a float
+     */
+    private static float quantize(float value, float inverseScale) {
+        float v = Math.max(-127f, Math.min(127f, value * inverseScale));
+        /*Rounded half to even by adding and subtracting 1.5*2^23, which the JIT vectorizes (unlike a cast to int)*/
+        return v + ROUNDING - ROUNDING;
+    }
+
+    /**
+     * Quantizes values with a scale to int8 values, held in ints
+     */
+    private static void quantize(float[] values, float scale, int[] dst) {
+        float inverse = 1 / scale;
+        for(int i = 0; i < values.length; i++) {
+            dst[i] = (int) quantize(values[i], inverse);
+        }
+    }
+
+    /**
+     * Applies an activation function to rows of values, softmax on each row
+     */
+    private static void activate(float[] values, int rowSize, String activation) {
+        if("softmax".equals(activation)) {
+            for(int offset = 0; offset < values.length; offset += rowSize) {
+                float max = Float.NEGATIVE_INFINITY;
+                for(int i = offset; i < offset + rowSize; i++) {
+                    max = Math.max(max, values[i]);
+                }
+                float sum = 0;
+                for(int i = offset; i < offset + rowSize; i++) {
+                    values[i] = (float) Math.exp(values[i] - max);
+                    sum += values[i];
+                }
+                for(int i = offset; i < offset + rowSize; i++) {
+                    values[i] /= sum;
+                }
+            }
+        } else if("relu".equals(activation)) {
+            for(int i = 0; i < values.length; i++) {
+                values[i] = values[i] > 0 ? values[i] : 0;
+            }
+        } else if(!"identity".equals(activation)) {
+            for(int i = 0; i < values.length; i++) {
+                values[i] = activate(values[i], activation);
+            }
+        }
+    }
+
+    private static float activate(float v, String activation) {
+        if("relu".equals(activation)) {
+            return v > 0 ? v : 0;
+        } else if("identity".equals(activation)) {
+            return v;
+        } else if("sigmoid".equals(activation)) {
+            return sigmoid(v);
+        } else if("tanh".equals(activation)) {
+            return (float) Math.tanh(v);
+        } else if("softsign".equals(activation)) {
+            return v / (1 + Math.abs(v));
+        }
+        throw new IllegalArgumentException("Unsupported activation function " + activation);
+    }
+
+    private static float sigmoid(float v) {
+        return (float) (1 / (1 + Math.exp(-v)));
+    }
+
+    /**
+     * Int8 weights, rows x cols with a scale per row (output) or one scale for all rows
+     */
+    private static class QWeights {
+        private final byte[] weights;
+        private final float[] scales;
+        private final int rows;
+        private final int cols;
+
+        QWeights(float[] values, int rows, int cols, boolean perChannel) {
+            this.rows = rows;
+            this.cols = cols;
+            this.weights = new byte[rows * cols];
+            this.scales = new float[rows];
+            float layerMax = 0;
+            for(float v : values) {
+                layerMax = Math.max(layerMax, Math.abs(v));
+            }
+            for(int r = 0; r < rows; r++) {
+                float max = 0;
+                if(perChannel) {
+                    for(int c = 0; c < cols; c++) {
+                        max = Math.max(max, Math.abs(values[r * cols + c]));
+                    }
+                } else {
+                    max = layerMax;
+                }
+                scales[r] = getScale(max);
+                float inverse = 1 / scales[r];
+                for(int c = 0; c < cols; c++) {
+                    weights[r * cols + c] = (byte) quantize(values[r * cols + c], inverse);
+                }
+            }
+        }
+
+        QWeights(DataInputStream in) throws IOException {
+            rows = in.readInt();
+            cols = in.readInt();
+            scales = readFloats(in, rows);
+            weights = new byte[rows * cols];
+            in.readFully(weights);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(rows);
+            out.writeInt(cols);
+            writeFloats(out, scales);
+            out.write(weights);
+        }
+
+        /**
+         * Multiplies rows of inputs with the weights. The inputs are quantized to int8 first, then each weight row is
+         * read once and multiplied with all input rows.
+         * @param x The inputs, n rows of cols values
+         * @param n The number of input rows
+         * @param inputScale The scale of the int8 inputs
+         * @param bias The bias added to the outputs, or null
+         * @return The outputs in floats, n rows of rows values
+         */
+        float[] multiply(float[] x, int n, float inputScale, float[] bias) {
+            int[] input = new int[n * cols];
+            quantize(x, inputScale, input);
+            float[] out = new float[n * rows];
+            int[] row = new int[cols];
+            for(int r = 0; r < rows; r++) {
+                int offset = r * cols;
+                for(int c = 0; c < cols; c++) {
+                    row[c] = weights[offset + c];
+                }
+                float scale = inputScale * scales[r];
+                float b = bias == null ? 0 : bias[r];
+                for(int i = 0; i < n; i++) {
+                    out[i * rows + r] = dot(row, input, i * cols) * scale + b;
+                }
+            }
+            return out;
+        }
+
+        /**
+         * @return The dot product of a weight row and the int8 values x[offset, offset + cols), in ints
+         */
+        private int dot(int[] row, int[] x, int offset) {
+            int sum = 0;
+            for(int c = 0; c < cols; c++) {
+                sum += row[c] * x[offset + c];
+            }
+            return sum;
+        }
+
+    }
+
+    private abstract static class QLayer {
+        /**
+         * @param x The inputs, one row per frame ordered by sequence and then by time step
+         * @param miniBatch The number of sequences (or frames for a network without an LSTM layer)
+         * @param nrFrames The number of time steps of each sequence, 1 for a network without an LSTM layer
+         * @return The outputs, one row per frame in the same order
+         */
+        abstract float[] forward(float[] x, int miniBatch, int nrFrames);
+
+        abstract int getOutputSize();
+
+        abstract void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Convolution layer on [channels, height, width] inputs. The (padded) input is split into blocks of stride rows
+     * and stride columns, and the kernel into offsets of whole blocks, e.g. the 14x14 kernel with stride 7 of model 1
+     * into 2x2 offsets of 7x7 blocks (a kernel that is not a multiple of the stride is padded with zero weights). The
+     * block matrix of a frame, one row per block, is multiplied with the weights of all offsets at once, and the
+     * products of the offsets of each output position are then added. Unlike the patch matrix (im2col), the block
+     * matrix holds each input value once.
+     */
+    private static class QConv extends QLayer {
+        private final int[] inputShape;
+        private final int nOut;
+        private final int[] kernel;
+        private final int[] stride;
+        private final int[] padding;
+        private final String activation;
+        private final QWeights weights;
+        private final float inputScale;
+        private final float[] bias;
+        private final int outHeight;
+        private final int outWidth;
+        /*Kernel offsets in blocks, rows and columns of blocks, values of a block*/
+        private final int offsetsY;
+        private final int offsetsX;
+        private final int blocksY;
+        private final int blocksX;
+        private final int blockSize;
+        /*The int8 weights held in floats for nd4j's gemm, [blockSize, offsets*nOut]*/
+        private final INDArray weightValues;
+        /*The block and result matrices of the calling thread, see getMatrices*/
+        private final ThreadLocal<INDArray[]> matrices = new ThreadLocal<INDArray[]>();
+
+        QConv(int[] inputShape, int nOut, int[] kernel, int[] stride, int[] padding, String activation,
+              QWeights weights, float inputScale, float[] bias) {
+            this.inputShape = inputShape;
+            this.nOut = nOut;
+            this.kernel = kernel;
+            this.stride = stride;
+            this.padding = padding;
+            this.activation = activation;
+            this.weights = weights;
+            this.inputScale = inputScale;
+            this.bias = bias;
+            this.outHeight = (inputShape[1] + 2 * padding[0] - kernel[0]) / stride[0] + 1;
+            this.outWidth = (inputShape[2] + 2 * padding[1] - kernel[1]) / stride[1] + 1;
+            this.offsetsY = (kernel[0] + stride[0] - 1) / stride[0];
+            this.offsetsX = (kernel[1] + stride[1] - 1) / stride[1];
+            this.blocksY = outHeight - 1 + offsetsY;
+            this.blocksX = outWidth - 1 + offsetsX;
+            this.blockSize = inputShape[0] * stride[0] * stride[1];
+
+            int columns = offsetsY * offsetsX * nOut;
+            float[] values = new float[blockSize * columns];
+            for(int o = 0; o < nOut; o++) {
+                for(int c = 0; c < inputShape[0]; c++) {
+                    for(int ky = 0; ky < kernel[0]; ky++) {
+                        for(int kx = 0; kx < kernel[1]; kx++) {
+                            int row = (c * stride[0] + ky % stride[0]) * stride[1] + kx % stride[1];
+                            int offset = (ky / stride[0]) * offsetsX + kx / stride[1];
+                            values[row * columns + offset * nOut + o] =
+                                    weights.weights[o * weights.cols + (c * kernel[0] + ky) * kernel[1] + kx];
+                        }
+                    }
+                }
+            }
+            this.weightValues = Nd4j.create(values, new int[] {blockSize, columns}, 'c');
+        }
+
+        QConv(DataInputStream in) throws IOException {
+            this(readInts(in, 3), in.readInt(), readInts(in, 2), readInts(in, 2), readInts(in, 2), in.readUTF(),
+                    new QWeights(in), in.readFloat(), readFloats(in, in.readInt()));
+        }
+
+        @Override
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(CONV);
+            writeInts(out, inputShape);
+            out.writeInt(nOut);
+            writeInts(out, kernel);
+            writeInts(out, stride);
+            writeInts(out, padding);
+            out.writeUTF(activation);
+            weights.write(out);
+            out.writeFloat(inputScale);
+            out.writeInt(bias.length);
+            writeFloats(out, bias);
+        }
+
+        @Override
+        float[] forward(float[] x, int miniBatch, int nrFrames) {
+            int frames = miniBatch * nrFrames;
+            int inputSize = inputShape[0] * inputShape[1] * inputShape[2];
+            int blocks = blocksY * blocksX;
+            int positions = outHeight * outWidth;
+            int columns = offsetsY * offsetsX * nOut;
+            /*The block matrices of several frames are multiplied at once*/
+            int group = Math.max(1, Math.min(frames, BLOCK_BUFFER / (blocks * blockSize)));
+            /*relu is applied with the scale and bias*/
+            boolean relu = "relu".equals(activation);
+            float[] out = new float[frames * nOut * positions];
+            /*All frames are quantized in one loop, which the JIT vectorizes*/
+            float[] quantized = new float[x.length];
+            float inverse = 1 / inputScale;
+            for(int i = 0; i < x.length; i++) {
+                quantized[i] = quantize(x[i], inverse);
+            }
+            float[] frameBlocks = new float[blocks * blockSize];
+            INDArray[] matrices = getMatrices(group * blocks);
+            for(int first = 0; first < frames; first += group) {
+                int n = Math.min(group, frames - first);
+                int rows = n * blocks;
+                INDArray blockMatrix = Nd4j.create(matrices[0].data(), new int[] {rows, blockSize},
+                        new int[] {blockSize, 1}, 0, 'c');
+                FloatBuffer blockValues = blockMatrix.data().asNioFloat();
+                for(int f = 0; f < n; f++) {
+                    toBlocks(quantized, (first + f) * inputSize, frameBlocks, blockValues, f * blocks * blockSize);
+                }
+                /*[rows, blockSize] x [blockSize, columns], the sums of the int8 products, in column major order*/
+                INDArray result = Nd4j.create(matrices[1].data(), new int[] {rows, columns}, new int[] {1, rows}, 0,
+                        'f');
+                Nd4j.gemm(blockMatrix, weightValues, result, false, false, 1.0, 0.0);
+                FloatBuffer sums = result.data().asNioFloat();
+
+                for(int f = 0; f < n; f++) {
+                    for(int o = 0; o < nOut; o++) {
+                        int plane = ((first + f) * nOut + o) * positions;
+                        for(int dy = 0; dy < offsetsY; dy++) {
+                            for(int dx = 0; dx < offsetsX; dx++) {
+                                int column = (dy * offsetsX + dx) * nOut + o;
+                                int src = column * rows + f * blocks + dy * blocksX + dx;
+                                for(int oy = 0; oy < outHeight; oy++) {
+                                    int s = src + oy * blocksX;
+                                    int d = plane + oy * outWidth;
+                                    for(int ox = 0; ox < outWidth; ox++) {
+                                        out[d + ox] += sums.get(s + ox);
+                                    }
+                                }
+                            }
+                        }
+                        float scale = inputScale * weights.scales[o];
+                        if(relu) {
+                            for(int p = plane; p < plane + positions; p++) {
+                                float v = out[p] * scale + bias[o];
+                                out[p] = v > 0 ? v : 0;
+                            }
+                        } else {
+                            for(int p = plane; p < plane + positions; p++) {
+                                out[p] = out[p] * scale + bias[o];
+                            }
+                        }
+                    }
+                }
+            }
+            if(!relu) {
+                activate(out, nOut * positions, activation);
+            }
+            return out;
+        }
+
+        /**
+         * @return The block matrix and the result matrix of a group of frames, kept for the calling thread since new
+         * native buffers are slow to fill (page faults) and the same group size comes back on every call
+         */
+        private INDArray[] getMatrices(int rows) {
+            INDArray[] matrices = this.matrices.get();
+            if(matrices == null || matrices[0].size(0) != rows) {
+                matrices = new INDArray[] {Nd4j.createUninitialized(new int[] {rows, blockSize}, 'c'),
+                        Nd4j.createUninitialized(new int[] {rows, offsetsY * offsetsX * nOut}, 'f')};
+                this.matrices.set(matrices);
+            }
+            return matrices;
+        }
+
+        /**
+         * Rearranges the quantized input of a frame into its block matrix, one row of channels x stride rows x stride
+         * columns per block, and copies it to dst.
+         * @param quantized The quantized inputs of all frames
+         * @param offset The offset of the frame in quantized
+         * @param frameBlocks The block matrix of the frame is built here. The values outside the input (padding) are
+         *                    never written, so they stay zero for all frames.
+         * @param dst The block matrix of the group of frames
+         * @param dstOffset The offset of the frame in dst
+         */
+        private void toBlocks(float[] quantized, int offset, float[] frameBlocks, FloatBuffer dst, int dstOffset) {
+            int height = inputShape[1];
+            int width = inputShape[2];
+            /*The values of a block row are in runs of stride columns, except where the padding cuts them*/
+            for(int c = 0; c < inputShape[0]; c++) {
+                for(int by = 0; by < blocksY; by++) {
+                    for(int r = 0; r < stride[0]; r++) {
+                        int y = by * stride[0] + r - padding[0];
+                        if(y < 0 || y >= height) {
+                            continue;
+                        }
+                        int src = offset + (c * height + y) * width;
+                        int d = by * blocksX * blockSize + (c * stride[0] + r) * stride[1];
+                        for(int bx = 0; bx < blocksX; bx++, d += blockSize) {
+                            int from = Math.max(0, padding[1] - bx * stride[1]);
+                            int to = Math.min(stride[1], width + padding[1] - bx * stride[1]);
+                            if(from < to) {
+                                System.arraycopy(quantized, src + bx * stride[1] + from - padding[1], frameBlocks,
+                                        d + from, to - from);
+                            }
+                        }
+                    }
+                }
+            }
+            dst.position(dstOffset);
+            dst.put(frameBlocks);
+        }
+
+        int[] getOutputShape() {
+            return new int[] {nOut, outHeight, outWidth};
+        }
+
+        @Override
+        int getOutputSize() {
+            return nOut * outHeight * outWidth;
+        }
+    }
+
+    /**
+     * Max or average pooling on [channels, height, width] inputs, in floats
+     */
+    private static class QPool extends QLayer {
+        private final int[] inputShape;
+        private final int[] kernel;
+        private final int[] stride;
+        private final int[] padding;
+        private final boolean max;
+        private final int outHeight;
+        private final int outWidth;
+
+        QPool(int[] inputShape, int[] kernel, int[] stride, int[] padding, boolean max) {
+            this.inputShape = inputShape;
+            this.kernel = kernel;
+            this.stride = stride;
+            this.padding = padding;
+            this.max = max;
+            this.outHeight = (inputShape[1] + 2 * padding[0] - kernel[0]) / stride[0] + 1;
+            this.outWidth = (inputShape[2] + 2 * padding[1] - kernel[1]) / stride[1] + 1;
+        }
+
+        QPool(DataInputStream in) throws IOException {
+            this(readInts(in, 3), readInts(in, 2), readInts(in, 2), readInts(in, 2), in.readBoolean());
+        }
+
+        @Override
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(POOL);
+            writeInts(out, inputShape);
+            writeInts(out, kernel);
+            writeInts(out, stride);
+            writeInts(out, padding);
+            out.writeBoolean(max);
+        }
+
+        @Override
+        float[] forward(float[] x, int miniBatch, int nrFrames) {
+            int channels = inputShape[0];
+            int height = inputShape[1];
+            int width = inputShape[2];
+            /*The channels of all frames are pooled alike*/
+            int planes = miniBatch * nrFrames * channels;
+            float[] out = new float[planes * outHeight * outWidth];
+            if(padding[0] == 0 && padding[1] == 0 && max) {
+                /*Without padding every position is inside the input*/
+                for(int c = 0; c < planes; c++) {
+                    for(int oy = 0; oy < outHeight; oy++) {
+                        int d = (c * outHeight + oy) * outWidth;
+                        for(int ox = 0; ox < outWidth; ox++) {
+                            float v = Float.NEGATIVE_INFINITY;
+                            for(int ky = 0; ky < kernel[0]; ky++) {
+                                int src = (c * height + oy * stride[0] + ky) * width + ox * stride[1];
+                                for(int kx = 0; kx < kernel[1]; kx++) {
+                                    v = Math.max(v, x[src + kx]);
+                                }
+                            }
+                            out[d + ox] = v;
+                        }
+                    }
+                }
+                return out;
+            }
+            for(int c = 0; c < planes; c++) {
+                for(int oy = 0; oy < outHeight; oy++) {
+                    for(int ox = 0; ox < outWidth; ox++) {
+                        float v = max ? Float.NEGATIVE_INFINITY : 0;
+                        for(int ky = 0; ky < kernel[0]; ky++) {
+                            int y = oy * stride[0] + ky - padding[0];
+                            for(int kx = 0; kx < kernel[1]; kx++) {
+                                int xx = ox * stride[1] + kx - padding[1];
+                                /*Positions outside the input count as zeros, as in the im2col of the layer*/
+                                float in = y < 0 || y >= height || xx < 0 || xx >= width ? 0
+                                        : x[(c * height + y) * width + xx];
+                                v = max ? Math.max(v, in) : v + in;
+                            }
+                        }
+                        out[(c * outHeight + oy) * outWidth + ox] = max ? v : v / (kernel[0] * kernel[1]);
+                    }
+                }
+            }
+            return out;
+        }
+
+        int[] getOutputShape() {
+            return new int[] {inputShape[0], outHeight, outWidth};
+        }
+
+        @Override
+        int getOutputSize() {
+            return inputShape[0] * outHeight * outWidth;
+        }
+    }
+
+    /**
+     * Dense or output layer
+     */
+    private static class QDense extends QLayer {
+        private final QWeights weights;
+        private final float inputScale;
+        private final float[] bias;
+        private final String activation;
+
+        QDense(QWeights weights, float inputScale, float[] bias, String activation) {
+            this.weights = weights;
+            this.inputScale = inputScale;
+            this.bias = bias;
+            this.activation = activation;
+        }
+
+        QDense(DataInputStream in) throws IOException {
+            this(new QWeights(in), in.readFloat(), readFloats(in, in.readInt()), in.readUTF());
+        }
+
+        @Override
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(DENSE);
+            weights.write(out);
+            out.writeFloat(inputScale);
+            out.writeInt(bias.length);
+            writeFloats(out, bias);
+            out.writeUTF(activation);
+        }
+
+        @Override
+        float[] forward(float[] x, int miniBatch, int nrFrames) {
+            float[] out = weights.multiply(x, miniBatch * nrFrames, inputScale, bias);
+            activate(out, weights.rows, activation);
+            return out;
+        }
+
+        @Override
+        int getOutputSize() {
+            return weights.rows;
+        }
+    }
+
+    /**
+     * GravesLSTM layer. The gate pre-activations are ordered as block input, forget gate, output gate and input
+     * modulation gate, as in the LSTMHelpers of dl4j.
+     */
+    private static class QLstm extends QLayer {
+        private final QWeights inputWeights;
+        private final float inputScale;
+        private final QWeights recurrentWeights;
+        private final float hiddenScale;
+        private final float[] bias;
+        /*Peephole weights of the forget, output and input modulation gates*/
+        private final float[][] peepholes;
+        private final String activation;
+        private final int size;
+
+        QLstm(QWeights inputWeights, float inputScale, QWeights recurrentWeights, float hiddenScale, float[] bias,
+              float[][] peepholes, String activation) {
+            this.inputWeights = inputWeights;
+            this.inputScale = inputScale;
+            this.recurrentWeights = recurrentWeights;
+            this.hiddenScale = hiddenScale;
+            this.bias = bias;
+            this.peepholes = peepholes;
+            this.activation = activation;
+            this.size = recurrentWeights.cols;
+        }
+
+        QLstm(DataInputStream in) throws IOException {
+            this(new QWeights(in), in.readFloat(), new QWeights(in), in.readFloat(), readFloats(in, in.readInt()),
+                    readPeepholes(in), in.readUTF());
+        }
+
+        private static float[][] readPeepholes(DataInputStream in) throws IOException {
+            int size = in.readInt();
+            return new float[][] {readFloats(in, size), readFloats(in, size), readFloats(in, size)};
+        }
+
+        @Override
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(LSTM);
+            inputWeights.write(out);
+            out.writeFloat(inputScale);
+            recurrentWeights.write(out);
+            out.writeFloat(hiddenScale);
+            out.writeInt(bias.length);
+            writeFloats(out, bias);
+            out.writeInt(size);
+            for(float[] p : peepholes) {
+                writeFloats(out, p);
+            }
+            out.writeUTF(activation);
+        }
+
+        @Override
+        float[] forward(float[] x, int miniBatch, int nrFrames) {
+            int gates = 4 * size;
+            /*The input weights do not depend on the previous time step, so all time steps are done at once*/
+            float[] z = inputWeights.multiply(x, miniBatch * nrFrames, inputScale, bias);
+            float[] out = new float[miniBatch * nrFrames * size];
+            float[] h = new float[miniBatch * size];
+            float[] cell = new float[miniBatch * size];
+            for(int t = 0; t < nrFrames; t++) {
+                float[] zh = recurrentWeights.multiply(h, miniBatch, hiddenScale, null);
+                for(int i = 0; i < miniBatch; i++) {
+                    int row = i * nrFrames + t;
+                    int zi = row * gates;
+                    int hi = i * gates;
+                    int ci = i * size;
+                    for(int u = 0; u < size; u++) {
+                        float c = cell[ci + u];
+                        float blockInput = activate(z[zi + u] + zh[hi + u], activation);
+                        float forget = sigmoid(z[zi + size + u] + zh[hi + size + u] + c * peepholes[0][u]);
+                        float inputMod = sigmoid(z[zi + 3 * size + u] + zh[hi + 3 * size + u] + c * peepholes[2][u]);
+                        c = forget * c + inputMod * blockInput;
+                        float output = sigmoid(z[zi + 2 * size + u] + zh[hi + 2 * size + u] + c * peepholes[1][u]);
+                        cell[ci + u] = c;
+                        h[ci + u] = output * activate(c, activation);
+                        out[row * size + u] = h[ci + u];
+                    }
+                }
+            }
+            return out;
+        }
+
+        @Override
+        int getOutputSize() {
+            return size;
+        }
+    }
+
+    private static int[] readInts(DataInputStream in, int n) throws IOException {
+        int[] values = new int[n];
+        for(int i = 0; i < n; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        for(int v : values) {
+            out.writeInt(v);
+        }
+    }
+
+    private static float[] readFloats(DataInputStream in, int n) throws IOException {
+        float[] values = new float[n];
+        for(int i = 0; i < n; i++) {
+            values[i] = in.readFloat();
+        }
+        return values;
+    }
+
+    private static void writeFloats(DataOutputStream out, float[] values) throws IOException {
+        for(float v : values) {
+            out.writeFloat(v);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * DataSetIterator for sequential data that decodes the video clips straight into the minibatch feature array. It
+ * produces the same minibatches as a SequenceRecordReaderDataSetIterator over a SequentialFramesRecordReader and a
+ * CSVSequenceRecordReader, but each frame is written by a FrameConverter directly into its slot of the minibatch
+ * buffer instead of going through a BufferedImage, a raveled tensor and a list of Writables.
+ *
+ * The clips of a minibatch are decoded on a pool of worker threads, one FrameConverter per thread. The workers are
+ * stopped with shutdown() when the data is no longer needed (see DataLoader.shutdown).
+ */
+public class SequentialFramesDataSetIterator implements DataSetIterator {
+
+    private final String path;
+    private final String fileNameStandard;
+    private final int startIdx;
+    private final int nExamples;
+    private final int miniBatchSize;
+    private final int[][] window;
+    private final int nrFrames;
+    private final int nrOfCategories;
+    private final int frameSize;
+    private final ExecutorService executor;
+    private final ThreadLocal<FrameConverter> converters;
+
+    private DataSetPreProcessor preProcessor;
+    private int cursor = 0;
+    /*The example of the next reset, see setResetCursor*/
+    private int resetCursor = 0;
+    private float[] features;
+    private float[] labels;
+
+    /**
+     * @param path Path to the folder containing the videos and the labels files
+     * @param fileNameStandard The name of the video and label files (e.g. "sportclip_%d")
+     * @param startIdx The start index of the video and label files
+     * @param nExamples The number of data to be loaded
+     * @param miniBatchSize The minibatch size
+     * @param startFrame The first frame to be loaded
+     * @param nrFrames The number of frames to be loaded from each video file
+     * @param video_height The height of the video
+     * @param video_width The width of the video
+     * @param nrOfCategories The number of possible labels/categories
+     * @param decodeWorkers The number of video files decoded at the same time
+     * @param scaling The scaling applied to the pixel values when they are written into the minibatch
+     */
+    public SequentialFramesDataSetIterator(String path, String fileNameStandard, int startIdx, int nExamples,
+                                           int miniBatchSize, int startFrame, int nrFrames, int video_height,
+                                           int video_width, int nrOfCategories, int decodeWorkers,
+                                           PixelScaling scaling) {
+        this(path, fileNameStandard, startIdx, nExamples, miniBatchSize, startFrame, nrFrames, video_height,
+                video_width, nrOfCategories, decodeWorkers, scaling, InputMode.BGR);
+    }
+
+    /**
+     * @param path Path to the folder containing the videos and the labels files
+     * @param fileNameStandard The name of the video and label files (e.g. "sportclip_%d")
+     * @param startIdx The start index of the video and label files
+     * @param nExamples The number of data to be loaded
+     * @param miniBatchSize The minibatch size
+     * @param startFrame The first frame to be loaded
+     * @param nrFrames The number of frames to be loaded from each video file
+     * @param video_height The height of the video
+     * @param video_width The width of the video
+     * @param nrOfCategories The number of possible labels/categories
+     * @param decodeWorkers The number of video files decoded at the same time
+     * @param scaling The scaling applied to the pixel values when they are written into the minibatch
+     * @param mode The channel layout of the frames
+     */
+    public SequentialFramesDataSetIterator(String path, String fileNameStandard, int startIdx, int nExamples,
+                                           int miniBatchSize, int startFrame, int nrFrames, final int video_height,
+                                           final int video_width, int nrOfCategories, int decodeWorkers,
+                                           final PixelScaling scaling, final InputMode mode) {
+        this.path = path;
+        this.fileNameStandard = fileNameStandard;
+        this.startIdx = startIdx;
+        this.nExamples = nExamples;
+        this.miniBatchSize = miniBatchSize;
+        this.window = new int[][] {{startFrame, nrFrames}};
+        this.nrFrames = nrFrames;
+        this.nrOfCategories = nrOfCategories;
+        this.frameSize = mode.getFrameSize(video_height, video_width);
+        this.converters = new ThreadLocal<FrameConverter>() {
+            @Override
+            protected FrameConverter initialValue() {
+                return new FrameConverter(video_height, video_width, scaling, mode);
+            }
+        };
+        this.executor = Executors.newFixedThreadPool(Math.max(1, decodeWorkers), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SequentialFramesDataSetIterator-worker");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    @Override
+    public DataSet next(int num) {
+        final int n = Math.min(num, nExamples - cursor);
+        final int exampleSize = frameSize * nrFrames;
+        final int labelSize = nrOfCategories * nrFrames;
+        /*The buffers are reused for every minibatch of the same size*/
+        if(features == null || features.length != n * exampleSize) {
+            features = new float[n * exampleSize];
+            labels = new float[n * labelSize];
+        }
+
+        /*Decode the clips into their slots of the minibatch*/
+        List<Future<?>> decoded = new ArrayList<Future<?>>(n);
+        for(int i = 0; i < n; i++) {
+            final int example = i;
+            final int fileIdx = startIdx + cursor + i;
+            decoded.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Arrays.fill(features, example * exampleSize, (example + 1) * exampleSize, 0);
+                    File f = new File(path, String.format(fileNameStandard, fileIdx) + ".mp4");
+                    ClipDecoder.decodeWindows(f, window, converters.get(), new float[][] {features},
+                            new int[] {example * exampleSize});
+                    readLabels(new File(path, String.format(fileNameStandard, fileIdx) + ".txt"), example * labelSize);
+                    return null;
+                }
+            }));
+        }
+        for(Future<?> f : decoded) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        cursor += n;
+        PipelineMetrics.count(PipelineMetrics.CLIPS, n);
+
+        DataSet ds = new DataSet(Nd4j.create(features, new int[] {n, frameSize, nrFrames}, 'c'),
+                Nd4j.create(labels, new int[] {n, nrOfCategories, nrFrames}, 'c'));
+        if(preProcessor != null) {
+            preProcessor.preProcess(ds);
+        }
+        return ds;
+    }
+
+    /**
+     * Stops the decode workers. The iterator can not be used afterwards.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Reads the label file of a clip (one category per line and frame) as one-hot vectors into the label buffer. A
+     * frame without a line (or with an empty line) gets the category of the previous frame.
+     * @throws IOException If the file could not be read, the first frame has no category or a category is out of
+     *                     range
+     */
+    private void readLabels(File f, int offset) throws IOException {
+        Arrays.fill(labels, offset, offset + nrOfCategories * nrFrames, 0);
+        BufferedReader br = new BufferedReader(new FileReader(f));
+        try {
+            int category = -1;
+            for(int t = 0; t < nrFrames; t++) {
+                String line = br.readLine();
+                if(line != null && !line.trim().isEmpty()) {
+                    category = Integer.parseInt(line.trim());
+                    if(category < 0 || category >= nrOfCategories) {
+                        throw new IOException("Category " + category + " out of range in label file " + f);
+                    }
+                }
+                if(category < 0) {
+                    throw new IOException("No category for the first frame in label file " + f);
+                }
+                labels[offset + category * nrFrames + t] = 1;
+            }
+        } finally {
+            br.close();
+        }
+    }
+
+    @Override
+    public int totalExamples() {
+        return nExamples;
+    }
+
+    @Override
+    public int inputColumns() {
+        return frameSize;
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return nrOfCategories;
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        cursor = resetCursor;
+        resetCursor = 0;
+    }
+
+    /**
+     * Sets the example that the next reset() starts at, e.g. to resume an epoch after a number of minibatches. The
+     * clips before it are skipped without being decoded. Later resets start at the first example again.
+     * @param example The index of the example, relative to startIdx
+     */
+    public void setResetCursor(int example) {
+        resetCursor = Math.max(0, Math.min(example, nExamples));
+    }
+
+    @Override
+    public int batch() {
+        return miniBatchSize;
+    }
+
+    @Override
+    public int cursor() {
+        return cursor;
+    }
+
+    @Override
+    public int numExamples() {
+        return nExamples;
+    }
+
+    @Override
+    public void setPreProcessor(DataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return LabelMap.labels;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return cursor < nExamples;
+    }
+
+    @Override
+    public DataSet next() {
+        return next(miniBatchSize);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
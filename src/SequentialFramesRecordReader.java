@@ -14,6 +14,7 @@ import org.jcodec.common.io.ByteBufferSeekableByteChannel;
 import org.jcodec.common.io.NIOUtils;
 import org.jcodec.common.io.SeekableByteChannel;
 import org.jcodec.common.model.Picture8Bit;
+import org.nd4j.linalg.factory.Nd4j;
 
 import java.awt.image.BufferedImage;
 import java.io.DataInputStream;
@@ -23,7 +24,14 @@ import java.lang.reflect.Field;
 import java.net.URI;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  *  *  *  * Copyright 2015 Skymind,Inc.
@@ -49,6 +57,9 @@ import java.util.List;
  * original CodecRecordReader used an old version of Jcodecs (1.5) which resulted in error when grabbing some frames.
  * The new version (2.0) depreceates the FrameGrab class and instead uses the FrameGrab8Bit class which is more stable
  * and does not generate error for some frames.
+ *
+ * The reader can decode several files at the same time on a pool of worker threads (see WORKERS and PREFETCH). The
+ * sequences are still returned in the order of the input split.
  */
 public class SequentialFramesRecordReader extends FileRecordReader implements SequenceRecordReader {
     private int startFrame = 0;
@@ -57,7 +68,13 @@ public class SequentialFramesRecordReader extends FileRecordReader implements Se
     private double framesPerSecond = -1.0D;
     private double videoLength = -1.0D;
     private ImageLoader imageLoader;
+    /*Raveled frames are converted from the decoded planes, one converter per decoding thread*/
+    private ThreadLocal<FrameConverter> converters;
     private boolean ravel = false;
+    private int workers = 1;
+    private int prefetch = 1;
+    private ExecutorService executor;
+    private final LinkedList<Future<List<List<Writable>>>> pending = new LinkedList<Future<List<List<Writable>>>>();
     public static final String NAME_SPACE = "org.datavec.codec.reader";
     public static final String ROWS = "org.datavec.codec.reader.rows";
     public static final String COLUMNS = "org.datavec.codec.reader.columns";
@@ -66,11 +83,22 @@ public class SequentialFramesRecordReader extends FileRecordReader implements Se
     public static final String TIME_SLICE = "org.datavec.codec.reader.time";
     public static final String RAVEL = "org.datavec.codec.reader.ravel";
     public static final String VIDEO_DURATION = "org.datavec.codec.reader.duration";
+    /*Number of files decoded at the same time*/
+    public static final String WORKERS = "org.datavec.codec.reader.workers";
+    /*Number of files decoded ahead of the one being returned*/
+    public static final String PREFETCH = "org.datavec.codec.reader.prefetch";
+    /*Channel layout of raveled frames, the name of an InputMode (default bgr)*/
+    public static final String INPUT_MODE = "org.datavec.codec.reader.inputmode";
+    /*Scale applied to the [0,255] values of raveled frames while they are written (default 1)*/
+    public static final String SCALE = "org.datavec.codec.reader.scale";
 
     public SequentialFramesRecordReader() {
     }
 
     public List<List<Writable>> sequenceRecord() {
+        if(this.workers > 1) {
+            return this.nextDecoded();
+        }
         File next = (File)this.iter.next();
 
         try {
@@ -80,6 +108,60 @@ public class SequentialFramesRecordReader extends FileRecordReader implements Se
         }
     }
 
+    /**
+     * Returns the next sequence decoded by the worker threads and submits the following files for decoding
+     */
+    private List<List<Writable>> nextDecoded() {
+        this.submitPending();
+        Future<List<List<Writable>>> next = this.pending.poll();
+        this.submitPending();
+        try {
+            return next.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private void cancelPending() {
+        for(Future<List<List<Writable>>> f : this.pending) {
+            f.cancel(true);
+        }
+        this.pending.clear();
+    }
+
+    /**
+     * Submits files for decoding until PREFETCH files are pending or there are no files left
+     */
+    private void submitPending() {
+        if(this.executor == null) {
+            this.executor = Executors.newFixedThreadPool(this.workers, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "SequentialFramesRecordReader-worker");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        while(this.pending.size() < this.prefetch && this.iter.hasNext()) {
+            final File next = (File)this.iter.next();
+            this.pending.add(this.executor.submit(new Callable<List<List<Writable>>>() {
+                @Override
+                public List<List<Writable>> call() throws Exception {
+                    SeekableByteChannel channel = NIOUtils.readableChannel(next);
+                    try {
+                        return loadData(channel, next);
+                    } finally {
+                        channel.close();
+                    }
+                }
+            }));
+        }
+    }
+
     public List<List<Writable>> sequenceRecord(URI uri, DataInputStream dataInputStream) throws IOException {
         byte[] data = IOUtils.toByteArray(dataInputStream);
         ByteBuffer bb = ByteBuffer.wrap(data);
@@ -103,42 +185,35 @@ public class SequentialFramesRecordReader extends FileRecordReader implements Se
     }
 
     private List<List<Writable>> loadData(SeekableByteChannel seekableByteChannel, File f) throws IOException {
-        ArrayList record = new ArrayList();
+        final ArrayList record = new ArrayList();
         Picture8Bit p = null;
-        BufferedImage e;
         if(this.numFrames >= 1) {
-            FrameGrab8Bit i;
+            /*The keyframe index is stored next to the file, a stream only has the index of its container*/
+            KeyframeIndex index = f != null ? KeyframeIndex.forFile(f) : KeyframeIndex.build(seekableByteChannel);
+            List<Integer> failed;
             try {
-                i = FrameGrab8Bit.createFrameGrab8Bit(seekableByteChannel);
-                if(this.startFrame != 0) {
-                    i.seekToFramePrecise(this.startFrame);
-                }
+                failed = ClipDecoder.decodeRange(seekableByteChannel, index, this.startFrame,
+                        this.startFrame + this.numFrames, new ClipDecoder.FrameHandler() {
+                    @Override
+                    public boolean frame(int frameNumber, Picture8Bit p) {
+                        record.add(toRecord(p));
+                        return true;
+                    }
+
+                    @Override
+                    public boolean missing(int frameNumber) {
+                        /*Keep the sequence aligned with the labels by repeating the previous frame*/
+                        record.add(record.isEmpty() ? blankRecord() : record.get(record.size() - 1));
+                        return true;
+                    }
+                });
             } catch (JCodecException var8) {
-                System.err.println("1, " + f.getName());
+                System.err.println("1, " + (f != null ? f.getName() : "stream"));
 
                 throw new RuntimeException(var8);
             }
-
-            for(int i1 = this.startFrame; i1 < this.startFrame + this.numFrames; ++i1) {
-                try {
-                    p = i.getNativeFrame();
-                    if(p == null) {
-                        p = FrameGrab8Bit.getFrameFromFile(f, i1);
-                    }
-                    e = AWTUtil.toBufferedImage8Bit(p);
-                    if(this.ravel) {
-                        record.add(RecordConverter.toRecord(this.imageLoader.toRaveledTensor(e)));
-                    } else {
-                        record.add(RecordConverter.toRecord(this.imageLoader.asRowVector(e)));
-                    }
-                } catch (Exception var7) {
-                    try {
-                        p = FrameGrab8Bit.getFrameFromFile(f, i1);
-                    } catch (JCodecException e1) {
-                        e1.printStackTrace();
-                    }
-                    e = AWTUtil.toBufferedImage8Bit(p);
-                }
+            if(!failed.isEmpty()) {
+                System.err.println("Could not decode frames " + failed + " of " + (f != null ? f.getName() : "stream"));
             }
         } else {
             if(this.framesPerSecond < 1.0D) {
@@ -148,12 +223,7 @@ public class SequentialFramesRecordReader extends FileRecordReader implements Se
             for(double var9 = 0.0D; var9 < this.videoLength; var9 += this.framesPerSecond) {
                 try {
                     p = FrameGrab8Bit.getFrameFromChannelAtSec(seekableByteChannel, var9);
-                    e = AWTUtil.toBufferedImage8Bit(p);
-                    if(this.ravel) {
-                        record.add(RecordConverter.toRecord(this.imageLoader.toRaveledTensor(e)));
-                    } else {
-                        record.add(RecordConverter.toRecord(this.imageLoader.asRowVector(e)));
-                    }
+                    record.add(toRecord(p));
                 } catch (Exception var6) {
                     System.err.println("3");
                     throw new RuntimeException(var6);
@@ -164,6 +234,38 @@ public class SequentialFramesRecordReader extends FileRecordReader implements Se
         return record;
     }
 
+    /**
+     * Converts a decoded frame. A raveled frame is resized in YUV and written by a FrameConverter, which gives the
+     * layout of ImageLoader.toRaveledTensor without converting the full-size frame to a BufferedImage, or the layout
+     * of the configured InputMode.
+     */
+    private List<Writable> toRecord(Picture8Bit p) {
+        if(this.ravel) {
+            FrameConverter converter = this.converters.get();
+            float[] frame = new float[converter.getFrameSize()];
+            converter.convert(p, frame, 0, 1);
+            return RecordConverter.toRecord(Nd4j.create(frame));
+        }
+        return toRecord(AWTUtil.toBufferedImage8Bit(p));
+    }
+
+    /**
+     * A blank frame in the layout of the decoded frames, for a first frame that cannot be decoded
+     */
+    private List<Writable> blankRecord() {
+        if(this.ravel) {
+            return RecordConverter.toRecord(Nd4j.create(new float[this.converters.get().getFrameSize()]));
+        }
+        return toRecord(new BufferedImage(1, 1, BufferedImage.TYPE_3BYTE_BGR));
+    }
+
+    private List<Writable> toRecord(BufferedImage image) {
+        if(this.ravel) {
+            return RecordConverter.toRecord(this.imageLoader.toRaveledTensor(image));
+        }
+        return RecordConverter.toRecord(this.imageLoader.asRowVector(image));
+    }
+
     public void initialize(Configuration conf, InputSplit split) throws IOException, InterruptedException {
         this.setConf(conf);
         this.initialize(split);
@@ -178,7 +280,23 @@ public class SequentialFramesRecordReader extends FileRecordReader implements Se
     }
 
     public boolean hasNext() {
-        return this.iter.hasNext();
+        return !this.pending.isEmpty() || this.iter.hasNext();
+    }
+
+    @Override
+    public void reset() {
+        this.cancelPending();
+        super.reset();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.cancelPending();
+        if(this.executor != null) {
+            this.executor.shutdownNow();
+            this.executor = null;
+        }
+        super.close();
     }
 
     public void setConf(Configuration conf) {
@@ -188,10 +306,30 @@ public class SequentialFramesRecordReader extends FileRecordReader implements Se
         int rows = conf.getInt("org.datavec.codec.reader.rows", 28);
         int cols = conf.getInt("org.datavec.codec.reader.columns", 28);
         this.imageLoader = new ImageLoader(rows, cols);
+        final int height = rows;
+        final int width = cols;
+        final InputMode mode = InputMode.forName(conf.get(INPUT_MODE, InputMode.BGR.getName()));
+        this.ravel = conf.getBoolean("org.datavec.codec.reader.ravel", false);
+        final PixelScaling scaling = new PixelScaling(conf.getFloat(SCALE, 1.0F), null, null);
+        if(!this.ravel && mode != InputMode.BGR) {
+            /*The row vectors come from the ImageLoader, which only has the BGR layout*/
+            throw new IllegalArgumentException("Input mode " + mode + " needs raveled frames");
+        }
+        if(!this.ravel && !scaling.isIdentity()) {
+            /*The ImageLoader writes the row vectors without scaling*/
+            throw new IllegalArgumentException("Scaled pixel values need raveled frames");
+        }
+        this.converters = new ThreadLocal<FrameConverter>() {
+            @Override
+            protected FrameConverter initialValue() {
+                return new FrameConverter(height, width, scaling, mode);
+            }
+        };
         this.framesPerSecond = (double)conf.getFloat("org.datavec.codec.reader.time", -1.0F);
         this.videoLength = (double)conf.getFloat("org.datavec.codec.reader.duration", -1.0F);
-        this.ravel = conf.getBoolean("org.datavec.codec.reader.ravel", false);
         this.totalFrames = conf.getInt("org.datavec.codec.reader.frames", -1);
+        this.workers = Math.max(1, conf.getInt(WORKERS, 1));
+        this.prefetch = Math.max(this.workers, conf.getInt(PREFETCH, 2 * this.workers));
     }
 
     public Configuration getConf() {
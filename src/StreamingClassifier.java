@@ -0,0 +1,163 @@
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.jcodec.api.FrameGrab8Bit;
+import org.jcodec.api.JCodecException;
+import org.jcodec.common.io.NIOUtils;
+import org.jcodec.common.io.SeekableByteChannel;
+import org.jcodec.common.model.ColorSpace;
+import org.jcodec.common.model.Picture8Bit;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Classifies a stream of frames with a sequential (recurrent) model (e.g. model 3) one frame at a time. Each frame is
+ * run through the network with rnnTimeStep, so the LSTM state is carried over from the previous frames instead of
+ * classifying fixed windows of frames from the start. The posteriors are smoothed with an exponential moving average
+ * and a label is emitted every N frames, so the latency is bounded by N frames.
+ *
+ * The classifier keeps the LSTM state in the network, so a network must not be shared by several classifiers or used
+ * for anything else while it is streaming.
+ */
+public class StreamingClassifier {
+
+    private final MultiLayerNetwork model;
+    private final FrameConverter converter;
+    private final int emitEvery;
+    private final float smoothing;
+    private final LabelListener listener;
+
+    private final float[] frame;
+    private INDArray posteriors;
+    private int frameNumber = 0;
+
+    /**
+     * Creates a classifier for a network trained on frames in the BGR layout
+     * @param model The sequential network model
+     * @param height The height of the frames used by the network
+     * @param width The width of the frames used by the network
+     * @param scaling The scaling of the pixel values used when the network was trained (PixelScaling.UNIT for model 3)
+     * @param emitEvery The number of frames between two emitted labels
+     * @param smoothing The weight of the previous posteriors in the moving average, in [0,1) (0 for no smoothing)
+     * @param listener Receives the emitted labels
+     */
+    public StreamingClassifier(MultiLayerNetwork model, int height, int width, PixelScaling scaling, int emitEvery,
+                               float smoothing, LabelListener listener) {
+        this(model, height, width, scaling, InputMode.BGR, emitEvery, smoothing, listener);
+    }
+
+    /**
+     * @param model The sequential network model
+     * @param height The height of the frames used by the network
+     * @param width The width of the frames used by the network
+     * @param scaling The scaling of the pixel values used when the network was trained (PixelScaling.UNIT for model 3)
+     * @param mode The channel layout of the frames the network was trained on
+     * @param emitEvery The number of frames between two emitted labels
+     * @param smoothing The weight of the previous posteriors in the moving average, in [0,1) (0 for no smoothing)
+     * @param listener Receives the emitted labels
+     */
+    public StreamingClassifier(MultiLayerNetwork model, int height, int width, PixelScaling scaling, InputMode mode,
+                               int emitEvery, float smoothing, LabelListener listener) {
+        this.model = model;
+        this.converter = new FrameConverter(height, width, scaling, mode);
+        this.emitEvery = emitEvery;
+        this.smoothing = smoothing;
+        this.listener = listener;
+        this.frame = new float[converter.getFrameSize()];
+        model.rnnClearPreviousState();
+    }
+
+    /**
+     * Classifies the next frame of the stream
+     * @param p The decoded frame
+     */
+    public void addFrame(Picture8Bit p) {
+        converter.convert(p, frame, 0, 1);
+        /*One time step: [1, frameSize, 1]*/
+        INDArray output = model.rnnTimeStep(Nd4j.create(frame, new int[] {1, frame.length, 1}, 'c'));
+        INDArray p1 = output.reshape(1, output.length());
+
+        if(posteriors == null) {
+            posteriors = p1.dup();
+        } else {
+            posteriors.muli(smoothing).addi(p1.mul(1 - smoothing));
+        }
+
+        frameNumber++;
+        if(frameNumber % emitEvery == 0) {
+            int category = Nd4j.argMax(posteriors, 1).getInt(0);
+            listener.label(frameNumber - 1, category, posteriors.getFloat(category));
+        }
+    }
+
+    /**
+     * Clears the LSTM state and the smoothed posteriors, e.g. at a cut to another feed
+     */
+    public void reset() {
+        model.rnnClearPreviousState();
+        posteriors = null;
+        frameNumber = 0;
+    }
+
+    /**
+     * Classifies the frames of a video file as a stream
+     * @param f The video file
+     * @throws IOException
+     * @throws JCodecException
+     */
+    public void classifyFile(File f) throws IOException, JCodecException {
+        SeekableByteChannel channel = NIOUtils.readableChannel(f);
+        try {
+            FrameGrab8Bit grab = FrameGrab8Bit.createFrameGrab8Bit(channel);
+            Picture8Bit p;
+            while((p = grab.getNativeFrame()) != null) {
+                addFrame(p);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Classifies a stream of raw RGB frames (3 bytes per pixel, rows top to bottom), e.g. the output of
+     * "ffmpeg -i feed -f rawvideo -pix_fmt rgb24 -". Returns when the stream ends.
+     * @param in The raw frame stream
+     * @param frameWidth The width of the frames in the stream
+     * @param frameHeight The height of the frames in the stream
+     * @throws IOException
+     */
+    public void classifyRawStream(InputStream in, int frameWidth, int frameHeight) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        Picture8Bit p = Picture8Bit.create(frameWidth, frameHeight, ColorSpace.RGB);
+        byte[] pixels = p.getPlaneData(0);
+        while(true) {
+            try {
+                data.readFully(pixels, 0, frameWidth * frameHeight * 3);
+            } catch (EOFException e) {
+                return;
+            }
+            /*JCodec stores [0..255] as [-128, 127]*/
+            for(int i = 0; i < pixels.length; i++) {
+                pixels[i] = (byte) (pixels[i] - 128);
+            }
+            addFrame(p);
+        }
+    }
+
+    /**
+     * Receives the labels emitted by the classifier
+     */
+    public interface LabelListener {
+
+        /**
+         * @param frameNumber The number of the last frame used for the label (counted from the start or last reset)
+         * @param category The category with the highest smoothed posterior
+         * @param confidence The smoothed posterior of the category
+         */
+        void label(int frameNumber, int category, float confidence);
+    }
+}
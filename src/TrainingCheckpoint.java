@@ -0,0 +1,376 @@
+import org.deeplearning4j.nn.api.Updater;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.optimize.Solver;
+import org.deeplearning4j.optimize.api.ConvexOptimizer;
+import org.deeplearning4j.optimize.solvers.BaseOptimizer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The state of an early stopping training run in the middle of an epoch: the parameters, updater state and iteration
+ * count (used by the learning rate schedules and the updaters) of the network, the early stopping bookkeeping (scores
+ * of the finished epochs and the best model so far) and the position of the training data iterator, given as the
+ * number of minibatches of the current epoch that have been trained on. With a score calculated in the background
+ * (see AsyncScoreCalculator), the parameters of the epoch whose score was still being calculated are kept as well, so
+ * that epoch can be scored again when the run is resumed.
+ *
+ * A checkpoint holds copies of the arrays, so it can be written on another thread while the network keeps training
+ * (see AsyncWriter).
+ */
+public class TrainingCheckpoint {
+
+    private static final int MAGIC = 0x54434B32;
+    /*Checkpoints without the pending evaluation*/
+    private static final int MAGIC_V1 = 0x54434B31;
+
+    private final int epoch;
+    private final int batch;
+    private final int bestModelEpoch;
+    private final double bestModelScore;
+    private final Map<Integer, Double> scoreVsEpoch;
+    private final INDArray params;
+    private final INDArray updaterState;
+    private final int iteration;
+    private int pendingEpoch = -1;
+    private INDArray pendingParams;
+    private INDArray pendingUpdaterState;
+
+    private TrainingCheckpoint(int epoch, int batch, int bestModelEpoch, double bestModelScore,
+                               Map<Integer, Double> scoreVsEpoch, INDArray params, INDArray updaterState,
+                               int iteration) {
+        this.epoch = epoch;
+        this.batch = batch;
+        this.bestModelEpoch = bestModelEpoch;
+        this.bestModelScore = bestModelScore;
+        this.scoreVsEpoch = scoreVsEpoch;
+        this.params = params;
+        this.updaterState = updaterState;
+        this.iteration = iteration;
+    }
+
+    /**
+     * Takes a snapshot of a network during training
+     * @param model The network
+     * @param epoch The current epoch
+     * @param batch The number of minibatches of the current epoch the network has been trained on
+     * @param bestModelEpoch The epoch of the best model so far, or -1
+     * @param bestModelScore The score of the best model so far
+     * @param scoreVsEpoch The scores of the evaluated epochs
+     * @return The checkpoint
+     */
+    public static TrainingCheckpoint snapshot(MultiLayerNetwork model, int epoch, int batch, int bestModelEpoch,
+                                              double bestModelScore, Map<Integer, Double> scoreVsEpoch) {
+        Updater updater = model.getUpdater();
+        INDArray state = updater == null ? null : updater.getStateViewArray();
+        return new TrainingCheckpoint(epoch, batch, bestModelEpoch, bestModelScore,
+                new LinkedHashMap<Integer, Double>(scoreVsEpoch), model.params().dup(),
+                state == null ? null : state.dup(), getIteration(model));
+    }
+
+    /**
+     * Adds the network of an epoch whose score is still being calculated to the checkpoint
+     * @param snapshot The network with the parameters of the epoch
+     * @param epoch The epoch
+     */
+    public void setPendingEvaluation(MultiLayerNetwork snapshot, int epoch) {
+        Updater updater = snapshot.getUpdater();
+        INDArray state = updater == null ? null : updater.getStateViewArray();
+        this.pendingEpoch = epoch;
+        this.pendingParams = snapshot.params().dup();
+        this.pendingUpdaterState = state == null ? null : state.dup();
+    }
+
+    /**
+     * @return True if the checkpoint has the network of an epoch whose score was still being calculated
+     */
+    public boolean hasPendingEvaluation() {
+        return pendingEpoch >= 0;
+    }
+
+    /**
+     * @return The epoch whose score was still being calculated, or -1
+     */
+    public int getPendingEpoch() {
+        return pendingEpoch;
+    }
+
+    /**
+     * Sets the parameters and updater state of a network to the ones of the checkpoint
+     * @param model A network with the same configuration as the checkpointed network
+     */
+    public void restore(MultiLayerNetwork model) {
+        restore(model, params, updaterState);
+        setIteration(model, iteration);
+    }
+
+    /**
+     * Sets the parameters and updater state of a network to the ones of the epoch whose score was still being
+     * calculated
+     * @param model A network with the same configuration as the checkpointed network
+     */
+    public void restorePendingEvaluation(MultiLayerNetwork model) {
+        if(!hasPendingEvaluation()) {
+            throw new IllegalStateException("The checkpoint has no pending evaluation");
+        }
+        restore(model, pendingParams, pendingUpdaterState);
+    }
+
+    private static void restore(MultiLayerNetwork model, INDArray params, INDArray updaterState) {
+        if(model.params().length() != params.length()) {
+            throw new IllegalArgumentException("The checkpoint has " + params.length() + " parameters, the model has "
+                    + model.params().length());
+        }
+        model.params().assign(params);
+        if(updaterState != null) {
+            INDArray view = model.getUpdater().getStateViewArray();
+            if(view != null) {
+                view.assign(updaterState);
+            }
+        }
+    }
+
+    /**
+     * The iteration count of a network is kept by the optimizer of its solver, which MultiLayerNetwork does not expose
+     * @return The optimizer, or null if the network has none
+     */
+    private static BaseOptimizer getOptimizer(MultiLayerNetwork model) {
+        try {
+            Field solverField = MultiLayerNetwork.class.getDeclaredField("solver");
+            solverField.setAccessible(true);
+            Solver solver = (Solver) solverField.get(model);
+            ConvexOptimizer optimizer = solver == null ? null : solver.getOptimizer();
+            return optimizer instanceof BaseOptimizer ? (BaseOptimizer) optimizer : null;
+        } catch (NoSuchFieldException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Field getIterationField() {
+        try {
+            Field f = BaseOptimizer.class.getDeclaredField("iteration");
+            f.setAccessible(true);
+            return f;
+        } catch (NoSuchFieldException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param model The network
+     * @return The number of iterations the network has been trained for
+     */
+    public static int getIteration(MultiLayerNetwork model) {
+        BaseOptimizer optimizer = getOptimizer(model);
+        if(optimizer == null) {
+            return 0;
+        }
+        try {
+            return getIterationField().getInt(optimizer);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Sets the number of iterations the network has been trained for
+     * @param model The network
+     * @param iteration The number of iterations
+     */
+    public static void setIteration(MultiLayerNetwork model, int iteration) {
+        /*getUpdater creates the solver if the network has not been trained yet*/
+        model.getUpdater();
+        BaseOptimizer optimizer = getOptimizer(model);
+        if(optimizer != null) {
+            try {
+                getIterationField().setInt(optimizer, iteration);
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Reads a checkpoint
+     * @param file The checkpoint file
+     * @return The checkpoint, or null if the file does not exist
+     * @throws IOException
+     */
+    public static TrainingCheckpoint read(File file) throws IOException {
+        if(!file.exists()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            int magic = in.readInt();
+            if(magic != MAGIC && magic != MAGIC_V1) {
+                throw new IOException(file + " is not a training checkpoint");
+            }
+            int epoch = in.readInt();
+            int batch = in.readInt();
+            int bestModelEpoch = in.readInt();
+            double bestModelScore = in.readDouble();
+            Map<Integer, Double> scoreVsEpoch = new LinkedHashMap<Integer, Double>();
+            int nrOfScores = in.readInt();
+            for(int i = 0; i < nrOfScores; i++) {
+                int e = in.readInt();
+                scoreVsEpoch.put(e, in.readDouble());
+            }
+            INDArray params = Nd4j.read(in);
+            INDArray updaterState = in.readBoolean() ? Nd4j.read(in) : null;
+            int iteration = in.readInt();
+            TrainingCheckpoint checkpoint = new TrainingCheckpoint(epoch, batch, bestModelEpoch, bestModelScore,
+                    scoreVsEpoch, params, updaterState, iteration);
+            if(magic == MAGIC) {
+                checkpoint.pendingEpoch = in.readInt();
+                if(checkpoint.pendingEpoch >= 0) {
+                    checkpoint.pendingParams = Nd4j.read(in);
+                    checkpoint.pendingUpdaterState = in.readBoolean() ? Nd4j.read(in) : null;
+                }
+            }
+            return checkpoint;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the checkpoint to a temporary file which then replaces the checkpoint file, so that a crash while
+     * writing leaves the previous checkpoint intact
+     * @param file The checkpoint file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        long start = PipelineMetrics.start();
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(epoch);
+            out.writeInt(batch);
+            out.writeInt(bestModelEpoch);
+            out.writeDouble(bestModelScore);
+            out.writeInt(scoreVsEpoch.size());
+            for(Map.Entry<Integer, Double> e : scoreVsEpoch.entrySet()) {
+                out.writeInt(e.getKey());
+                out.writeDouble(e.getValue());
+            }
+            Nd4j.write(params, out);
+            out.writeBoolean(updaterState != null);
+            if(updaterState != null) {
+                Nd4j.write(updaterState, out);
+            }
+            out.writeInt(iteration);
+            out.writeInt(pendingEpoch);
+            if(pendingEpoch >= 0) {
+                Nd4j.write(pendingParams, out);
+                out.writeBoolean(pendingUpdaterState != null);
+                if(pendingUpdaterState != null) {
+                    Nd4j.write(pendingUpdaterState, out);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        PipelineMetrics.stop(PipelineMetrics.CHECKPOINT, start);
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public int getBatch() {
+        return batch;
+    }
+
+    public int getBestModelEpoch() {
+        return bestModelEpoch;
+    }
+
+    public double getBestModelScore() {
+        return bestModelScore;
+    }
+
+    public Map<Integer, Double> getScoreVsEpoch() {
+        return scoreVsEpoch;
+    }
+
+    /**
+     * Writes checkpoints on a background thread. If checkpoints are submitted faster than they can be written, only
+     * the latest one is written.
+     */
+    public static class AsyncWriter {
+        private final File file;
+        private final AtomicReference<TrainingCheckpoint> pending = new AtomicReference<TrainingCheckpoint>();
+        private final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "TrainingCheckpoint-writer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        /**
+         * @param file The checkpoint file
+         */
+        public AsyncWriter(File file) {
+            this.file = file;
+        }
+
+        /**
+         * Writes a checkpoint in the background
+         * @param checkpoint The checkpoint
+         */
+        public void submit(TrainingCheckpoint checkpoint) {
+            pending.set(checkpoint);
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    TrainingCheckpoint c = pending.getAndSet(null);
+                    if(c != null) {
+                        try {
+                            c.write(file);
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * Waits until the submitted checkpoints have been written
+         */
+        public void close() {
+            writer.shutdown();
+            try {
+                writer.awaitTermination(10, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -2,9 +2,12 @@ import org.deeplearning4j.eval.Evaluation;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
+import org.jcodec.api.JCodecException;
+import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 
 import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Author: Daniel Karlsson c11dkn@cs.umu.se
@@ -17,11 +20,40 @@ public class VideoClassificationThesisProject {
     private static final int minibatchsize = 64;
     private static final int nrOfCategories = 11;
     private static final String savedModelsPath = "saved_models";
+    /*Extension of the inference exports of the saved models, used by the evaluation*/
+    private static final String inferenceModelExtension = ".inference";
 
     /*Early stopping training parameters*/
     private static final int maxEpochs = 4;
     private static final int maxHours = 1500;
     private static final int maxEpochsWithoutImprovement = 5;
+    /*Data-parallel training (see NetworkTrainer.parallelEarlyStoppingTrain): number of model replicas and minibatches
+    per replica between two averagings. With 1 replica the model is trained on one thread, minibatch by minibatch, as
+    in the thesis. More replicas train faster but average their parameters and updater states, which changes the
+    optimisation, and keep a copy of the network each.*/
+    private static final int trainingWorkers = 1;
+    private static final int averagingFrequency = 5;
+    /*Minibatches between two training checkpoints, and whether to resume from the last checkpoint*/
+    private static final int checkpointEvery = 500;
+    private static final boolean resumeTraining = false;
+    /*Testing clips scored in the background after each epoch of model 3 (see AsyncScoreCalculator), 0 scores all
+    testing clips before the next epoch. A subset picks the best model on a sample of the testing clips and stops one
+    epoch later, so it is only used when set here.*/
+    private static final int evaluationExamples = 0;
+
+    /*Training of the layers of model 3 after its convolutional layers on their cached activations (see FeatureCache):
+    number of frozen layers, epochs and whether the activations are stored as half precision floats*/
+    private static final int nrOfFrozenLayers = 3;
+    private static final int headEpochs = 10;
+    private static final boolean halfPrecisionFeatures = true;
+
+    /*Post-training int8 quantization (see QuantizedNetwork): training examples, drawn at random from all of the
+    training data and kept in memory (3.4 MB per clip of model 3), used to calibrate the activation scales, and weight
+    scales per output channel instead of per layer*/
+    private static final int calibrationExamples = 64;
+    private static final boolean perChannelScales = true;
+    /*Evaluate the clips with the int8 network of model 3 saved by quantizeModels instead of the float network*/
+    private static final boolean quantizedEvaluation = false;
 
     /*Non-sequential data parameters*/
     private static final String[] allowedExtensions = {"bmp"};
@@ -34,13 +66,55 @@ public class VideoClassificationThesisProject {
     private static final String seqTrainingDataPath = "video_data/sequential_data/training_data3";
     private static final String seqTestingDataPath = "video_data/sequential_data/testing_data3";
     private static final String fileNameStandard = "sportclip_%d";
+    private static final int decodeWorkers = Runtime.getRuntime().availableProcessors();
+    private static final int prefetchDepth = 2;
+    /*Channel layout of the decoded frames fed to models 1 and 3 (see InputMode). The image files of the
+    non-sequential data and the frame cache only hold BGR frames, the other modes are decoded from the videos.*/
+    private static final InputMode inputMode = InputMode.BGR;
+
+    /*Number of windows (sequential) or frames (non-sequential) run through the network at once in the evaluation*/
+    private static final int evaluationBatchSize = 64;
+    /*Number of threads running the network in the evaluation, each with its own copy of the network*/
+    private static final int inferenceWorkers = 2;
+    /*Classify only keyframes in the non-sequential evaluation*/
+    private static final boolean keyframesOnly = false;
+    /*Skip frames of the non-sequential evaluation that differ less than this from the last classified frame (mean
+    absolute luma difference, see FrameSelector), reusing its prediction. 0 classifies all frames.*/
+    private static final double nearDuplicateThreshold = 0;
+
+    /*Streaming classification: frames between two labels and weight of the previous posteriors*/
+    private static final int streamEmitEvery = 10;
+    private static final float streamSmoothing = 0.8f;
+
+    /*Sequential evaluation windows, each given as {startFrame, nrOfFrames}*/
+    private static final int[][] seqWindows = {{0, 10}, {30, 10}, {50, 10}, {70, 10}, {90, 10}};
+
+    /*Early exit evaluation: count frame votes instead of averaging posteriors, lead of the best category (per frame)
+    needed for a decision, frames needed before a decision and frames classified at once (non-sequential)*/
+    private static final boolean earlyExitVotes = false;
+    private static final double earlyExitMargin = 0.5;
+    private static final int earlyExitMinFrames = 10;
+    private static final int earlyExitChunk = 5;
+
+    /*The evaluation tables are also written to this path as .json and .csv*/
+    private static final String evaluationResults = "evaluation_results/last_evaluation";
+
+    /*Pipeline metrics (see PipelineMetrics): whether the counters are reported to the log file and over JMX, report
+    period and log file. The counters are kept in any case.*/
+    private static final boolean reportMetrics = false;
+    private static final int metricsPeriodSeconds = 60;
+    private static final String metricsLog = "pipeline_metrics.csv";
 
     public static void main(String[] args) {
+        if(reportMetrics) {
+            PipelineMetrics.startReporting(metricsPeriodSeconds, new PipelineMetrics.CsvSink(new File(metricsLog)),
+                    new PipelineMetrics.JmxSink());
+        }
         trainModel2();
     }
 
     private static void trainModel1() { // 6.5h 72 epochs
-        MultiLayerConfiguration conf = NetworkModels.getModel1(video_height, video_width, channels, nrOfCategories);
+        MultiLayerConfiguration conf = NetworkModels.getModel1(inputMode, video_height, video_width, nrOfCategories);
         MultiLayerNetwork model = new MultiLayerNetwork(conf);
         model.init();
         model.setListeners(new ScoreIterationListener(1));
@@ -48,16 +122,39 @@ public class VideoClassificationThesisProject {
 
         DataSetIterator[] data = null;
         try {
-            data = DataLoader.getNonSequentialData(nonSeqDataPath,
-                    allowedExtensions, video_height, video_width, channels, 64, 90, nrOfCategories);
-
+            data = getModel1Data();
         } catch (IOException e) {
             e.printStackTrace();
         }
-        NetworkTrainer.earlyStoppingTrain(model, "saved_models", data[0], data[1], maxEpochs, maxHours, maxEpochsWithoutImprovement);
+        NetworkTrainer.parallelEarlyStoppingTrain(model, "saved_models", data[0], data[1], maxEpochs, maxHours,
+                maxEpochsWithoutImprovement, trainingWorkers, averagingFrequency, checkpointEvery, resumeTraining);
+        DataLoader.shutdown(data[0]);
+        DataLoader.shutdown(data[1]);
 
     }
 
+    /**
+     * Returns the training and testing data of model 1: the image files of the non-sequential data for the BGR input
+     * mode, otherwise frames decoded from the sequential data in the input mode
+     * @return The training and the testing data
+     * @throws IOException
+     */
+    private static DataSetIterator[] getModel1Data() throws IOException {
+        if(inputMode == InputMode.BGR) {
+            return DataLoader.getNonSequentialData(nonSeqDataPath,
+                    allowedExtensions, video_height, video_width, channels, 64, 90, nrOfCategories);
+        }
+        /*About 64 frames per minibatch, like the image files*/
+        int clipsPerBatch = Math.max(1, 64 / nrOfFramesPerVideo);
+        return new DataSetIterator[] {
+                DataLoader.getDirectFrameData(seqTrainingDataPath, fileNameStandard, 0, 3465, clipsPerBatch, 110,
+                        nrOfFramesPerVideo, video_height, video_width, nrOfCategories, decodeWorkers, prefetchDepth,
+                        PixelScaling.NONE, inputMode),
+                DataLoader.getDirectFrameData(seqTestingDataPath, fileNameStandard, 0, 462, clipsPerBatch,
+                        startFrame, nrOfFramesPerVideo, video_height, video_width, nrOfCategories, decodeWorkers,
+                        prefetchDepth, PixelScaling.NONE, inputMode)};
+    }
+
     private static void trainModel2() { //it2: 85h 4 epochs it3: 44h 4 epochs
         MultiLayerConfiguration conf = NetworkModels.getModel2(video_height, video_width, channels, nrOfCategories);
         MultiLayerNetwork model = new MultiLayerNetwork(conf);
@@ -73,146 +170,359 @@ public class VideoClassificationThesisProject {
             e.printStackTrace();
         }
 
-        NetworkTrainer.earlyStoppingTrain(model, "saved_models", data[0], data[1], maxEpochs, maxHours, maxEpochsWithoutImprovement);
+        NetworkTrainer.parallelEarlyStoppingTrain(model, "saved_models", data[0], data[1], maxEpochs, maxHours,
+                maxEpochsWithoutImprovement, trainingWorkers, averagingFrequency, checkpointEvery, resumeTraining);
+        DataLoader.shutdown(data[0]);
+        DataLoader.shutdown(data[1]);
     }
 
     private static void trainModel3() {
-        MultiLayerConfiguration conf = NetworkModels.getModel3(video_height, video_width, channels, nrOfCategories);
+        MultiLayerConfiguration conf = NetworkModels.getModel3(inputMode, video_height, video_width, nrOfCategories);
         MultiLayerNetwork model = new MultiLayerNetwork(conf);
         model.init();
         model.setListeners(new ScoreIterationListener(1));
 
         DataSetIterator testingData = null, trainingData = null;
         try {
-            testingData = DataLoader.getSequentialData(seqTestingDataPath, fileNameStandard, 0, 462, minibatchsize,
-                    startFrame, nrOfFramesPerVideo, video_height, video_width, nrOfCategories);
+            testingData = DataLoader.getDirectSequentialData(seqTestingDataPath, fileNameStandard, 0, 462, minibatchsize,
+                    startFrame, nrOfFramesPerVideo, video_height, video_width, nrOfCategories, decodeWorkers,
+                    prefetchDepth, PixelScaling.UNIT, inputMode);
 
-            trainingData = DataLoader.getSequentialData(seqTrainingDataPath, fileNameStandard, 0, 3465, minibatchsize,
-                    110, nrOfFramesPerVideo, video_height, video_width, nrOfCategories);
+            if(inputMode == InputMode.BGR) {
+                trainingData = DataLoader.getCachedSequentialData(seqTrainingDataPath, fileNameStandard, 0, 3465,
+                        minibatchsize, 110, nrOfFramesPerVideo, video_height, video_width, nrOfCategories);
+            } else {
+                trainingData = DataLoader.getDirectSequentialData(seqTrainingDataPath, fileNameStandard, 0, 3465,
+                        minibatchsize, 110, nrOfFramesPerVideo, video_height, video_width, nrOfCategories,
+                        decodeWorkers, prefetchDepth, PixelScaling.UNIT, inputMode);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         } catch (Exception e) {
             e.printStackTrace();
         }
-        NetworkTrainer.earlyStoppingTrain(model, savedModelsPath, trainingData, testingData, maxEpochs, maxHours,
-                maxEpochsWithoutImprovement);
+        NetworkTrainer.parallelEarlyStoppingTrain(model, savedModelsPath, trainingData, testingData, maxEpochs,
+                maxHours, maxEpochsWithoutImprovement, trainingWorkers, averagingFrequency, checkpointEvery,
+                resumeTraining, evaluationExamples);
+        DataLoader.shutdown(trainingData);
+        DataLoader.shutdown(testingData);
     }
 
 
-    private static void evaluateVideoClips(boolean seqData, int nrOfFrames, int frameJump) {
-        int[] classifiedVideos = new int[nrOfCategories];
-        int[][] correctlyClassifiedVideos = new int[nrOfCategories][nrOfCategories];
-        int[] classifiedFrames = new int[nrOfCategories];
-        int[][] correctlyClassifiedFrames= new int[nrOfCategories][nrOfCategories];
+    /**
+     * Retrains the dense, LSTM and output layers of a trained model 3 with its convolutional layers frozen. The
+     * activations of the convolutional layers are computed once and read from a feature cache in every epoch, so an
+     * epoch neither decodes the videos nor runs the convolutional layers.
+     */
+    private static void trainModel3Head() {
+        try {
+            MultiLayerNetwork model = ModelHandler.loadModel(savedModelsPath + "/model3it3.bin");
+
+            DataSetIterator testingData = DataLoader.getCachedFeatureData(model, nrOfFrozenLayers,
+                    halfPrecisionFeatures, seqTestingDataPath, fileNameStandard, 0, 462, minibatchsize, startFrame,
+                    nrOfFramesPerVideo, video_height, video_width, nrOfCategories, decodeWorkers, inputMode);
+            DataSetIterator trainingData = DataLoader.getCachedFeatureData(model, nrOfFrozenLayers,
+                    halfPrecisionFeatures, seqTrainingDataPath, fileNameStandard, 0, 3465, minibatchsize, 110,
+                    nrOfFramesPerVideo, video_height, video_width, nrOfCategories, decodeWorkers, inputMode);
+
+            NetworkTrainer.trainHead(model, nrOfFrozenLayers, trainingData, headEpochs);
+            Evaluation eval = NetworkTrainer.getHead(model, nrOfFrozenLayers).evaluate(testingData);
+            System.out.println(eval.stats());
+            DataLoader.shutdown(trainingData);
+            DataLoader.shutdown(testingData);
+            ModelHandler.saveModel(model, savedModelsPath + "/model3it3_head.bin");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Quantizes models 1 and 3 to int8, reports the accuracy of the quantized models against the float models on the
+     * testing data (the testing frames for model 1, the testing clips for model 3) and saves them next to the models.
+     */
+    private static void quantizeModels() {
+        try {
+            DataSetIterator[] nonSeqData = getModel1Data();
+            quantizeModel("model1it3", nonSeqData[0], nonSeqData[1]);
+            DataLoader.shutdown(nonSeqData[0]);
+            DataLoader.shutdown(nonSeqData[1]);
+
+            DataSetIterator calibrationData = DataLoader.getDirectSequentialData(seqTrainingDataPath,
+                    fileNameStandard, 0, 3465, minibatchsize, 110, nrOfFramesPerVideo, video_height, video_width,
+                    nrOfCategories, decodeWorkers, prefetchDepth, PixelScaling.UNIT, inputMode);
+            DataSetIterator testingData = DataLoader.getDirectSequentialData(seqTestingDataPath, fileNameStandard, 0,
+                    462, minibatchsize, startFrame, nrOfFramesPerVideo, video_height, video_width, nrOfCategories,
+                    decodeWorkers, prefetchDepth, PixelScaling.UNIT, inputMode);
+            quantizeModel("model3it3", calibrationData, testingData);
+            DataLoader.shutdown(calibrationData);
+            DataLoader.shutdown(testingData);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void quantizeModel(String name, DataSetIterator calibrationData, DataSetIterator testingData)
+            throws IOException {
+        MultiLayerNetwork model = ModelHandler.loadModel(savedModelsPath + "/" + name + ".bin");
+        QuantizedNetwork quantized = QuantizedNetwork.quantize(model, calibrationData, calibrationExamples,
+                perChannelScales);
+        System.out.println(name + " int8 (" + (perChannelScales ? "per-channel" : "per-layer") + " scales):");
+        System.out.println(QuantizedNetwork.compare(model, quantized, testingData));
+        quantized.save(savedModelsPath + "/" + name + QuantizedNetwork.EXTENSION);
+    }
+
+    private static void evaluateVideoClips(final boolean seqData, final int nrOfFrames, final int frameJump) {
+        final ConfusionMatrix.PerThread tables = new ConfusionMatrix.PerThread(nrOfCategories);
+        /*Frames kept and skipped by the FrameSelectors of the decode threads*/
+        final AtomicLong skippedFrames = new AtomicLong();
+        final AtomicLong keptFrames = new AtomicLong();
 
         /*Load model*/
-        MultiLayerNetwork seqModel = null;
-        MultiLayerNetwork nonSeqModel = null;
+        MultiLayerNetwork model = null;
+        QuantizedNetwork quantized = null;
         try {
-            if(seqData) {
-                seqModel = ModelHandler.loadModel("saved_models/model3it3.bin");
+            if(seqData && quantizedEvaluation) {
+                quantized = QuantizedNetwork.load(savedModelsPath + "/model3it3" + QuantizedNetwork.EXTENSION);
+            } else if(seqData) {
+                model = getEvaluationModel("model3it3");
             } else {
-                nonSeqModel = ModelHandler.loadModel("saved_models/model2it3b.bin");
+                model = getEvaluationModel("model2it3b");
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
 
-        for(int i = 0; i < 3465; i++) {
-            String path = "video_data/sequential_data/training_data3/sportclip_" + i;
-            BufferedReader br = null;
-            int category = -1;
-            try {
-                br = new BufferedReader(new FileReader(path + ".txt"));
-                String line = br.readLine();
-                line = br.readLine();
-                category = Integer.parseInt(line);
-                Evaluation eval = null;
-                Evaluation eval2 = null;
-                Evaluation eval3 = null;
-                Evaluation eval4 = null;
-                Evaluation eval5 = null;
+        /*The clips are decoded and evaluated in parallel, the results are added to the tables in clip order*/
+        ParallelEvaluator evaluator = quantized != null
+                ? new ParallelEvaluator(quantized, decodeWorkers, inferenceWorkers, evaluationBatchSize, nrOfCategories)
+                : new ParallelEvaluator(model, decodeWorkers, inferenceWorkers, evaluationBatchSize, nrOfCategories);
+        BatchedEvaluator.ClipListener listener = new BatchedEvaluator.ClipListener() {
+            @Override
+            public void clipEvaluated(int i, int category, int[][] predictions) {
+                /*The video is classified as the category that most of its windows were classified as*/
+                int[] mostClassifiedCategory = new int[predictions.length];
+                for(int w = 0; w < predictions.length; w++) {
+                    int frames = 0;
+                    for(int n : predictions[w]) {
+                        frames += n;
+                    }
+                    System.out.println("Video " + i + ", " + LabelMap.labelMap.get(category) + ": "
+                            + (double) predictions[w][category] / frames);
+                    mostClassifiedCategory[w] = ConfusionMatrix.mostClassified(predictions[w], category);
+                }
+                addToTables(tables.get(), category, VideoVote.mostCommon(mostClassifiedCategory, nrOfCategories),
+                        predictions);
+            }
+        };
+
+        ParallelEvaluator.ClipLoader loader = new ParallelEvaluator.ClipLoader() {
+            @Override
+            public ParallelEvaluator.LoadedClip load(int i) throws IOException {
+                String path = "video_data/sequential_data/training_data3/sportclip_" + i;
+                BufferedReader br = new BufferedReader(new FileReader(path + ".txt"));
+                int category;
+                try {
+                    String line = br.readLine();
+                    line = br.readLine();
+                    category = Integer.parseInt(line);
+                } finally {
+                    br.close();
+                }
                 if(seqData) {
-                    eval = NetworkEvaluator.evaluateVideoClipSeq(seqModel,
-                            path + ".mp4", category, 0, 10, nrOfCategories);
-                    eval2 = NetworkEvaluator.evaluateVideoClipSeq(seqModel,
-                            path + ".mp4", category, 30, 10, nrOfCategories);
-                    eval3 = NetworkEvaluator.evaluateVideoClipSeq(seqModel,
-                            path + ".mp4", category, 50, 10, nrOfCategories);
-                    eval4 = NetworkEvaluator.evaluateVideoClipSeq(seqModel,
-                            path + ".mp4", category, 70, 10, nrOfCategories);
-                    eval5 = NetworkEvaluator.evaluateVideoClipSeq(seqModel,
-                            path + ".mp4", category, 90, 10, nrOfCategories);
+                    INDArray[] features = NetworkEvaluator.decodeVideoClipSeq(path + ".mp4", seqWindows, inputMode);
+                    return features == null ? null : ParallelEvaluator.LoadedClip.seq(i, category, features);
+                } else if(nearDuplicateThreshold > 0) {
+                    FrameSelector selector = new FrameSelector(nearDuplicateThreshold);
+                    int[][] weights = new int[1][];
+                    INDArray features = NetworkEvaluator.decodeVideoClipNonSeq(path + ".mp4", 0, nrOfFrames,
+                            frameJump, keyframesOnly, InputMode.BGR, selector, weights);
+                    skippedFrames.addAndGet(selector.getNrOfSkipped());
+                    keptFrames.addAndGet(selector.getNrOfKept());
+                    return features == null ? null
+                            : ParallelEvaluator.LoadedClip.nonSeq(i, category, features, weights[0]);
                 } else {
-                    eval = NetworkEvaluator.evaluateVideoClipNonSeq(nonSeqModel,
-                            path + ".mp4", category, 0, nrOfFrames, frameJump, nrOfCategories);
+                    INDArray features = NetworkEvaluator.decodeVideoClipNonSeq(path + ".mp4", 0, nrOfFrames,
+                            frameJump, keyframesOnly, InputMode.BGR);
+                    return features == null ? null : ParallelEvaluator.LoadedClip.nonSeq(i, category, features);
                 }
+            }
+        };
 
-                System.out.println("Video " + i + ", " + LabelMap.labelMap.get(category) + ": " + eval.recall());
-                if(seqData) {
-                    System.out.println("Video " + i + ", " + LabelMap.labelMap.get(category) + ": " + eval2.recall());
-                    System.out.println("Video " + i + ", " + LabelMap.labelMap.get(category) + ": " + eval3.recall());
-                    System.out.println("Video " + i + ", " + LabelMap.labelMap.get(category) + ": " + eval4.recall());
-                    System.out.println("Video " + i + ", " + LabelMap.labelMap.get(category) + ": " + eval5.recall());
-                }
+        try {
+            evaluator.evaluate(0, 3465, loader, listener);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        System.out.println("Evaluated " + evaluator.getNrOfClips() + " clips, " + evaluator.getClipsPerSecond()
+                + " clips/s");
+        if(!seqData && nearDuplicateThreshold > 0) {
+            printSkippedFrames(skippedFrames.get(), keptFrames.get());
+        }
 
-                classifiedVideos[category]++;
+        printTables(tables.reduce());
+    }
 
-                if(seqData) {
-                    int[] mostClassifiedCategory = new int[5];
-                    mostClassifiedCategory[0] = getMostClassifiedCategory(eval, category, nrOfCategories);
-                    mostClassifiedCategory[1] = getMostClassifiedCategory(eval2, category, nrOfCategories);
-                    mostClassifiedCategory[2] = getMostClassifiedCategory(eval3, category, nrOfCategories);
-                    mostClassifiedCategory[3] = getMostClassifiedCategory(eval4, category, nrOfCategories);
-                    mostClassifiedCategory[4] = getMostClassifiedCategory(eval5, category, nrOfCategories);
-                    correctlyClassifiedVideos[category][getPopularElement(mostClassifiedCategory)]++;
-                } else{
-                    int mostClassifiedCategory = getMostClassifiedCategory(eval, category, nrOfCategories);
-                    correctlyClassifiedVideos[category][mostClassifiedCategory]++;
-                }
+    /**
+     * Returns a saved model for evaluation. The model is exported to the inference format (see ModelHandler) the first
+     * time it is used, after which the export is loaded instead, and kept in the model cache. The model is exported
+     * again when the saved model is newer than the export, e.g. after it has been retrained.
+     * @param name The name of the model in savedModelsPath, without extension
+     * @return The model
+     * @throws IOException
+     */
+    private static MultiLayerNetwork getEvaluationModel(String name) throws IOException {
+        File savedModel = new File(savedModelsPath + "/" + name + ".bin");
+        File inferenceModel = new File(savedModelsPath + "/" + name + inferenceModelExtension);
+        if(!inferenceModel.exists() || savedModel.lastModified() > inferenceModel.lastModified()) {
+            ModelHandler.saveInferenceModel(ModelHandler.loadModel(savedModel.getPath()), inferenceModel.getPath());
+        }
+        return ModelHandler.getModel(inferenceModel.getPath());
+    }
 
-                classifiedFrames[category] += nrOfFrames;
-                for(int j = 0; j < nrOfCategories; j++) {
-                    if(j == category) {
-                        correctlyClassifiedFrames[category][category] += eval.truePositives().get(category);
-                        if(seqData) {
-                            correctlyClassifiedFrames[category][category] += eval2.truePositives().get(category);
-                            correctlyClassifiedFrames[category][category] += eval3.truePositives().get(category);
-                            correctlyClassifiedFrames[category][category] += eval4.truePositives().get(category);
-                            correctlyClassifiedFrames[category][category] += eval5.truePositives().get(category);
-                        }
-                    } else {
-                        correctlyClassifiedFrames[category][j] += eval.falsePositives().get(j);
-                        if(seqData) {
-                            correctlyClassifiedFrames[category][j] += eval2.falsePositives().get(j);
-                            correctlyClassifiedFrames[category][j] += eval3.falsePositives().get(j);
-                            correctlyClassifiedFrames[category][j] += eval4.falsePositives().get(j);
-                            correctlyClassifiedFrames[category][j] += eval5.falsePositives().get(j);
-                        }
-                    }
+    /**
+     * Evaluates the video clips one at a time and stops classifying the frames of a clip as soon as the video is
+     * decided (see VideoVote), printing the number of frames each decision used
+     */
+    private static void evaluateVideoClipsEarlyExit(boolean seqData, int nrOfFrames, int frameJump) {
+        ConfusionMatrix tables = new ConfusionMatrix(nrOfCategories);
+        int nrOfVideos = 0;
+        int usedFrames = 0;
+        long skippedFrames = 0;
+        long keptFrames = 0;
+
+        /*Load model*/
+        MultiLayerNetwork model = null;
+        try {
+            if(seqData) {
+                model = getEvaluationModel("model3it3");
+            } else {
+                model = getEvaluationModel("model2it3b");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        int maxFrames = nrOfFrames;
+        if(seqData) {
+            maxFrames = 0;
+            for(int[] window : seqWindows) {
+                maxFrames += window[1];
+            }
+        }
+
+        for(int i = 0; i < 3465; i++) {
+            String path = "video_data/sequential_data/training_data3/sportclip_" + i;
+            int category;
+            try {
+                BufferedReader br = new BufferedReader(new FileReader(path + ".txt"));
+                try {
+                    String line = br.readLine();
+                    line = br.readLine();
+                    category = Integer.parseInt(line);
+                } finally {
+                    br.close();
                 }
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
             } catch (IOException e) {
                 e.printStackTrace();
+                continue;
             }
+
+            VideoVote vote = new VideoVote(nrOfCategories, earlyExitVotes, earlyExitMargin, earlyExitMinFrames,
+                    maxFrames);
+            int[][] predictions;
+            if(seqData) {
+                predictions = NetworkEvaluator.evaluateVideoClipSeqEarlyExit(model, path + ".mp4", seqWindows,
+                        inputMode, vote, nrOfCategories);
+            } else {
+                FrameSelector selector = nearDuplicateThreshold > 0 ? new FrameSelector(nearDuplicateThreshold) : null;
+                int[] p = NetworkEvaluator.evaluateVideoClipNonSeqEarlyExit(model, path + ".mp4", 0, nrOfFrames,
+                        frameJump, keyframesOnly, InputMode.BGR, earlyExitChunk, selector, vote, nrOfCategories);
+                if(selector != null) {
+                    skippedFrames += selector.getNrOfSkipped();
+                    keptFrames += selector.getNrOfKept();
+                }
+                predictions = p == null ? null : new int[][] {p};
+            }
+            if(predictions == null || vote.getNrOfFrames() == 0) {
+                continue;
+            }
+
+            System.out.println("Video " + i + ", " + LabelMap.labelMap.get(category) + ": "
+                    + LabelMap.labelMap.get(vote.getCategory()) + " after " + vote.getNrOfFrames() + " frames");
+            nrOfVideos++;
+            usedFrames += vote.getNrOfFrames();
+            addToTables(tables, category, vote.getCategory(), predictions);
+        }
+        System.out.println("Evaluated " + nrOfVideos + " clips, "
+                + (nrOfVideos == 0 ? 0 : (double) usedFrames / nrOfVideos) + " frames per decision");
+        if(!seqData && nearDuplicateThreshold > 0) {
+            printSkippedFrames(skippedFrames, keptFrames);
         }
 
-        for(int i = 0; i < nrOfCategories; i++) {
-            System.out.println();
-            System.out.println("CATEGORY: " + LabelMap.labelMap.get(i));
+        printTables(tables);
+    }
 
-            System.out.println("Nr of classified Videos: " + classifiedVideos[i]);
+    /**
+     * Prints how many of the decoded frames were skipped as near-duplicates (see FrameSelector)
+     */
+    private static void printSkippedFrames(long skipped, long kept) {
+        System.out.println("Skipped " + skipped + " of " + (skipped + kept) + " frames as near-duplicates ("
+                + (skipped + kept == 0 ? 0 : 100.0 * skipped / (skipped + kept)) + "%)");
+    }
 
-            for(int j = 0; j < nrOfCategories; j++) {
-                System.out.println("Nr of videos classified as " + LabelMap.labelMap.get(j) + ": " + correctlyClassifiedVideos[i][j]);
-            }
+    /**
+     * Adds the result of a video to the tables printed by printTables
+     * @param tables The tables
+     * @param category The correct category of the video
+     * @param classifiedCategory The category the video was classified as
+     * @param predictions The number of frames classified as each category, for each classified window
+     */
+    private static void addToTables(ConfusionMatrix tables, int category, int classifiedCategory,
+                                    int[][] predictions) {
+        tables.addVideo(category, classifiedCategory);
+        for(int[] p : predictions) {
+            tables.addFrames(category, p);
+        }
+    }
 
-            System.out.println("Nr of classified frames: " + classifiedFrames[i]);
+    /**
+     * Prints the tables and writes them as JSON and CSV next to the other evaluation results
+     */
+    private static void printTables(ConfusionMatrix tables) {
+        tables.printTables(System.out);
+        try {
+            tables.writeJson(new File(evaluationResults + ".json"));
+            tables.writeCsv(new File(evaluationResults + ".csv"));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            for(int j = 0; j < nrOfCategories; j++) {
-                System.out.println("Nr of frames classified as " + LabelMap.labelMap.get(j) + ": " + correctlyClassifiedFrames[i][j]);
+    /**
+     * Classifies a video as a stream with the sequential model, printing a label every streamEmitEvery frames
+     * @param path Path to the video, or "-" for raw rgb24 frames of size video_width x video_height on stdin
+     */
+    private static void classifyStream(String path) {
+        try {
+            MultiLayerNetwork model = ModelHandler.loadModel("saved_models/model3it3.bin");
+            StreamingClassifier classifier = new StreamingClassifier(model, video_height, video_width,
+                    PixelScaling.UNIT, inputMode, streamEmitEvery, streamSmoothing,
+                    new StreamingClassifier.LabelListener() {
+                @Override
+                public void label(int frameNumber, int category, float confidence) {
+                    System.out.println("Frame " + frameNumber + ": " + LabelMap.labelMap.get(category) + " ("
+                            + confidence + ")");
+                }
+            });
+            if(path.equals("-")) {
+                classifier.classifyRawStream(System.in, video_width, video_height);
+            } else {
+                classifier.classifyFile(new File(path));
             }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (JCodecException e) {
+            e.printStackTrace();
         }
     }
 
@@ -232,26 +542,4 @@ public class VideoClassificationThesisProject {
 
     }
 
-    private static int getPopularElement(int[] a) {
-        int count = 1, tempCount;
-        int popular = a[0];
-        int temp = 0;
-        for (int i = 0; i < (a.length - 1); i++)
-        {
-            temp = a[i];
-            tempCount = 0;
-            for (int j = 1; j < a.length; j++)
-            {
-                if (temp == a[j])
-                    tempCount++;
-            }
-            if (tempCount > count)
-            {
-                popular = temp;
-                count = tempCount;
-            }
-        }
-        return popular;
-    }
-
 }
@@ -0,0 +1,148 @@
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+/**
+ * Video-level classification from frame-level posteriors, collected as the frames are classified. The frames either
+ * vote for their most probable category or their posteriors are averaged. The video is decided as soon as the lead
+ * of the best category over the second best reaches a margin, so the remaining frames of the video do not have to be
+ * decoded or classified. The number of frames used for the decision is kept.
+ */
+public class VideoVote {
+
+    private final int nrOfCategories;
+    private final boolean countVotes;
+    private final double margin;
+    private final int minFrames;
+    private final int maxFrames;
+
+    /*Vote counts or posterior sums of each category*/
+    private final double[] scores;
+    private int nrOfFrames = 0;
+
+    /**
+     * @param nrOfCategories The number of possible labels/categories
+     * @param countVotes True if each frame votes for its most probable category, false to average the posteriors
+     * @param margin The lead (in votes or average posterior, divided by the number of frames seen) of the best
+     *               category over the second best needed for a decision
+     * @param minFrames The number of frames needed before a decision can be taken on the margin
+     * @param maxFrames The number of frames of the video, or -1 if unknown. With votes, the video is also decided when
+     *                  the remaining frames can no longer change the result.
+     */
+    public VideoVote(int nrOfCategories, boolean countVotes, double margin, int minFrames, int maxFrames) {
+        this.nrOfCategories = nrOfCategories;
+        this.countVotes = countVotes;
+        this.margin = margin;
+        this.minFrames = minFrames;
+        this.maxFrames = maxFrames;
+        this.scores = new double[nrOfCategories];
+    }
+
+    /**
+     * Adds the posteriors of classified frames
+     * @param posteriors The posteriors, one row per frame and one column per category
+     * @return True if the video is decided
+     */
+    public boolean add(INDArray posteriors) {
+        return add(posteriors, null);
+    }
+
+    /**
+     * Adds the posteriors of classified frames, where each row stands for a number of frames (e.g. a kept frame and
+     * the near-duplicates after it that were skipped, see FrameSelector)
+     * @param posteriors The posteriors, one row per kept frame and one column per category
+     * @param weights The number of frames of each row, or null if each row is one frame
+     * @return True if the video is decided
+     */
+    public boolean add(INDArray posteriors, int[] weights) {
+        for(int r = 0; r < posteriors.rows(); r++) {
+            int weight = weights == null ? 1 : weights[r];
+            if(countVotes) {
+                int best = 0;
+                for(int c = 1; c < nrOfCategories; c++) {
+                    if(posteriors.getDouble(r, c) > posteriors.getDouble(r, best)) {
+                        best = c;
+                    }
+                }
+                scores[best] += weight;
+            } else {
+                for(int c = 0; c < nrOfCategories; c++) {
+                    scores[c] += weight * posteriors.getDouble(r, c);
+                }
+            }
+            nrOfFrames += weight;
+        }
+        return isDecided();
+    }
+
+    /**
+     * @return True if the margin has been reached (after at least minFrames frames), or if the votes of the remaining
+     * frames can no longer change the result
+     */
+    public boolean isDecided() {
+        if(nrOfFrames == 0) {
+            return false;
+        }
+        double lead = lead();
+        if(countVotes && maxFrames > 0 && lead > maxFrames - nrOfFrames) {
+            return true;
+        }
+        return nrOfFrames >= minFrames && lead / nrOfFrames >= margin;
+    }
+
+    /**
+     * @return The category with the most votes or the highest average posterior
+     */
+    public int getCategory() {
+        int best = 0;
+        for(int c = 1; c < nrOfCategories; c++) {
+            if(scores[c] > scores[best]) {
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return The number of frames used so far
+     */
+    public int getNrOfFrames() {
+        return nrOfFrames;
+    }
+
+    /**
+     * The score of the best category minus the score of the second best category
+     */
+    private double lead() {
+        double first = Double.NEGATIVE_INFINITY;
+        double second = Double.NEGATIVE_INFINITY;
+        for(double s : scores) {
+            if(s > first) {
+                second = first;
+                first = s;
+            } else if(s > second) {
+                second = s;
+            }
+        }
+        return first - second;
+    }
+
+    /**
+     * Returns the most common element of an array by counting, in linear time. Ties go to the element that occurs
+     * first in the array.
+     * @param a The elements, each in [0, nrOfCategories)
+     * @param nrOfCategories The number of possible labels/categories
+     * @return The most common element
+     */
+    public static int mostCommon(int[] a, int nrOfCategories) {
+        int[] counts = new int[nrOfCategories];
+        for(int e : a) {
+            counts[e]++;
+        }
+        int popular = a[0];
+        for(int e : a) {
+            if(counts[e] > counts[popular]) {
+                popular = e;
+            }
+        }
+        return popular;
+    }
+}